@@ -0,0 +1,726 @@
+package org.randomcoder.proxy;
+
+/**
+ * JavaBean which holds optional tuning settings for {@link ProxyServer}.
+ */
+public class ProxyOptions {
+  private boolean asyncReceive = false;
+  private boolean asyncSend = false;
+  private int sendQueueSize = 65536;
+  private boolean nonBlockingEndpoints = false;
+  private int selectorThreads = 2;
+  private int authCacheSize = 10000;
+  private long authCacheTtl = 300000L;
+  private long authReloadInterval = 5000L;
+  private long authTokenTtl = 900000L;
+  private int bufferPoolSize = 128;
+  private String receiveFlushPolicy = "interactive";
+  private int sendReorderWindow = 16;
+  private int sendReorderSize = 1048576;
+  private int compressionLevel = 1;
+  private long connectTimeout = 10000L;
+  private int connectMaxPending = 1024;
+  private int connectThreads = 16;
+  private int connectQueue = 64;
+  private long connectAttemptDelay = 250L;
+  private String warmDestinations = "";
+  private int warmSize = 4;
+  private long warmMaxIdle = 30000L;
+  private int eventCapacity = 128;
+  private boolean rateLimited = false;
+  private String defaultLimits = "";
+  private int requestThreads = 100;
+  private int dataThreads = 200;
+  private boolean virtualThreads = false;
+  private boolean admissionControlled = false;
+  private double admissionMaxUtilization = 0.9d;
+  private int admissionMaxConnects = 256;
+  private long admissionRetryAfter = 1L;
+  private int resolveThreads = 4;
+  private long resolveTimeout = 5000L;
+  private long resolveTtl = 60000L;
+  private long resolveNegativeTtl = 10000L;
+
+  /**
+   * Determines whether receive streams are serviced asynchronously.
+   *
+   * @return <code>true</code> if receive streams are asynchronous
+   */
+  public boolean isAsyncReceive() {
+    return asyncReceive;
+  }
+
+  /**
+   * Sets whether receive streams are serviced asynchronously.
+   *
+   * @param asyncReceive <code>true</code> to release request threads while
+   *                     receive streams are idle
+   */
+  public void setAsyncReceive(boolean asyncReceive) {
+    this.asyncReceive = asyncReceive;
+  }
+
+  /**
+   * Determines whether send requests are handled asynchronously.
+   *
+   * @return <code>true</code> if send requests are asynchronous
+   */
+  public boolean isAsyncSend() {
+    return asyncSend;
+  }
+
+  /**
+   * Sets whether send requests are handled asynchronously.
+   *
+   * @param asyncSend <code>true</code> to release request threads while
+   *                  waiting on clients or destinations
+   */
+  public void setAsyncSend(boolean asyncSend) {
+    this.asyncSend = asyncSend;
+  }
+
+  /**
+   * Gets the maximum number of bytes queued toward a destination by an
+   * asynchronous send.
+   *
+   * @return queue size in bytes
+   */
+  public int getSendQueueSize() {
+    return sendQueueSize;
+  }
+
+  /**
+   * Sets the maximum number of bytes queued toward a destination by an
+   * asynchronous send.
+   *
+   * @param sendQueueSize queue size in bytes
+   */
+  public void setSendQueueSize(int sendQueueSize) {
+    this.sendQueueSize = sendQueueSize;
+  }
+
+  /**
+   * Determines whether endpoints use non-blocking socket channels.
+   *
+   * @return <code>true</code> if endpoints are non-blocking
+   */
+  public boolean isNonBlockingEndpoints() {
+    return nonBlockingEndpoints;
+  }
+
+  /**
+   * Sets whether endpoints use non-blocking socket channels.
+   *
+   * @param nonBlockingEndpoints <code>true</code> to service endpoints from a
+   *                             shared selector pool
+   */
+  public void setNonBlockingEndpoints(boolean nonBlockingEndpoints) {
+    this.nonBlockingEndpoints = nonBlockingEndpoints;
+  }
+
+  /**
+   * Gets the number of selector threads used by non-blocking endpoints.
+   *
+   * @return selector thread count
+   */
+  public int getSelectorThreads() {
+    return selectorThreads;
+  }
+
+  /**
+   * Sets the number of selector threads used by non-blocking endpoints.
+   *
+   * @param selectorThreads selector thread count
+   */
+  public void setSelectorThreads(int selectorThreads) {
+    this.selectorThreads = selectorThreads;
+  }
+
+  /**
+   * Gets the maximum number of verified credentials to cache.
+   *
+   * @return cache size (0 disables caching)
+   */
+  public int getAuthCacheSize() {
+    return authCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of verified credentials to cache.
+   *
+   * @param authCacheSize cache size (0 disables caching)
+   */
+  public void setAuthCacheSize(int authCacheSize) {
+    this.authCacheSize = authCacheSize;
+  }
+
+  /**
+   * Gets the time a verified credential remains cached.
+   *
+   * @return time to live in milliseconds
+   */
+  public long getAuthCacheTtl() {
+    return authCacheTtl;
+  }
+
+  /**
+   * Sets the time a verified credential remains cached.
+   *
+   * @param authCacheTtl time to live in milliseconds
+   */
+  public void setAuthCacheTtl(long authCacheTtl) {
+    this.authCacheTtl = authCacheTtl;
+  }
+
+  /**
+   * Gets the interval between checks of the password file for changes.
+   *
+   * @return interval in milliseconds (0 disables reloading)
+   */
+  public long getAuthReloadInterval() {
+    return authReloadInterval;
+  }
+
+  /**
+   * Sets the interval between checks of the password file for changes.
+   *
+   * @param authReloadInterval interval in milliseconds (0 disables
+   *                           reloading)
+   */
+  public void setAuthReloadInterval(long authReloadInterval) {
+    this.authReloadInterval = authReloadInterval;
+  }
+
+  /**
+   * Gets the lifetime of session tokens issued by the auth operation.
+   *
+   * @return lifetime in milliseconds (0 disables tokens)
+   */
+  public long getAuthTokenTtl() {
+    return authTokenTtl;
+  }
+
+  /**
+   * Sets the lifetime of session tokens issued by the auth operation.
+   *
+   * @param authTokenTtl lifetime in milliseconds (0 disables tokens)
+   */
+  public void setAuthTokenTtl(long authTokenTtl) {
+    this.authTokenTtl = authTokenTtl;
+  }
+
+  /**
+   * Gets the maximum number of free buffers retained for each buffer size.
+   *
+   * @return buffers per size (0 disables pooling)
+   */
+  public int getBufferPoolSize() {
+    return bufferPoolSize;
+  }
+
+  /**
+   * Sets the maximum number of free buffers retained for each buffer size.
+   *
+   * @param bufferPoolSize buffers per size (0 disables pooling)
+   */
+  public void setBufferPoolSize(int bufferPoolSize) {
+    this.bufferPoolSize = bufferPoolSize;
+  }
+
+  /**
+   * Gets the name of the policy used to coalesce receive frames.
+   *
+   * @return policy name (<code>interactive</code> or <code>bulk</code>)
+   */
+  public String getReceiveFlushPolicy() {
+    return receiveFlushPolicy;
+  }
+
+  /**
+   * Sets the name of the policy used to coalesce receive frames.
+   *
+   * @param receiveFlushPolicy policy name (<code>interactive</code> or
+   *                           <code>bulk</code>)
+   */
+  public void setReceiveFlushPolicy(String receiveFlushPolicy) {
+    this.receiveFlushPolicy = receiveFlushPolicy;
+  }
+
+  /**
+   * Gets the number of numbered sends which may be held ahead of the next
+   * expected send on a connection.
+   *
+   * @return reorder window
+   */
+  public int getSendReorderWindow() {
+    return sendReorderWindow;
+  }
+
+  /**
+   * Sets the number of numbered sends which may be held ahead of the next
+   * expected send on a connection.
+   *
+   * @param sendReorderWindow reorder window
+   */
+  public void setSendReorderWindow(int sendReorderWindow) {
+    this.sendReorderWindow = sendReorderWindow;
+  }
+
+  /**
+   * Gets the maximum number of bytes held by numbered sends on a connection.
+   *
+   * @return reorder buffer size in bytes
+   */
+  public int getSendReorderSize() {
+    return sendReorderSize;
+  }
+
+  /**
+   * Sets the maximum number of bytes held by numbered sends on a connection.
+   *
+   * @param sendReorderSize reorder buffer size in bytes
+   */
+  public void setSendReorderSize(int sendReorderSize) {
+    this.sendReorderSize = sendReorderSize;
+  }
+
+  /**
+   * Gets the deflate level used by tunnels which negotiate compression.
+   *
+   * @return compression level, or 0 if compression is refused
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Sets the deflate level used by tunnels which negotiate compression.
+   *
+   * @param compressionLevel compression level (1-9), or 0 to refuse
+   *                         compression
+   */
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * Gets the time allowed for a destination connection, not including name
+   * resolution.
+   *
+   * @return timeout in milliseconds
+   */
+  public long getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets the time allowed for a destination connection, not including name
+   * resolution.
+   *
+   * @param connectTimeout timeout in milliseconds
+   */
+  public void setConnectTimeout(long connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Gets the number of destination connections which may be pending at once.
+   *
+   * @return pending connection limit
+   */
+  public int getConnectMaxPending() {
+    return connectMaxPending;
+  }
+
+  /**
+   * Sets the number of destination connections which may be pending at once.
+   *
+   * @param connectMaxPending pending connection limit
+   */
+  public void setConnectMaxPending(int connectMaxPending) {
+    this.connectMaxPending = connectMaxPending;
+  }
+
+  /**
+   * Gets the number of threads used for blocking connections.
+   *
+   * @return thread count
+   */
+  public int getConnectThreads() {
+    return connectThreads;
+  }
+
+  /**
+   * Sets the number of threads used for blocking connections.
+   *
+   * @param connectThreads thread count
+   */
+  public void setConnectThreads(int connectThreads) {
+    this.connectThreads = connectThreads;
+  }
+
+  /**
+   * Gets the number of blocking connections or name lookups which may wait
+   * for a thread. Further requests are refused as busy.
+   *
+   * @return queue length
+   */
+  public int getConnectQueue() {
+    return connectQueue;
+  }
+
+  /**
+   * Sets the number of blocking connections or name lookups which may wait
+   * for a thread. Further requests are refused as busy.
+   *
+   * @param connectQueue queue length
+   */
+  public void setConnectQueue(int connectQueue) {
+    this.connectQueue = connectQueue;
+  }
+
+  /**
+   * Gets the delay before the next address of a destination is tried while
+   * earlier connection attempts are still pending.
+   *
+   * @return delay in milliseconds
+   */
+  public long getConnectAttemptDelay() {
+    return connectAttemptDelay;
+  }
+
+  /**
+   * Sets the delay before the next address of a destination is tried while
+   * earlier connection attempts are still pending.
+   *
+   * @param connectAttemptDelay delay in milliseconds
+   */
+  public void setConnectAttemptDelay(long connectAttemptDelay) {
+    this.connectAttemptDelay = connectAttemptDelay;
+  }
+
+  /**
+   * Gets the destinations to which connections are opened ahead of time.
+   *
+   * @return comma-separated list of <code>host:port</code> destinations
+   */
+  public String getWarmDestinations() {
+    return warmDestinations;
+  }
+
+  /**
+   * Sets the destinations to which connections are opened ahead of time.
+   *
+   * @param warmDestinations comma-separated list of <code>host:port</code>
+   *                         destinations
+   */
+  public void setWarmDestinations(String warmDestinations) {
+    this.warmDestinations = warmDestinations;
+  }
+
+  /**
+   * Gets the number of idle connections kept open to each warm destination.
+   *
+   * @return connection count, or 0 to disable warm connections
+   */
+  public int getWarmSize() {
+    return warmSize;
+  }
+
+  /**
+   * Sets the number of idle connections kept open to each warm destination.
+   *
+   * @param warmSize connection count, or 0 to disable warm connections
+   */
+  public void setWarmSize(int warmSize) {
+    this.warmSize = warmSize;
+  }
+
+  /**
+   * Gets the time after which an idle warm connection is closed and
+   * replaced.
+   *
+   * @return time in milliseconds
+   */
+  public long getWarmMaxIdle() {
+    return warmMaxIdle;
+  }
+
+  /**
+   * Sets the time after which an idle warm connection is closed and
+   * replaced.
+   *
+   * @param warmMaxIdle time in milliseconds
+   */
+  public void setWarmMaxIdle(long warmMaxIdle) {
+    this.warmMaxIdle = warmMaxIdle;
+  }
+
+  /**
+   * Gets the number of recent tunnel events retained for status.
+   *
+   * @return event count
+   */
+  public int getEventCapacity() {
+    return eventCapacity;
+  }
+
+  /**
+   * Sets the number of recent tunnel events retained for status.
+   *
+   * @param eventCapacity event count
+   */
+  public void setEventCapacity(int eventCapacity) {
+    this.eventCapacity = eventCapacity;
+  }
+
+  /**
+   * Determines whether per-user and per-tunnel rate limits are applied.
+   *
+   * @return <code>true</code> if rate limits are applied
+   */
+  public boolean isRateLimited() {
+    return rateLimited;
+  }
+
+  /**
+   * Sets whether per-user and per-tunnel rate limits are applied.
+   *
+   * @param rateLimited <code>true</code> to apply rate limits
+   */
+  public void setRateLimited(boolean rateLimited) {
+    this.rateLimited = rateLimited;
+  }
+
+  /**
+   * Gets the rate limits applied to users with no limits in the password
+   * file.
+   *
+   * @return limits, in the form described by
+   * {@link org.randomcoder.proxy.support.Limits}
+   */
+  public String getDefaultLimits() {
+    return defaultLimits;
+  }
+
+  /**
+   * Sets the rate limits applied to users with no limits in the password
+   * file.
+   *
+   * @param defaultLimits limits, in the form described by
+   *                      {@link org.randomcoder.proxy.support.Limits}
+   */
+  public void setDefaultLimits(String defaultLimits) {
+    this.defaultLimits = defaultLimits;
+  }
+
+  /**
+   * Gets the maximum number of request threads. Requests other than blocking
+   * sends and receives are handled on these threads.
+   *
+   * @return thread count
+   */
+  public int getRequestThreads() {
+    return requestThreads;
+  }
+
+  /**
+   * Sets the maximum number of request threads.
+   *
+   * @param requestThreads thread count
+   */
+  public void setRequestThreads(int requestThreads) {
+    this.requestThreads = requestThreads;
+  }
+
+  /**
+   * Gets the maximum number of threads used for blocking sends and receives.
+   *
+   * @return thread count, or 0 to handle them on request threads
+   */
+  public int getDataThreads() {
+    return dataThreads;
+  }
+
+  /**
+   * Sets the maximum number of threads used for blocking sends and receives.
+   *
+   * @param dataThreads thread count, or 0 to handle them on request threads
+   */
+  public void setDataThreads(int dataThreads) {
+    this.dataThreads = dataThreads;
+  }
+
+  /**
+   * Determines whether blocking sends and receives, the keepalives and
+   * flushes of blocking receive streams, and endpoint I/O run on virtual
+   * threads. Virtual threads require Java 21 or later; on older releases,
+   * platform threads are used.
+   *
+   * @return <code>true</code> if virtual threads are used
+   */
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Sets whether blocking sends and receives, the keepalives and flushes of
+   * blocking receive streams, and endpoint I/O run on virtual threads. When
+   * set, the number of data threads no longer limits the number of blocking
+   * streams.
+   *
+   * @param virtualThreads <code>true</code> to use virtual threads
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Determines whether new tunnels are refused while the server is
+   * overloaded, and tunnel quotas are enforced. Disabled by default.
+   *
+   * @return <code>true</code> if admission control is enabled
+   */
+  public boolean isAdmissionControlled() {
+    return admissionControlled;
+  }
+
+  /**
+   * Sets whether new tunnels are refused while the server is overloaded.
+   *
+   * @param admissionControlled <code>true</code> to enable admission control
+   */
+  public void setAdmissionControlled(boolean admissionControlled) {
+    this.admissionControlled = admissionControlled;
+  }
+
+  /**
+   * Gets the fraction of the request thread pool which may be busy or queued
+   * before new tunnels are refused.
+   *
+   * @return utilization
+   */
+  public double getAdmissionMaxUtilization() {
+    return admissionMaxUtilization;
+  }
+
+  /**
+   * Sets the fraction of the request thread pool which may be busy or queued
+   * before new tunnels are refused.
+   *
+   * @param admissionMaxUtilization utilization
+   */
+  public void setAdmissionMaxUtilization(double admissionMaxUtilization) {
+    this.admissionMaxUtilization = admissionMaxUtilization;
+  }
+
+  /**
+   * Gets the number of requests opening new tunnels which may be in flight at
+   * once.
+   *
+   * @return request count
+   */
+  public int getAdmissionMaxConnects() {
+    return admissionMaxConnects;
+  }
+
+  /**
+   * Sets the number of requests opening new tunnels which may be in flight at
+   * once.
+   *
+   * @param admissionMaxConnects request count
+   */
+  public void setAdmissionMaxConnects(int admissionMaxConnects) {
+    this.admissionMaxConnects = admissionMaxConnects;
+  }
+
+  /**
+   * Gets the time after which refused clients are told to retry.
+   *
+   * @return time in seconds
+   */
+  public long getAdmissionRetryAfter() {
+    return admissionRetryAfter;
+  }
+
+  /**
+   * Sets the time after which refused clients are told to retry.
+   *
+   * @param admissionRetryAfter time in seconds
+   */
+  public void setAdmissionRetryAfter(long admissionRetryAfter) {
+    this.admissionRetryAfter = admissionRetryAfter;
+  }
+
+  /**
+   * Gets the number of threads used for name lookups.
+   *
+   * @return thread count
+   */
+  public int getResolveThreads() {
+    return resolveThreads;
+  }
+
+  /**
+   * Sets the number of threads used for name lookups.
+   *
+   * @param resolveThreads thread count
+   */
+  public void setResolveThreads(int resolveThreads) {
+    this.resolveThreads = resolveThreads;
+  }
+
+  /**
+   * Gets the time allowed for a name lookup.
+   *
+   * @return timeout in milliseconds
+   */
+  public long getResolveTimeout() {
+    return resolveTimeout;
+  }
+
+  /**
+   * Sets the time allowed for a name lookup.
+   *
+   * @param resolveTimeout timeout in milliseconds
+   */
+  public void setResolveTimeout(long resolveTimeout) {
+    this.resolveTimeout = resolveTimeout;
+  }
+
+  /**
+   * Gets the time a successful name lookup is cached.
+   *
+   * @return time to live in milliseconds
+   */
+  public long getResolveTtl() {
+    return resolveTtl;
+  }
+
+  /**
+   * Sets the time a successful name lookup is cached.
+   *
+   * @param resolveTtl time to live in milliseconds
+   */
+  public void setResolveTtl(long resolveTtl) {
+    this.resolveTtl = resolveTtl;
+  }
+
+  /**
+   * Gets the time a failed name lookup is cached.
+   *
+   * @return time to live in milliseconds
+   */
+  public long getResolveNegativeTtl() {
+    return resolveNegativeTtl;
+  }
+
+  /**
+   * Sets the time a failed name lookup is cached.
+   *
+   * @param resolveNegativeTtl time to live in milliseconds
+   */
+  public void setResolveNegativeTtl(long resolveNegativeTtl) {
+    this.resolveNegativeTtl = resolveNegativeTtl;
+  }
+}
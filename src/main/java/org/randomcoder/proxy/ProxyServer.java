@@ -5,28 +5,53 @@ import org.eclipse.jetty.rewrite.handler.HeaderPatternRule;
 import org.eclipse.jetty.rewrite.handler.RewriteHandler;
 import org.eclipse.jetty.rewrite.handler.RuleContainer;
 import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.ForwardedRequestCustomizer;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
-import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.SecuredRedirectHandler;
 import org.eclipse.jetty.util.security.UnixCrypt;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
 import org.randomcoder.proxy.handlers.AuthHandler;
 import org.randomcoder.proxy.handlers.BasicAuthHandler;
+import org.randomcoder.proxy.handlers.BulkheadHandler;
 import org.randomcoder.proxy.handlers.ConnectHandler;
 import org.randomcoder.proxy.handlers.DisconnectHandler;
+import org.randomcoder.proxy.handlers.MetricsHandler;
+import org.randomcoder.proxy.handlers.MuxReceiveHandler;
 import org.randomcoder.proxy.handlers.PingHandler;
 import org.randomcoder.proxy.handlers.ReceiveHandler;
+import org.randomcoder.proxy.handlers.RoutingHandler;
 import org.randomcoder.proxy.handlers.SendHandler;
+import org.randomcoder.proxy.handlers.SessionsHandler;
 import org.randomcoder.proxy.handlers.StatusHandler;
+import org.randomcoder.proxy.handlers.TunnelSocketHandler;
+import org.randomcoder.proxy.support.AdmissionController;
+import org.randomcoder.proxy.support.AdmissionController.OperationClass;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.CompressionStats;
+import org.randomcoder.proxy.support.ConnectStats;
+import org.randomcoder.proxy.support.CredentialCache;
+import org.randomcoder.proxy.support.EndpointConnector;
 import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.FlushPolicy;
+import org.randomcoder.proxy.support.HashedTimerWheel;
+import org.randomcoder.proxy.support.Limits;
+import org.randomcoder.proxy.support.Metrics;
+import org.randomcoder.proxy.support.PasswordStore;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.ResolverCache;
+import org.randomcoder.proxy.support.SelectorPool;
+import org.randomcoder.proxy.support.TokenService;
+import org.randomcoder.proxy.support.VirtualThreads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletRequest;
 import java.io.Console;
 import java.io.File;
 import java.io.IOException;
@@ -37,6 +62,15 @@ import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 /**
  * HTTP tunneling proxy server.
@@ -53,6 +87,42 @@ public class ProxyServer {
   private static final String DEFAULT_HTTP_FORWARDED = "false";
   private static final String DEFAULT_HTTPS_FORCED = "false";
   private static final String DEFAULT_STS_MAX_AGE = "0";
+  private static final String DEFAULT_RECEIVE_ASYNC = "false";
+  private static final String DEFAULT_SEND_ASYNC = "false";
+  private static final String DEFAULT_SEND_QUEUE_SIZE = "65536";
+  private static final String DEFAULT_ENDPOINT_NIO = "false";
+  private static final String DEFAULT_SELECTOR_THREADS = "2";
+  private static final String DEFAULT_AUTH_CACHE_SIZE = "10000";
+  private static final String DEFAULT_AUTH_CACHE_TTL = "300000";
+  private static final String DEFAULT_AUTH_RELOAD_INTERVAL = "5000";
+  private static final String DEFAULT_AUTH_TOKEN_TTL = "900000";
+  private static final String DEFAULT_BUFFER_POOL_SIZE = "128";
+  private static final String DEFAULT_RECEIVE_FLUSH = "interactive";
+  private static final String DEFAULT_SEND_REORDER_WINDOW = "16";
+  private static final String DEFAULT_SEND_REORDER_SIZE = "1048576";
+  private static final String DEFAULT_COMPRESSION_LEVEL = "1";
+  private static final String DEFAULT_CONNECT_TIMEOUT = "10000";
+  private static final String DEFAULT_CONNECT_MAX_PENDING = "1024";
+  private static final String DEFAULT_CONNECT_THREADS = "16";
+  private static final String DEFAULT_CONNECT_QUEUE = "64";
+  private static final String DEFAULT_CONNECT_ATTEMPT_DELAY = "250";
+  private static final String DEFAULT_WARM_DESTINATIONS = "";
+  private static final String DEFAULT_WARM_SIZE = "4";
+  private static final String DEFAULT_WARM_MAX_IDLE = "30000";
+  private static final String DEFAULT_EVENT_CAPACITY = "128";
+  private static final String DEFAULT_LIMITS_ENABLED = "false";
+  private static final String DEFAULT_LIMITS_DEFAULT = "";
+  private static final String DEFAULT_REQUEST_THREADS = "100";
+  private static final String DEFAULT_DATA_THREADS = "200";
+  private static final String DEFAULT_VIRTUAL_THREADS = "false";
+  private static final String DEFAULT_ADMISSION_ENABLED = "false";
+  private static final String DEFAULT_ADMISSION_MAX_UTILIZATION = "0.9";
+  private static final String DEFAULT_ADMISSION_MAX_CONNECTS = "256";
+  private static final String DEFAULT_ADMISSION_RETRY_AFTER = "1";
+  private static final String DEFAULT_RESOLVE_THREADS = "4";
+  private static final String DEFAULT_RESOLVE_TIMEOUT = "5000";
+  private static final String DEFAULT_RESOLVE_TTL = "60000";
+  private static final String DEFAULT_RESOLVE_NEGATIVE_TTL = "10000";
 
   private static final String HOST_PARAM = "proxy.host";
   private static final String PORT_PARAM = "proxy.port";
@@ -61,9 +131,64 @@ public class ProxyServer {
   private static final String HTTP_FORWARDED_PARAM = "http.forwarded";
   private static final String HTTPS_FORCED_PARAM = "https.forced";
   private static final String STS_MAX_AGE_PARAM = "sts.max.age";
+  private static final String RECEIVE_ASYNC_PARAM = "receive.async";
+  private static final String SEND_ASYNC_PARAM = "send.async";
+  private static final String SEND_QUEUE_SIZE_PARAM = "send.queue.size";
+  private static final String ENDPOINT_NIO_PARAM = "endpoint.nio";
+  private static final String SELECTOR_THREADS_PARAM = "selector.threads";
+  private static final String AUTH_CACHE_SIZE_PARAM = "auth.cache.size";
+  private static final String AUTH_CACHE_TTL_PARAM = "auth.cache.ttl";
+  private static final String AUTH_RELOAD_INTERVAL_PARAM =
+      "auth.reload.interval";
+  private static final String AUTH_TOKEN_TTL_PARAM = "auth.token.ttl";
+  private static final String BUFFER_POOL_SIZE_PARAM = "buffer.pool.size";
+  private static final String RECEIVE_FLUSH_PARAM = "receive.flush";
+  private static final String SEND_REORDER_WINDOW_PARAM =
+      "send.reorder.window";
+  private static final String SEND_REORDER_SIZE_PARAM = "send.reorder.size";
+  private static final String COMPRESSION_LEVEL_PARAM = "compression.level";
+  private static final String CONNECT_TIMEOUT_PARAM = "connect.timeout";
+  private static final String CONNECT_MAX_PENDING_PARAM =
+      "connect.max.pending";
+  private static final String CONNECT_THREADS_PARAM = "connect.threads";
+  private static final String CONNECT_QUEUE_PARAM = "connect.queue";
+  private static final String CONNECT_ATTEMPT_DELAY_PARAM =
+      "connect.attempt.delay";
+  private static final String WARM_DESTINATIONS_PARAM = "warm.destinations";
+  private static final String WARM_SIZE_PARAM = "warm.size";
+  private static final String WARM_MAX_IDLE_PARAM = "warm.max.idle";
+  private static final String EVENT_CAPACITY_PARAM = "events.capacity";
+  private static final String LIMITS_ENABLED_PARAM = "limits.enabled";
+  private static final String LIMITS_DEFAULT_PARAM = "limits.default";
+  private static final String REQUEST_THREADS_PARAM = "request.threads";
+  private static final String DATA_THREADS_PARAM = "data.threads";
+  private static final String VIRTUAL_THREADS_PARAM = "virtual.threads";
+  private static final String ADMISSION_ENABLED_PARAM = "admission.enabled";
+  private static final String ADMISSION_MAX_UTILIZATION_PARAM =
+      "admission.max.utilization";
+  private static final String ADMISSION_MAX_CONNECTS_PARAM =
+      "admission.max.connects";
+  private static final String ADMISSION_RETRY_AFTER_PARAM =
+      "admission.retry.after";
+  private static final String RESOLVE_THREADS_PARAM = "resolve.threads";
+  private static final String RESOLVE_TIMEOUT_PARAM = "resolve.timeout";
+  private static final String RESOLVE_TTL_PARAM = "resolve.ttl";
+  private static final String RESOLVE_NEGATIVE_TTL_PARAM =
+      "resolve.negative.ttl";
 
   private final EndpointTracker tracker;
   private final Server server;
+  private final HashedTimerWheel timer;
+  private final ExecutorService readExecutor;
+  private final ExecutorService writeExecutor;
+  private final ExecutorService connectExecutor;
+  private final ExecutorService resolveExecutor;
+  private final ExecutorService dataExecutor;
+  private final ExecutorService housekeepingExecutor;
+  private final SelectorPool selectorPool;
+  private final EndpointConnector connector;
+  private final PasswordStore passwordStore;
+  private final BufferPool bufferPool;
 
   /**
    * Creates a new proxy server.
@@ -81,13 +206,124 @@ public class ProxyServer {
   public ProxyServer(String host, int port, String context, File passwdFile,
       boolean forward, boolean forceHttps, boolean sendSts, long stsMaxAge)
       throws IOException {
-    tracker = new EndpointTracker();
+    this(host, port, context, passwdFile, forward, forceHttps, sendSts,
+        stsMaxAge, new ProxyOptions());
+  }
+
+  /**
+   * Creates a new proxy server.
+   *
+   * @param host       host to listen on
+   * @param port       port number to listen on
+   * @param context    base URL
+   * @param passwdFile password file
+   * @param forward    whether to do X-Forwarded-{For,Proto} handling
+   * @param forceHttps whether to force a redirect to HTTPS
+   * @param sendSts    whether to send Strict-Transport-Security header
+   * @param stsMaxAge  maximum age of STS header
+   * @param options    tuning options
+   * @throws IOException if an error occurs
+   */
+  public ProxyServer(String host, int port, String context, File passwdFile,
+      boolean forward, boolean forceHttps, boolean sendSts, long stsMaxAge,
+      ProxyOptions options) throws IOException {
+    timer = new HashedTimerWheel("Timer", 10L, TimeUnit.MILLISECONDS, 512);
+    tracker = new EndpointTracker(60000L,
+        Runtime.getRuntime().availableProcessors() * 2,
+        options.getEventCapacity(), timer);
+
+    boolean virtual = options.isVirtualThreads();
+    if (virtual && !VirtualThreads.isSupported()) {
+      LOG.warn("Virtual threads require Java 21 or later; using platform "
+          + "threads");
+      virtual = false;
+    }
+
+    // also used by multiplexed receive streams and tunnel sockets, which are
+    // always asynchronous; the writer also carries the keepalives and timed
+    // flushes of blocking receive streams
+    readExecutor = virtual ?
+        VirtualThreads.newExecutor("Endpoint reader") :
+        Executors.newCachedThreadPool(daemonThreadFactory("Endpoint reader"));
+    writeExecutor = virtual ?
+        VirtualThreads.newExecutor("Endpoint writer") :
+        Executors.newCachedThreadPool(daemonThreadFactory("Endpoint writer"));
+    // reloads read the password file and notify listeners, which must not
+    // hold up the timer
+    housekeepingExecutor = Executors.newSingleThreadExecutor(
+        daemonThreadFactory("Housekeeping"));
+    passwordStore = new PasswordStore(passwdFile);
+    if (options.getAuthReloadInterval() > 0L) {
+      passwordStore.watch(timer, housekeepingExecutor,
+          options.getAuthReloadInterval());
+    }
+
+    bufferPool = new BufferPool(options.getBufferPoolSize());
+
+    RateLimiter rateLimiter = options.isRateLimited() ?
+        new RateLimiter(passwordStore,
+            Limits.parse(options.getDefaultLimits(), Limits.NONE), timer) :
+        null;
+
+    selectorPool = options.isNonBlockingEndpoints() ?
+        new SelectorPool(options.getSelectorThreads()) :
+        null;
+
+    // blocking connects and name lookups each have their own threads, so that
+    // slow lookups cannot hold up connects or the reverse; both are bounded,
+    // threads and queue, so that unresponsive destinations cannot consume
+    // unlimited threads or memory, and a full queue is answered as busy
+    connectExecutor = boundedPool(options.getConnectThreads(),
+        options.getConnectQueue(), "Endpoint connector");
+    resolveExecutor = boundedPool(options.getResolveThreads(),
+        options.getConnectQueue(), "Name resolver");
+    connector = new EndpointConnector(
+        new ResolverCache(resolveExecutor, timer, options.getResolveTimeout(),
+            options.getResolveTtl(), options.getResolveNegativeTtl()),
+        selectorPool, connectExecutor, timer, options.getConnectTimeout(),
+        options.getConnectMaxPending(), options.getConnectAttemptDelay(),
+        new ConnectStats());
+    if (options.getWarmSize() > 0) {
+      for (String destination : options.getWarmDestinations().split(",")) {
+        destination = destination.trim();
+        if (destination.isEmpty()) {
+          continue;
+        }
+        int colon = destination.lastIndexOf(':');
+        if (colon <= 0) {
+          throw new IllegalArgumentException(
+              "Invalid warm destination: " + destination);
+        }
+        connector.warm(destination.substring(0, colon),
+            Integer.parseInt(destination.substring(colon + 1)),
+            options.getWarmSize(), options.getWarmMaxIdle());
+      }
+    }
 
     if (context == "/") {
       context = "";
     }
 
-    QueuedThreadPool threadPool = new QueuedThreadPool(100, 10, 60000);
+    QueuedThreadPool threadPool =
+        new QueuedThreadPool(options.getRequestThreads(), 10, 60000);
+
+    // blocking sends and receives hold a thread for as long as they stream,
+    // so they get their own threads, leaving the request threads free for
+    // pings and other short requests; when every data thread is busy, further
+    // streams are refused rather than queued. Virtual threads are cheap
+    // enough that streams on them are not capped at all.
+    if (virtual) {
+      dataExecutor = VirtualThreads.newExecutor("Data plane");
+    } else if (options.getDataThreads() > 0) {
+      ThreadPoolExecutor dataPool =
+          new ThreadPoolExecutor(options.getDataThreads(),
+              options.getDataThreads(), 60L, TimeUnit.SECONDS,
+              new SynchronousQueue<>(), daemonThreadFactory("Data plane"));
+      dataPool.allowCoreThreadTimeOut(true);
+      dataExecutor = dataPool;
+    } else {
+      dataExecutor = null;
+    }
 
     server = new Server(threadPool);
     server.addBean(new ScheduledExecutorScheduler());
@@ -99,7 +335,7 @@ public class ProxyServer {
       httpConfig.addCustomizer(new ForwardedRequestCustomizer());
     }
 
-    HandlerCollection handlers = new HandlerCollection();
+    HandlerList handlers = new HandlerList();
 
     if (sendSts) {
       RewriteHandler rewriteHandler = new RewriteHandler();
@@ -119,17 +355,66 @@ public class ProxyServer {
       handlers.addHandler(new SecuredRedirectHandler());
     }
 
-    // authentication handler must be first
-    handlers.addHandler(new BasicAuthHandler(passwdFile));
-
-    // remaining handlers are in order of decreasing frequency of calls
-    handlers.addHandler(new SendHandler(context, tracker));
-    handlers.addHandler(new PingHandler(context, tracker));
-    handlers.addHandler(new ReceiveHandler(context, tracker));
-    handlers.addHandler(new ConnectHandler(context, tracker));
-    handlers.addHandler(new DisconnectHandler(context, tracker));
-    handlers.addHandler(new AuthHandler(context));
-    handlers.addHandler(new StatusHandler(context, tracker));
+    TokenService tokens = options.getAuthTokenTtl() > 0L ?
+        new TokenService(options.getAuthTokenTtl(), passwordStore) :
+        null;
+
+    // new tunnels are shed once the request threads are saturated, so that
+    // existing tunnels keep their share of the pool
+    AdmissionController admission = options.isAdmissionControlled() ?
+        new AdmissionController(threadPool,
+            options.getAdmissionMaxUtilization(),
+            options.getAdmissionMaxConnects(),
+            options.getAdmissionRetryAfter(), rateLimiter) :
+        null;
+
+    // authentication is performed by the router for known operations only
+    Metrics metrics =
+        new Metrics(tracker, connector.getStats(), threadPool, admission);
+    RoutingHandler router = new RoutingHandler(context,
+        new BasicAuthHandler(passwordStore,
+            new CredentialCache(options.getAuthCacheSize(),
+                options.getAuthCacheTtl()), tokens), metrics, rateLimiter,
+        admission);
+    router.addRoute("send", dataPlane(new SendHandler(tracker,
+        options.isAsyncSend() ? writeExecutor : null,
+        options.getSendQueueSize(), bufferPool,
+        options.getSendReorderWindow(), options.getSendReorderSize()),
+        options.isAsyncSend() ? SendHandler::isBlocking : request -> true,
+        options.getAdmissionRetryAfter()));
+    router.addRoute("ping", new PingHandler(tracker));
+    FlushPolicy flushPolicy =
+        FlushPolicy.forName(options.getReceiveFlushPolicy());
+    router.addRoute("receive", dataPlane(
+        new ReceiveHandler(tracker, timer,
+            options.isAsyncReceive() ? readExecutor : null, writeExecutor,
+            bufferPool, flushPolicy),
+        options.isAsyncReceive() ? null : request -> true,
+        options.getAdmissionRetryAfter()));
+    router.addRoute("mux",
+        new MuxReceiveHandler(tracker, timer, readExecutor,
+            bufferPool, flushPolicy));
+    CompressionStats compressionStats = new CompressionStats();
+    router.addRoute("connect",
+        new ConnectHandler(tracker, connector,
+            options.getCompressionLevel(), compressionStats, rateLimiter,
+            admission), OperationClass.CONNECT);
+    router.addRoute("socket",
+        new TunnelSocketHandler(tracker, connector, readExecutor,
+            writeExecutor, options.getSendQueueSize(), bufferPool,
+            rateLimiter, admission), OperationClass.CONNECT);
+    router.addRoute("disconnect", new DisconnectHandler(tracker));
+    router.addRoute("auth", new AuthHandler(tokens),
+        OperationClass.ADMIN);
+    router.addRoute("status",
+        new StatusHandler(tracker, bufferPool, compressionStats,
+            connector.getStats(), rateLimiter, admission),
+        OperationClass.ADMIN);
+    router.addRoute("sessions", new SessionsHandler(tracker),
+        OperationClass.ADMIN);
+    router.addRoute("metrics", new MetricsHandler(metrics),
+        OperationClass.ADMIN);
+    handlers.addHandler(router);
 
     server.setHandler(handlers);
 
@@ -145,8 +430,10 @@ public class ProxyServer {
     http2cFactory.setInitialStreamRecvWindow(65535);
     connectionFactories.add(http2cFactory);
 
-    ServerConnector httpConnector = new ServerConnector(server, 1, -1,
-        connectionFactories.toArray(new ConnectionFactory[] {}));
+    // connector shares the pool used by the tunnel copy loops
+    ServerConnector httpConnector =
+        new ServerConnector(server, null, null, bufferPool, 1, -1,
+            connectionFactories.toArray(new ConnectionFactory[] {}));
     httpConnector.setHost(host);
     httpConnector.setPort(port);
 
@@ -171,7 +458,48 @@ public class ProxyServer {
     } catch (Exception e) {
       LOG.error("Error during shutdown", e);
     }
+    readExecutor.shutdownNow();
+    writeExecutor.shutdownNow();
+    connector.close();
+    connectExecutor.shutdownNow();
+    resolveExecutor.shutdownNow();
+    if (dataExecutor != null) {
+      dataExecutor.shutdownNow();
+    }
+    passwordStore.unwatch();
+    housekeepingExecutor.shutdownNow();
     tracker.destroy();
+    timer.destroy();
+    if (selectorPool != null) {
+      selectorPool.destroy();
+    }
+  }
+
+  private Handler dataPlane(Handler handler,
+      Predicate<HttpServletRequest> blocking, long retryAfter) {
+    // asynchronous requests already release their request thread
+    return blocking != null && dataExecutor != null ?
+        new BulkheadHandler(handler, dataExecutor, retryAfter, blocking) :
+        handler;
+  }
+
+  private static ExecutorService boundedPool(int threads, int queue,
+      String name) {
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queue)),
+            daemonThreadFactory(name));
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  private static ThreadFactory daemonThreadFactory(String name) {
+    AtomicInteger counter = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r, name + " " + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
   }
 
   /**
@@ -223,6 +551,86 @@ public class ProxyServer {
         System.getProperty(STS_MAX_AGE_PARAM, DEFAULT_STS_MAX_AGE), 10);
     boolean sendSts = (stsMaxAge > 0L);
 
+    ProxyOptions options = new ProxyOptions();
+    options.setAsyncReceive(Boolean.parseBoolean(
+        System.getProperty(RECEIVE_ASYNC_PARAM, DEFAULT_RECEIVE_ASYNC)));
+    options.setAsyncSend(Boolean.parseBoolean(
+        System.getProperty(SEND_ASYNC_PARAM, DEFAULT_SEND_ASYNC)));
+    options.setSendQueueSize(Integer.parseInt(
+        System.getProperty(SEND_QUEUE_SIZE_PARAM, DEFAULT_SEND_QUEUE_SIZE)));
+    options.setNonBlockingEndpoints(Boolean.parseBoolean(
+        System.getProperty(ENDPOINT_NIO_PARAM, DEFAULT_ENDPOINT_NIO)));
+    options.setSelectorThreads(Integer.parseInt(
+        System.getProperty(SELECTOR_THREADS_PARAM, DEFAULT_SELECTOR_THREADS)));
+    options.setAuthCacheSize(Integer.parseInt(
+        System.getProperty(AUTH_CACHE_SIZE_PARAM, DEFAULT_AUTH_CACHE_SIZE)));
+    options.setAuthCacheTtl(Long.parseLong(
+        System.getProperty(AUTH_CACHE_TTL_PARAM, DEFAULT_AUTH_CACHE_TTL)));
+    options.setAuthReloadInterval(Long.parseLong(System
+        .getProperty(AUTH_RELOAD_INTERVAL_PARAM,
+            DEFAULT_AUTH_RELOAD_INTERVAL)));
+    options.setAuthTokenTtl(Long.parseLong(
+        System.getProperty(AUTH_TOKEN_TTL_PARAM, DEFAULT_AUTH_TOKEN_TTL)));
+    options.setBufferPoolSize(Integer.parseInt(
+        System.getProperty(BUFFER_POOL_SIZE_PARAM, DEFAULT_BUFFER_POOL_SIZE)));
+    options.setReceiveFlushPolicy(
+        System.getProperty(RECEIVE_FLUSH_PARAM, DEFAULT_RECEIVE_FLUSH));
+    options.setSendReorderWindow(Integer.parseInt(System
+        .getProperty(SEND_REORDER_WINDOW_PARAM, DEFAULT_SEND_REORDER_WINDOW)));
+    options.setSendReorderSize(Integer.parseInt(
+        System.getProperty(SEND_REORDER_SIZE_PARAM, DEFAULT_SEND_REORDER_SIZE)));
+    options.setCompressionLevel(Integer.parseInt(
+        System.getProperty(COMPRESSION_LEVEL_PARAM, DEFAULT_COMPRESSION_LEVEL)));
+    options.setConnectTimeout(Long.parseLong(
+        System.getProperty(CONNECT_TIMEOUT_PARAM, DEFAULT_CONNECT_TIMEOUT)));
+    options.setConnectMaxPending(Integer.parseInt(System
+        .getProperty(CONNECT_MAX_PENDING_PARAM, DEFAULT_CONNECT_MAX_PENDING)));
+    options.setConnectThreads(Integer.parseInt(
+        System.getProperty(CONNECT_THREADS_PARAM, DEFAULT_CONNECT_THREADS)));
+    options.setConnectQueue(Integer.parseInt(
+        System.getProperty(CONNECT_QUEUE_PARAM, DEFAULT_CONNECT_QUEUE)));
+    options.setConnectAttemptDelay(Long.parseLong(System
+        .getProperty(CONNECT_ATTEMPT_DELAY_PARAM,
+            DEFAULT_CONNECT_ATTEMPT_DELAY)));
+    options.setWarmDestinations(System
+        .getProperty(WARM_DESTINATIONS_PARAM, DEFAULT_WARM_DESTINATIONS));
+    options.setWarmSize(Integer.parseInt(
+        System.getProperty(WARM_SIZE_PARAM, DEFAULT_WARM_SIZE)));
+    options.setWarmMaxIdle(Long.parseLong(
+        System.getProperty(WARM_MAX_IDLE_PARAM, DEFAULT_WARM_MAX_IDLE)));
+    options.setEventCapacity(Integer.parseInt(
+        System.getProperty(EVENT_CAPACITY_PARAM, DEFAULT_EVENT_CAPACITY)));
+    options.setRateLimited(Boolean.parseBoolean(
+        System.getProperty(LIMITS_ENABLED_PARAM, DEFAULT_LIMITS_ENABLED)));
+    options.setDefaultLimits(
+        System.getProperty(LIMITS_DEFAULT_PARAM, DEFAULT_LIMITS_DEFAULT));
+    options.setRequestThreads(Integer.parseInt(
+        System.getProperty(REQUEST_THREADS_PARAM, DEFAULT_REQUEST_THREADS)));
+    options.setDataThreads(Integer.parseInt(
+        System.getProperty(DATA_THREADS_PARAM, DEFAULT_DATA_THREADS)));
+    options.setVirtualThreads(Boolean.parseBoolean(
+        System.getProperty(VIRTUAL_THREADS_PARAM, DEFAULT_VIRTUAL_THREADS)));
+    options.setAdmissionControlled(Boolean.parseBoolean(System
+        .getProperty(ADMISSION_ENABLED_PARAM, DEFAULT_ADMISSION_ENABLED)));
+    options.setAdmissionMaxUtilization(Double.parseDouble(System
+        .getProperty(ADMISSION_MAX_UTILIZATION_PARAM,
+            DEFAULT_ADMISSION_MAX_UTILIZATION)));
+    options.setAdmissionMaxConnects(Integer.parseInt(System
+        .getProperty(ADMISSION_MAX_CONNECTS_PARAM,
+            DEFAULT_ADMISSION_MAX_CONNECTS)));
+    options.setAdmissionRetryAfter(Long.parseLong(System
+        .getProperty(ADMISSION_RETRY_AFTER_PARAM,
+            DEFAULT_ADMISSION_RETRY_AFTER)));
+    options.setResolveThreads(Integer.parseInt(
+        System.getProperty(RESOLVE_THREADS_PARAM, DEFAULT_RESOLVE_THREADS)));
+    options.setResolveTimeout(Long.parseLong(
+        System.getProperty(RESOLVE_TIMEOUT_PARAM, DEFAULT_RESOLVE_TIMEOUT)));
+    options.setResolveTtl(Long.parseLong(
+        System.getProperty(RESOLVE_TTL_PARAM, DEFAULT_RESOLVE_TTL)));
+    options.setResolveNegativeTtl(Long.parseLong(System
+        .getProperty(RESOLVE_NEGATIVE_TTL_PARAM,
+            DEFAULT_RESOLVE_NEGATIVE_TTL)));
+
     File passwdFile = new File(passwd);
     if (!passwdFile.exists()) {
       System.err.println("Error: Password file " + passwdFile.getAbsolutePath()
@@ -232,7 +640,7 @@ public class ProxyServer {
 
     final ProxyServer proxy =
         new ProxyServer(host, port, context, passwdFile, forwarded, forceHttps,
-            sendSts, stsMaxAge);
+            sendSts, stsMaxAge, options);
 
     Runtime.getRuntime().addShutdownHook(new Thread(proxy::stop));
     proxy.start();
@@ -271,5 +679,115 @@ public class ProxyServer {
             + DEFAULT_HTTPS_FORCED + "]");
     System.err.println("    " + STS_MAX_AGE_PARAM
         + " -- max age for Strict-Transport-Security header [0 (disabled)]");
+    System.err.println("    " + RECEIVE_ASYNC_PARAM
+        + " -- service receive streams without holding request threads ["
+        + DEFAULT_RECEIVE_ASYNC + "]");
+    System.err.println("    " + SEND_ASYNC_PARAM
+        + " -- handle sends without holding request threads ["
+        + DEFAULT_SEND_ASYNC + "]");
+    System.err.println("    " + SEND_QUEUE_SIZE_PARAM
+        + " -- bytes queued toward a destination by asynchronous sends ["
+        + DEFAULT_SEND_QUEUE_SIZE + "]");
+    System.err.println("    " + ENDPOINT_NIO_PARAM
+        + " -- use non-blocking channels for destination connections ["
+        + DEFAULT_ENDPOINT_NIO + "]");
+    System.err.println("    " + SELECTOR_THREADS_PARAM
+        + " -- selector threads for non-blocking connections ["
+        + DEFAULT_SELECTOR_THREADS + "]");
+    System.err.println("    " + AUTH_CACHE_SIZE_PARAM
+        + " -- verified credentials to cache, 0 to disable ["
+        + DEFAULT_AUTH_CACHE_SIZE + "]");
+    System.err.println("    " + AUTH_CACHE_TTL_PARAM
+        + " -- milliseconds a verified credential stays cached ["
+        + DEFAULT_AUTH_CACHE_TTL + "]");
+    System.err.println("    " + AUTH_RELOAD_INTERVAL_PARAM
+        + " -- milliseconds between password file checks, 0 to disable ["
+        + DEFAULT_AUTH_RELOAD_INTERVAL + "]");
+    System.err.println("    " + AUTH_TOKEN_TTL_PARAM
+        + " -- milliseconds an issued session token is valid, 0 to disable ["
+        + DEFAULT_AUTH_TOKEN_TTL + "]");
+    System.err.println("    " + BUFFER_POOL_SIZE_PARAM
+        + " -- free buffers kept per buffer size, 0 to disable pooling ["
+        + DEFAULT_BUFFER_POOL_SIZE + "]");
+    System.err.println("    " + RECEIVE_FLUSH_PARAM
+        + " -- receive flush policy, interactive or bulk ["
+        + DEFAULT_RECEIVE_FLUSH + "]");
+    System.err.println("    " + SEND_REORDER_WINDOW_PARAM
+        + " -- numbered sends held ahead of the next expected send ["
+        + DEFAULT_SEND_REORDER_WINDOW + "]");
+    System.err.println("    " + SEND_REORDER_SIZE_PARAM
+        + " -- bytes held by numbered sends per connection ["
+        + DEFAULT_SEND_REORDER_SIZE + "]");
+    System.err.println("    " + COMPRESSION_LEVEL_PARAM
+        + " -- deflate level for compressed tunnels, 0 to refuse ["
+        + DEFAULT_COMPRESSION_LEVEL + "]");
+    System.err.println("    " + CONNECT_TIMEOUT_PARAM
+        + " -- milliseconds allowed for a destination connection ["
+        + DEFAULT_CONNECT_TIMEOUT + "]");
+    System.err.println("    " + CONNECT_MAX_PENDING_PARAM
+        + " -- destination connections which may be pending at once ["
+        + DEFAULT_CONNECT_MAX_PENDING + "]");
+    System.err.println("    " + CONNECT_THREADS_PARAM
+        + " -- threads for blocking connections ["
+        + DEFAULT_CONNECT_THREADS + "]");
+    System.err.println("    " + CONNECT_QUEUE_PARAM
+        + " -- blocking connections or name lookups which may wait for a "
+        + "thread [" + DEFAULT_CONNECT_QUEUE + "]");
+    System.err.println("    " + CONNECT_ATTEMPT_DELAY_PARAM
+        + " -- milliseconds before trying a destination's next address ["
+        + DEFAULT_CONNECT_ATTEMPT_DELAY + "]");
+    System.err.println("    " + WARM_DESTINATIONS_PARAM
+        + " -- comma-separated host:port destinations to keep connections"
+        + " open to [" + DEFAULT_WARM_DESTINATIONS + "]");
+    System.err.println("    " + WARM_SIZE_PARAM
+        + " -- idle connections kept open to each warm destination ["
+        + DEFAULT_WARM_SIZE + "]");
+    System.err.println("    " + WARM_MAX_IDLE_PARAM
+        + " -- milliseconds before an idle warm connection is replaced ["
+        + DEFAULT_WARM_MAX_IDLE + "]");
+    System.err.println("    " + EVENT_CAPACITY_PARAM
+        + " -- number of recent tunnel events retained for status ["
+        + DEFAULT_EVENT_CAPACITY + "]");
+    System.err.println("    " + LIMITS_ENABLED_PARAM
+        + " -- apply rate limits given in the password file ["
+        + DEFAULT_LIMITS_ENABLED + "]");
+    System.err.println("    " + LIMITS_DEFAULT_PARAM
+        + " -- rate limits for users with none of their own, e.g."
+        + " send=1048576,receive=1048576,requests=50 ["
+        + DEFAULT_LIMITS_DEFAULT + "]");
+    System.err.println("    " + REQUEST_THREADS_PARAM
+        + " -- maximum threads handling control requests such as ping ["
+        + DEFAULT_REQUEST_THREADS + "]");
+    System.err.println("    " + DATA_THREADS_PARAM
+        + " -- maximum threads handling blocking sends and receives, or 0 to"
+        + " share the request threads [" + DEFAULT_DATA_THREADS + "]");
+    System.err.println("    " + VIRTUAL_THREADS_PARAM
+        + " -- run blocking sends and receives, their keepalives and"
+        + " endpoint I/O on virtual threads (Java 21 or later) ["
+        + DEFAULT_VIRTUAL_THREADS + "]");
+    System.err.println("    " + ADMISSION_ENABLED_PARAM
+        + " -- refuse new tunnels while the server is overloaded; the"
+        + " admission.* settings below only apply once this is enabled ["
+        + DEFAULT_ADMISSION_ENABLED + "]");
+    System.err.println("    " + ADMISSION_MAX_UTILIZATION_PARAM
+        + " -- fraction of request threads busy or queued before new tunnels"
+        + " are refused [" + DEFAULT_ADMISSION_MAX_UTILIZATION + "]");
+    System.err.println("    " + ADMISSION_MAX_CONNECTS_PARAM
+        + " -- requests opening new tunnels which may be in flight at once ["
+        + DEFAULT_ADMISSION_MAX_CONNECTS + "]");
+    System.err.println("    " + ADMISSION_RETRY_AFTER_PARAM
+        + " -- seconds after which refused clients are told to retry ["
+        + DEFAULT_ADMISSION_RETRY_AFTER + "]");
+    System.err.println("    " + RESOLVE_THREADS_PARAM
+        + " -- threads for name lookups [" + DEFAULT_RESOLVE_THREADS + "]");
+    System.err.println("    " + RESOLVE_TIMEOUT_PARAM
+        + " -- milliseconds allowed for a name lookup ["
+        + DEFAULT_RESOLVE_TIMEOUT + "]");
+    System.err.println("    " + RESOLVE_TTL_PARAM
+        + " -- milliseconds a successful name lookup is cached ["
+        + DEFAULT_RESOLVE_TTL + "]");
+    System.err.println("    " + RESOLVE_NEGATIVE_TTL_PARAM
+        + " -- milliseconds a failed name lookup is cached ["
+        + DEFAULT_RESOLVE_NEGATIVE_TTL + "]");
   }
 }
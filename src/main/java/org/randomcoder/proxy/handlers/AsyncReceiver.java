@@ -0,0 +1,349 @@
+package org.randomcoder.proxy.handlers;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.Compression;
+import org.randomcoder.proxy.support.EndpointReader;
+import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.FlushPolicy;
+import org.randomcoder.proxy.support.HashedTimerWheel;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.Session;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking receive stream. Upstream data is read one chunk at a time and
+ * only written to the response when the container reports that the output is
+ * ready, so no request thread is held while the tunnel is idle. Uses the same
+ * length-prefixed framing as the blocking receive path, and coalesces frames
+ * according to the same {@link FlushPolicy}. Frames of tunnels which
+ * negotiated compression are compressed in the same way too. On rate-limited
+ * tunnels, the next read is delayed for as long as the limits require.
+ */
+public class AsyncReceiver implements WriteListener, EndpointReader.Listener {
+  private static final Logger logger =
+      LogManager.getLogger(AsyncReceiver.class);
+
+  private static final byte[] PREAMBLE =
+      "SENDING\r\n".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEEPALIVE = new byte[4];
+  private static final int HEADER_SIZE = 4;
+  private static final int BUFFER_SIZE = 32768;
+  private static final int DEFLATE_BUFFER_SIZE =
+      HEADER_SIZE + Compression.maxDeflatedSize(BUFFER_SIZE - HEADER_SIZE);
+  private static final int COMPRESSED = 0x80000000;
+  private static final long KEEPALIVE_INTERVAL = 30000L;
+
+  private final Session session;
+  private final String id;
+  private final String user;
+  private final EndpointTracker tracker;
+  private final AsyncContext context;
+  private final ServletOutputStream out;
+  private final EndpointReader reader;
+  private final HashedTimerWheel timer;
+  private final BufferPool pool;
+  private final FlushPolicy flushPolicy;
+  private final ByteBuffer buffer;
+  private final byte[] buf;
+  private final Compression compression;
+  private final ByteBuffer deflateBuffer;
+  private final byte[] deflateBuf;
+  private final RateLimiter.Tunnel limiter;
+
+  // all remaining state is guarded by this
+  private byte[] frame;
+  private boolean preambleSent = false;
+  private int pending = 0;
+  private boolean flushNeeded = false;
+  private boolean flushDue = false;
+  private boolean moreAvailable = false;
+  private int unflushed = 0;
+  private boolean reading = false;
+  private boolean paused = false;
+  private boolean idle = true;
+  private boolean keepaliveNeeded = false;
+  private boolean ended = false;
+  private boolean completed = false;
+  private HashedTimerWheel.Timeout keepaliveTimeout;
+  private HashedTimerWheel.Timeout flushTimeout;
+
+  /**
+   * Creates a new asynchronous receiver.
+   *
+   * @param session   session to receive from
+   * @param user      user which owns the request (for logging)
+   * @param tracker   endpoint tracker
+   * @param context   async context of the receive request
+   * @param executor  executor used to read from the endpoint
+   * @param timer     timer used for keepalives
+   * @param pool        pool from which the frame buffer is borrowed
+   * @param flushPolicy policy deciding when coalesced frames are flushed
+   * @throws IOException if the response cannot be obtained
+   */
+  public AsyncReceiver(Session session, String user, EndpointTracker tracker,
+      AsyncContext context, Executor executor, HashedTimerWheel timer,
+      BufferPool pool, FlushPolicy flushPolicy) throws IOException {
+    this.session = session;
+    this.id = session.getId();
+    this.user = user;
+    this.tracker = tracker;
+    this.context = context;
+    this.out = context.getResponse().getOutputStream();
+    this.reader = new EndpointReader(session.getEndpoint(), executor, this);
+    this.timer = timer;
+    this.pool = pool;
+    this.flushPolicy = flushPolicy;
+    this.buffer = pool.acquire(BUFFER_SIZE, false);
+    this.buf = buffer.array();
+    this.compression = session.getCompression();
+    this.deflateBuffer = compression == null ?
+        null :
+        pool.acquire(DEFLATE_BUFFER_SIZE, false);
+    this.deflateBuf = deflateBuffer == null ? null : deflateBuffer.array();
+    this.limiter = session.getLimiter();
+  }
+
+  /**
+   * Starts the receiver. The container will call
+   * {@link #onWritePossible()} once the response can be written.
+   */
+  public void start() {
+    synchronized (this) {
+      scheduleKeepalive();
+    }
+    out.setWriteListener(this);
+  }
+
+  @Override public synchronized void onWritePossible() throws IOException {
+    drain();
+  }
+
+  @Override public synchronized void onError(Throwable t) {
+    logger.debug(
+        "Receive [" + id + "]: user=" + user + ", error=" + t.getMessage());
+    if (!ended) {
+      ended = true;
+      tracker.receiveError(id);
+    }
+    complete();
+  }
+
+  @Override public synchronized void onData(byte[] data, int offset,
+      int len) {
+    reading = false;
+    if (completed) {
+      release();
+      return;
+    }
+    idle = false;
+
+    int d = -1;
+    if (compression != null) {
+      try {
+        d = compression.deflate(buf, HEADER_SIZE, len, deflateBuf, HEADER_SIZE);
+      } catch (IOException e) {
+        onError(e);
+        return;
+      }
+    }
+    frame = d >= 0 ? deflateBuf : buf;
+    int header = d >= 0 ? d | COMPRESSED : len;
+    frame[0] = (byte) (header >>> 24);
+    frame[1] = (byte) (header >>> 16);
+    frame[2] = (byte) (header >>> 8);
+    frame[3] = (byte) header;
+    pending = HEADER_SIZE + (d >= 0 ? d : len);
+    moreAvailable = available() > 0;
+
+    if (logger.isDebugEnabled())
+      logger.debug("Wrote " + len + " bytes");
+    session.addBytesReceived(len);
+
+    if (!session.refresh()) {
+      ended = true;
+      tracker.receiveComplete(id);
+    }
+    long pause = limiter == null ? 0L : limiter.receive(len);
+    if (pause > 0L) {
+      paused = true;
+      limiter.resume(this::unpause, pause);
+    }
+    drainQuietly();
+  }
+
+  @Override public synchronized void onEnd() {
+    reading = false;
+    if (completed) {
+      release();
+      return;
+    }
+    if (!ended) {
+      ended = true;
+      tracker.receiveComplete(id);
+    }
+    drainQuietly();
+  }
+
+  @Override public synchronized void onError(IOException e) {
+    reading = false;
+    if (completed) {
+      release();
+      return;
+    }
+    if (!ended) {
+      logger.debug(
+          "Receive [" + id + "]: user=" + user + ", error=" + e.getMessage());
+      ended = true;
+      tracker.receiveError(id);
+    }
+    drainQuietly();
+  }
+
+  private void drainQuietly() {
+    try {
+      drain();
+    } catch (IOException e) {
+      onError((Throwable) e);
+    }
+  }
+
+  /**
+   * Writes as much as the output will accept without blocking. Every write
+   * and flush must be preceded by a successful call to
+   * {@link ServletOutputStream#isReady()}; a <code>false</code> result
+   * re-arms {@link #onWritePossible()}.
+   */
+  private void drain() throws IOException {
+    while (!completed) {
+      if (!out.isReady()) {
+        return;
+      }
+      if (!preambleSent) {
+        // must send something here so that server will actually flush the
+        // result
+        out.write(PREAMBLE);
+        preambleSent = true;
+        flushNeeded = true;
+        flushDue = true;
+      } else if (pending > 0) {
+        out.write(frame, 0, pending);
+        unflushed += pending;
+        pending = 0;
+        flushNeeded = true;
+      } else if (keepaliveNeeded) {
+        out.write(KEEPALIVE);
+        keepaliveNeeded = false;
+        flushNeeded = true;
+        flushDue = true;
+      } else if (flushNeeded && (flushDue || ended || flushPolicy
+          .isFlushRequired(unflushed, moreAvailable))) {
+        out.flush();
+        flushNeeded = false;
+        flushDue = false;
+        unflushed = 0;
+        cancelFlush();
+      } else if (ended) {
+        complete();
+      } else {
+        if (flushNeeded && flushTimeout == null
+            && flushPolicy.getDelay() > 0L) {
+          flushTimeout = timer.schedule(this::flushExpired,
+              flushPolicy.getDelay(), TimeUnit.MILLISECONDS);
+        }
+        if (!reading && !paused) {
+          // previous write has completed, so the buffer may be reused
+          reading = true;
+          reader.read(buf, HEADER_SIZE, BUFFER_SIZE - HEADER_SIZE);
+        }
+        return;
+      }
+    }
+  }
+
+  private void complete() {
+    if (completed) {
+      return;
+    }
+    completed = true;
+    if (keepaliveTimeout != null) {
+      keepaliveTimeout.cancel();
+      keepaliveTimeout = null;
+    }
+    cancelFlush();
+    if (!reading) {
+      // otherwise released when the outstanding read calls back
+      release();
+    }
+    try {
+      context.complete();
+    } catch (Throwable ignored) {
+    }
+  }
+
+  private void release() {
+    pool.release(buffer);
+    if (deflateBuffer != null) {
+      pool.release(deflateBuffer);
+    }
+  }
+
+  private void cancelFlush() {
+    if (flushTimeout != null) {
+      flushTimeout.cancel();
+      flushTimeout = null;
+    }
+  }
+
+  private synchronized void unpause() {
+    paused = false;
+    if (!completed) {
+      drainQuietly();
+    }
+  }
+
+  private synchronized void flushExpired() {
+    flushTimeout = null;
+    if (completed || !flushNeeded) {
+      return;
+    }
+    flushDue = true;
+    drainQuietly();
+  }
+
+  private int available() {
+    try {
+      return session.getEndpoint().getInputStream().available();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private void scheduleKeepalive() {
+    idle = true;
+    keepaliveTimeout = timer
+        .schedule(this::keepalive, KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void keepalive() {
+    if (completed) {
+      return;
+    }
+    if (idle) {
+      keepaliveNeeded = true;
+      drainQuietly();
+    }
+    if (!completed) {
+      scheduleKeepalive();
+    }
+  }
+}
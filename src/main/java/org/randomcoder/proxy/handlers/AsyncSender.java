@@ -0,0 +1,216 @@
+package org.randomcoder.proxy.handlers;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.EndpointWriter;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.Session;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+
+/**
+ * Non-blocking send request. The request body is read only while the
+ * container reports data available and the upstream queue has space, so
+ * neither a slow client nor a slow destination holds a request thread. The
+ * response is sent once every byte of the body has been committed to the
+ * endpoint. On rate-limited tunnels, reading also pauses for as long as the
+ * limits require after each chunk.
+ */
+public class AsyncSender
+    implements ReadListener, EndpointWriter.CommitListener {
+  private static final Logger logger = LogManager.getLogger(AsyncSender.class);
+
+  private static final int CHUNK_SIZE = 32768;
+
+  private final Session session;
+  private final String id;
+  private final String user;
+  private final AsyncContext context;
+  private final ServletInputStream in;
+  private final EndpointWriter writer;
+  private final BufferPool pool;
+  private final ByteBuffer buffer;
+  private final byte[] buf;
+  private final RateLimiter.Tunnel limiter;
+
+  // all remaining state is guarded by this
+  private int bytes = 0;
+  private boolean paused = false;
+  private boolean eof = false;
+  private boolean completed = false;
+
+  /**
+   * Creates a new asynchronous sender.
+   *
+   * @param session session to send to
+   * @param user    user which owns the request (for logging)
+   * @param context async context of the send request
+   * @param writer  writer for the endpoint, closed once the send completes
+   * @param pool    pool from which the copy buffer is borrowed
+   * @throws IOException if the request cannot be read
+   */
+  public AsyncSender(Session session, String user, AsyncContext context,
+      EndpointWriter writer, BufferPool pool) throws IOException {
+    this.session = session;
+    this.id = session.getId();
+    this.user = user;
+    this.context = context;
+    this.in = context.getRequest().getInputStream();
+    this.writer = writer;
+    this.pool = pool;
+    this.buffer = pool.acquire(CHUNK_SIZE, false);
+    this.buf = buffer.array();
+    this.limiter = session.getLimiter();
+  }
+
+  /**
+   * Starts the sender. The container will call {@link #onDataAvailable()}
+   * once the request body can be read.
+   */
+  public void start() {
+    in.setReadListener(this);
+  }
+
+  @Override public void onDataAvailable() {
+    pump();
+  }
+
+  @Override public void onAllDataRead() {
+    long position;
+    synchronized (this) {
+      eof = true;
+      position = writer.getAccepted();
+    }
+    writer.onCommitted(position, this);
+  }
+
+  @Override public void onError(Throwable t) {
+    logger.debug(
+        "Send [" + id + "]: user=" + user + ", error=" + t.getMessage());
+    fail();
+  }
+
+  @Override public void onCommitted() {
+    int total;
+    synchronized (this) {
+      total = bytes;
+    }
+    respond(total);
+  }
+
+  @Override public void onFailed(IOException e) {
+    onError(e);
+  }
+
+  /**
+   * Copies as much of the request body as the upstream queue will accept. Runs
+   * on a container thread when data arrives, on a writer thread when queue
+   * space is freed, or on the timer thread when a pause ends.
+   */
+  private synchronized void pump() {
+    try {
+      while (!eof && !completed && !paused) {
+        int space = writer.available();
+        if (space == 0) {
+          writer.onSpaceAvailable(this::pump);
+          return;
+        }
+        if (!in.isReady()) {
+          return;
+        }
+        int c = in.read(buf, 0, Math.min(space, CHUNK_SIZE));
+        if (c < 0) {
+          return;
+        }
+        if (c > 0) {
+          writer.offer(buf, 0, c);
+          bytes += c;
+          session.addBytesSent(c);
+          if (!session.refresh()) {
+            eof = true;
+            writer.onCommitted(writer.getAccepted(), this);
+          }
+          long pause = limiter == null ? 0L : limiter.send(c);
+          if (pause > 0L) {
+            // the container only calls back once isReady() has returned
+            // false, so the read resumes from here
+            paused = true;
+            limiter.resume(this::unpause, pause);
+          }
+        }
+      }
+    } catch (IOException e) {
+      onError(e);
+    }
+  }
+
+  private synchronized void unpause() {
+    paused = false;
+    pump();
+  }
+
+  private void respond(int total) {
+    synchronized (this) {
+      if (completed) {
+        return;
+      }
+      completed = true;
+      // pump() holds this lock while using the buffer
+      pool.release(buffer);
+    }
+    writer.close();
+    HttpServletResponse response = (HttpServletResponse) context.getResponse();
+    try {
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType("text/plain");
+
+      DecimalFormat df = new DecimalFormat("##########");
+      byte[] message = ("RECEIVED " + df.format(total) + "\r\n")
+          .getBytes(StandardCharsets.UTF_8);
+      response.setContentLength(message.length);
+
+      ServletOutputStream out = response.getOutputStream();
+      out.write(message);
+
+      if (logger.isDebugEnabled())
+        logger.debug(
+            "Send [" + id + "]: user=" + user + ", received " + total
+                + " bytes");
+    } catch (IOException e) {
+      logger.debug(
+          "Send [" + id + "]: user=" + user + ", error=" + e.getMessage());
+    } finally {
+      context.complete();
+    }
+  }
+
+  private void fail() {
+    synchronized (this) {
+      if (completed) {
+        return;
+      }
+      completed = true;
+      // pump() holds this lock while using the buffer
+      pool.release(buffer);
+    }
+    writer.close();
+    HttpServletResponse response = (HttpServletResponse) context.getResponse();
+    try {
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      }
+    } catch (Throwable ignored) {
+    } finally {
+      context.complete();
+    }
+  }
+}
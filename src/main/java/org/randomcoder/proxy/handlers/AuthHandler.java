@@ -5,48 +5,68 @@ import org.apache.log4j.Logger;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.randomcoder.proxy.support.CurrentUser;
+import org.randomcoder.proxy.support.TokenService;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Authentication verification handler. Sends OK if authentication succeeds,
  * which should happen if this handler is called after {@link BasicAuthHandler}.
+ * If the <code>token</code> parameter is set to <code>true</code> and tokens
+ * are enabled, the response is <code>OK &lt;token&gt;</code>, and the token
+ * may be presented as a bearer credential on subsequent requests in place of
+ * the user's password. Tokens are only issued to requests authenticated with
+ * the user's password, so a token cannot be used to obtain another and
+ * outlive its expiry.
  */
 public class AuthHandler extends AbstractHandler {
   private static final Logger logger = LogManager.getLogger(AuthHandler.class);
 
-  private final String path;
+  private final TokenService tokens;
 
   /**
    * Creates a new authentication handler.
    *
-   * @param path base URL
+   * @param tokens token service, or <code>null</code> to disable tokens
    */
-  public AuthHandler(String path) {
-    this.path = path + "/auth";
+  public AuthHandler(TokenService tokens) {
+    this.tokens = tokens;
   }
 
   @Override public void handle(String target, Request baseRequest,
       HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
-    if (!path.equals(request.getRequestURI())) {
-      return;
-    }
+    String user = CurrentUser.get();
 
     if (logger.isDebugEnabled())
-      logger.debug("Auth: user=" + CurrentUser.get());
+      logger.debug("Auth: user=" + user);
+
+    String message = "OK\r\n";
+    if (tokens != null && Boolean.parseBoolean(request.getParameter("token"))) {
+      String token = BasicAuthHandler.BASIC.equals(
+          request.getAttribute(BasicAuthHandler.AUTH_METHOD_ATTRIBUTE)) ?
+          tokens.issue(user) :
+          null;
+      if (token == null) {
+        response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        message = "ERROR Tokens require password authentication\r\n";
+      } else {
+        message = "OK " + token + "\r\n";
+      }
+    }
 
     response.setContentType("text/plain");
-    response.setContentLength(4);
+    response.setContentLength(message.getBytes(StandardCharsets.UTF_8).length);
 
     PrintWriter out = null;
     try {
       out = response.getWriter();
-      out.print("OK\r\n");
+      out.print(message);
     } finally {
       try {
         if (out != null)
@@ -6,74 +6,73 @@ import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.B64Code;
 import org.eclipse.jetty.util.security.UnixCrypt;
+import org.randomcoder.proxy.support.CredentialCache;
 import org.randomcoder.proxy.support.CurrentUser;
+import org.randomcoder.proxy.support.PasswordStore;
+import org.randomcoder.proxy.support.TokenService;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Locale;
-import java.util.Map;
 
 /**
- * BASIC authentication handler.
+ * BASIC authentication handler. Credentials which have been verified are
+ * cached, so steady-state requests cost a digest and a map lookup rather than
+ * a password hash. If a token service is configured, bearer tokens issued by
+ * {@link AuthHandler} are also accepted, at the cost of a single HMAC.
+ * <p>
+ * The method used to authenticate each request is recorded in the
+ * {@link #AUTH_METHOD_ATTRIBUTE} request attribute.
  */
 public class BasicAuthHandler extends AbstractHandler {
+  /**
+   * Request attribute holding the method used to authenticate the request,
+   * either {@link #BASIC} or {@link #BEARER}.
+   */
+  public static final String AUTH_METHOD_ATTRIBUTE =
+      "org.randomcoder.proxy.authMethod";
+
+  /**
+   * Authentication with a user name and password.
+   */
+  public static final String BASIC = "Basic";
+
+  /**
+   * Authentication with a bearer token.
+   */
+  public static final String BEARER = "Bearer";
+
   private static final Logger logger =
       LogManager.getLogger(BasicAuthHandler.class);
 
   private static final String REALM = "Proxy";
 
-  private final Map<String, String> userMap;
+  private final PasswordStore store;
+  private final CredentialCache cache;
+  private final TokenService tokens;
 
   /**
    * Creates a new BASIC auth handler.
    *
-   * @param passwdFile password file
-   * @throws IOException if an error occurs
+   * @param store  user store
+   * @param cache  cache of verified credentials
+   * @param tokens token service, or <code>null</code> to accept BASIC only
    */
-  public BasicAuthHandler(File passwdFile) throws IOException {
-    Map<String, String> map = new HashMap<String, String>();
-
-    FileReader fr = null;
-    BufferedReader br = null;
-    try {
-      fr = new FileReader(passwdFile);
-      br = new BufferedReader(fr);
-      String line = null;
-      while ((line = br.readLine()) != null) {
-        String[] parts = line.split(":");
-        if (parts.length >= 2) {
-          map.put(parts[0], parts[1]);
-        }
-      }
-    } finally {
-      if (br != null)
-        try {
-          br.close();
-        } catch (Exception ignored) {
-        }
-      if (fr != null)
-        try {
-          fr.close();
-        } catch (Exception ignored) {
-        }
-    }
-
-    logger.info("Initialized user store with " + map.size() + " entries");
-    userMap = Collections.unmodifiableMap(map);
+  public BasicAuthHandler(PasswordStore store, CredentialCache cache,
+      TokenService tokens) {
+    this.store = store;
+    this.cache = cache;
+    this.tokens = tokens;
+    store.addChangeListener(cache::invalidate);
   }
 
   @Override public void handle(String target, Request baseRequest,
       HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
-    String username = getUser(request.getHeader("Authorization"));
+    String username = getUser(request);
     if (username == null) {
       CurrentUser.logout();
       response.setHeader("WWW-Authenticate", "Basic realm=\"" + REALM + "\"");
@@ -84,12 +83,28 @@ public class BasicAuthHandler extends AbstractHandler {
     CurrentUser.login(username);
   }
 
-  private String getUser(String auth) {
+  private String getUser(HttpServletRequest request) {
     try {
+      String auth = request.getHeader("Authorization");
       if (auth == null) {
         return null;
       }
 
+      if (tokens != null && auth.regionMatches(true, 0, "bearer ", 0, 7)) {
+        // also fails once the user's password has changed
+        String user = tokens.verify(auth.substring(7).trim());
+        if (user != null) {
+          request.setAttribute(AUTH_METHOD_ATTRIBUTE, BEARER);
+        }
+        return user;
+      }
+
+      String cached = cache.get(auth, store);
+      if (cached != null) {
+        request.setAttribute(AUTH_METHOD_ATTRIBUTE, BASIC);
+        return cached;
+      }
+
       String[] parts = auth.split(" ");
       if (parts.length < 2) {
         return null;
@@ -105,7 +120,7 @@ public class BasicAuthHandler extends AbstractHandler {
         return null;
       }
 
-      String hash = userMap.get(userpass[0]);
+      String hash = store.getHash(userpass[0]);
       if (hash == null) {
         return null;
       }
@@ -113,6 +128,8 @@ public class BasicAuthHandler extends AbstractHandler {
       if (!(hash.equals(UnixCrypt.crypt(userpass[1], hash)))) {
         return null;
       }
+      cache.put(auth, userpass[0], hash);
+      request.setAttribute(AUTH_METHOD_ATTRIBUTE, BASIC);
       return userpass[0];
     } catch (Exception e) {
       logger.warn("Invalid auth token received", e);
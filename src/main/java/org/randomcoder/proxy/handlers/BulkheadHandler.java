@@ -0,0 +1,125 @@
+package org.randomcoder.proxy.handlers;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.randomcoder.proxy.support.CurrentUser;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * Handler which runs another, blocking handler on a separate executor, so that
+ * long-running streams cannot exhaust the request thread pool.
+ * <p>
+ * The request is made asynchronous and handed to the executor, and the request
+ * thread returns to the pool at once. The wrapped handler then runs as it
+ * would on a request thread, with the current user carried across, and the
+ * request is completed when it returns. The wrapped handler must not start
+ * asynchronous processing itself.
+ * <p>
+ * Requests which the wrapped handler serves without blocking may be passed
+ * straight through on the request thread.
+ * <p>
+ * If the executor refuses the request, it is answered with a 503 status and a
+ * <code>Retry-After</code> header.
+ */
+public class BulkheadHandler extends AbstractHandler {
+  private static final Logger logger =
+      LogManager.getLogger(BulkheadHandler.class);
+
+  private final Handler handler;
+  private final Executor executor;
+  private final long retryAfter;
+  private final Predicate<HttpServletRequest> blocking;
+
+  /**
+   * Creates a new bulkhead handler.
+   *
+   * @param handler    blocking handler to run
+   * @param executor   executor on which the handler runs
+   * @param retryAfter time in seconds after which clients refused by the
+   *                   executor are told to retry
+   * @param blocking     selects the requests which are run on the executor;
+   *                   others are handled on the request thread
+   */
+  public BulkheadHandler(Handler handler, Executor executor, long retryAfter,
+      Predicate<HttpServletRequest> blocking) {
+    this.handler = handler;
+    this.executor = executor;
+    this.retryAfter = retryAfter;
+    this.blocking = blocking;
+    addBean(handler);
+  }
+
+  @Override public void setServer(Server server) {
+    super.setServer(server);
+    handler.setServer(server);
+  }
+
+  @Override public void handle(String target, Request baseRequest,
+      HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    if (!blocking.test(request)) {
+      handler.handle(target, baseRequest, request, response);
+      return;
+    }
+
+    String user = CurrentUser.get();
+    AsyncContext context = request.startAsync();
+    context.setTimeout(0L);
+    baseRequest.setHandled(true);
+
+    try {
+      executor.execute(() -> {
+        CurrentUser.login(user);
+        try {
+          handler.handle(target, baseRequest, request, response);
+        } catch (Throwable e) {
+          logger.debug("Error handling " + request.getRequestURI(), e);
+          if (!response.isCommitted()) {
+            try {
+              response.sendError(
+                  HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } catch (Throwable ignored) {
+            }
+          }
+        } finally {
+          CurrentUser.logout();
+          context.complete();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      busy(response);
+      context.complete();
+    }
+  }
+
+  private void busy(HttpServletResponse response) throws IOException {
+    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    response.setContentType("text/plain");
+    response.setHeader("Retry-After", Long.toString(Math.max(1L, retryAfter)));
+
+    PrintWriter out = null;
+    try {
+      out = response.getWriter();
+      out.print("ERROR Server busy\r\n");
+    } finally {
+      try {
+        if (out != null)
+          out.close();
+      } catch (Throwable ignored) {
+      }
+    }
+  }
+}
@@ -2,71 +2,190 @@ package org.randomcoder.proxy.handlers;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.randomcoder.proxy.support.AdmissionController;
+import org.randomcoder.proxy.support.Compression;
+import org.randomcoder.proxy.support.CompressionStats;
 import org.randomcoder.proxy.support.CurrentUser;
 import org.randomcoder.proxy.support.Endpoint;
+import org.randomcoder.proxy.support.EndpointConnector;
 import org.randomcoder.proxy.support.EndpointTracker;
-import org.randomcoder.proxy.support.SocketEndpoint;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.Session;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Handler which establishes a new tunneled connection.
+ * <p>
+ * The request thread is released while the destination is resolved and
+ * connected by an {@link EndpointConnector}, and the response is written once
+ * the connection has been made or has failed. A connection refused because
+ * too many are already pending is answered with a 503 status.
+ * <p>
+ * A client may ask for the tunnel's data to be compressed by adding a
+ * <code>compress=deflate</code> parameter. If compression is enabled, the
+ * method is echoed after the session id in the response, and the tunnel's
+ * sends and receive frames may then be compressed; see {@link Compression}.
+ * Otherwise the response is the same as for an uncompressed tunnel.
+ * <p>
+ * When an {@link AdmissionController} is supplied, a user who already has as
+ * many tunnels open as their quota allows is answered with a 429 status.
  */
 public class ConnectHandler extends AbstractHandler {
   private static final Logger logger =
       LogManager.getLogger(ConnectHandler.class);
 
-  private final String path;
   private final EndpointTracker tracker;
+  private final EndpointConnector connector;
+  private final int compressionLevel;
+  private final CompressionStats compressionStats;
+  private final RateLimiter rateLimiter;
+  private final AdmissionController admissionController;
 
   /**
    * Creates a new connect handler.
    *
-   * @param path    base URL
-   * @param tracker endpoint tracker
+   * @param tracker             endpoint tracker
+   * @param connector           connector used to open endpoints
+   * @param compressionLevel    deflate level for tunnels which ask for
+   *                            compression, or 0 to refuse compression
+   * @param compressionStats    statistics updated by compressed tunnels
+   * @param rateLimiter         rate limits applied to new tunnels, or
+   *                            <code>null</code> to leave them unlimited
+   * @param admissionController controller enforcing tunnel quotas, or
+   *                            <code>null</code> for no quotas
    */
-  public ConnectHandler(String path, EndpointTracker tracker) {
-    this.path = path + "/connect";
+  public ConnectHandler(EndpointTracker tracker,
+      EndpointConnector connector, int compressionLevel,
+      CompressionStats compressionStats, RateLimiter rateLimiter,
+      AdmissionController admissionController) {
     this.tracker = tracker;
+    this.connector = connector;
+    this.compressionLevel = compressionLevel;
+    this.compressionStats = compressionStats;
+    this.rateLimiter = rateLimiter;
+    this.admissionController = admissionController;
   }
 
   @Override public void handle(String target, Request baseRequest,
       HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
-    if (!path.equals(request.getRequestURI())) {
-      return;
-    }
-
-    // create connection
-    String host = null;
-    int port = -1;
-    Endpoint endpoint = null;
-
+    String user = CurrentUser.get();
+    String host = request.getParameter("host");
+    boolean compress = compressionLevel > 0 && Compression.DEFLATE
+        .equalsIgnoreCase(request.getParameter("compress"));
+    int port;
     try {
-      host = request.getParameter("host");
       port = Integer.parseInt(request.getParameter("port"));
-      endpoint = new SocketEndpoint(host, port);
-    } catch (Exception e) {
-      // can't connect
+    } catch (NumberFormatException e) {
       sendMessage(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
           "ERROR " + e.getMessage());
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    if (host == null) {
+      sendMessage(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "ERROR No host specified");
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    AdmissionController.Permit permit = admissionController == null ?
+        null :
+        admissionController.acquireTunnel(user);
+    if (admissionController != null && permit == null) {
+      response.setHeader("Retry-After",
+          Long.toString(admissionController.getRetryAfter()));
+      sendMessage(response, HttpStatus.TOO_MANY_REQUESTS_429,
+          "ERROR Tunnel quota exceeded");
+      baseRequest.setHandled(true);
+      return;
     }
 
+    // the connection may complete on a selector or timer thread, so the
+    // response is written on a request thread
+    Executor executor =
+        baseRequest.getHttpChannel().getConnector().getExecutor();
+    AsyncContext context = request.startAsync();
+    context.setTimeout(0L);
+    connector.connect(host, port).whenCompleteAsync((endpoint, e) -> {
+      HttpServletResponse r = (HttpServletResponse) context.getResponse();
+      try {
+        if (e == null) {
+          open(endpoint, user, host, port, compress, permit, r);
+        } else {
+          if (permit != null) {
+            permit.release();
+          }
+          Throwable cause = e instanceof CompletionException
+              && e.getCause() != null ? e.getCause() : e;
+          boolean busy = cause instanceof RejectedExecutionException;
+          if (busy && admissionController != null) {
+            r.setHeader("Retry-After",
+                Long.toString(admissionController.getRetryAfter()));
+          }
+          sendMessage(r, busy ?
+                  HttpServletResponse.SC_SERVICE_UNAVAILABLE :
+                  HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+              "ERROR " + cause.getMessage());
+        }
+      } catch (IOException ignored) {
+      } finally {
+        context.complete();
+      }
+    }, executor);
+    baseRequest.setHandled(true);
+  }
+
+  private void open(Endpoint endpoint, String user, String host, int port,
+      boolean compress, AdmissionController.Permit permit,
+      HttpServletResponse response) throws IOException {
     // add to tracker
-    String id = tracker.add(endpoint);
+    Session session = tracker.add(endpoint, user, host + ":" + port);
+    String id = session.getId();
+
+    Compression compression =
+        compress ? new Compression(compressionLevel, compressionStats) : null;
+    session.setPermit(permit);
+    session.setCompression(compression);
+    if (rateLimiter != null) {
+      session.setLimiter(rateLimiter.forTunnel(user));
+    }
+    if (session.isClosed()) {
+      // closed before these were attached, so the tracker may have missed
+      // them; both are safe to release twice
+      if (permit != null) {
+        permit.release();
+      }
+      if (compression != null) {
+        compression.close();
+      }
+    }
 
-    logger.info(
-        "Connect [" + id + "]: user=" + CurrentUser.get() + ", destination="
-            + host + ":" + port);
+    logger.info("Connect [" + id + "]: user=" + user + ", destination=" + host
+        + ":" + port + (compress ? ", compress=deflate" : ""));
 
     // write out id to response
-    sendMessage(response, HttpServletResponse.SC_OK, "OPEN " + id);
+    try {
+      sendMessage(response, HttpServletResponse.SC_OK,
+          "OPEN " + id + (compress ? " " + Compression.DEFLATE : ""));
+    } catch (IOException e) {
+      // client will never learn the id
+      tracker.remove(id);
+      throw e;
+    }
   }
 
   private void sendMessage(HttpServletResponse response, int status,
@@ -79,6 +198,11 @@ public class ConnectHandler extends AbstractHandler {
       out = response.getWriter();
       out.print(message);
       out.print("\r\n");
+      // a writer never throws, so a client which has gone away is only
+      // noticed here
+      if (out.checkError()) {
+        throw new IOException("Unable to write response");
+      }
     } finally {
       try {
         if (out != null)
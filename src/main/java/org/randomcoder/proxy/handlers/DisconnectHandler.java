@@ -20,27 +20,20 @@ public class DisconnectHandler extends AbstractHandler {
   private static final Logger logger =
       LogManager.getLogger(DisconnectHandler.class);
 
-  private final String path;
   private final EndpointTracker tracker;
 
   /**
    * Creates a new disconnect handler.
    *
-   * @param path    base URL
    * @param tracker endpoint tracker
    */
-  public DisconnectHandler(String path, EndpointTracker tracker) {
-    this.path = path + "/disconnect";
+  public DisconnectHandler(EndpointTracker tracker) {
     this.tracker = tracker;
   }
 
   @Override public void handle(String target, Request baseRequest,
       HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
-    if (!path.equals(request.getRequestURI())) {
-      return;
-    }
-
     String id = request.getParameter("id");
     tracker.remove(id);
 
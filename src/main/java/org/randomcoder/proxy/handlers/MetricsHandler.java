@@ -0,0 +1,51 @@
+package org.randomcoder.proxy.handlers;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.randomcoder.proxy.support.Metrics;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Handler which exposes metrics in the Prometheus text format.
+ */
+public class MetricsHandler extends AbstractHandler {
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+  private final Metrics metrics;
+
+  /**
+   * Creates a new metrics handler.
+   *
+   * @param metrics metrics registry
+   */
+  public MetricsHandler(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override public void handle(String target, Request baseRequest,
+      HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(CONTENT_TYPE);
+    response.setCharacterEncoding("UTF-8");
+
+    PrintWriter out = null;
+    try {
+      out = response.getWriter();
+      metrics.write(out);
+    } finally {
+      try {
+        if (out != null) {
+          out.close();
+        }
+      } catch (Throwable ignored) {
+      }
+    }
+    baseRequest.setHandled(true);
+  }
+}
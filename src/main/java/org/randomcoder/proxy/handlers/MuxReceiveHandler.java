@@ -0,0 +1,145 @@
+package org.randomcoder.proxy.handlers;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.CurrentUser;
+import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.FlushPolicy;
+import org.randomcoder.proxy.support.HashedTimerWheel;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Handler which establishes multiplexed receive streams and adds sessions to
+ * or removes them from existing streams.
+ * <p>
+ * A request without a <code>stream</code> parameter opens a new stream
+ * carrying the sessions named by any <code>id</code> parameters; see
+ * {@link MuxReceiver} for the framing. A request with a <code>stream</code>
+ * parameter adds the sessions named by <code>add</code> parameters to that
+ * stream and removes those named by <code>remove</code> parameters, and is
+ * answered with <code>OK</code>.
+ */
+public class MuxReceiveHandler extends AbstractHandler {
+  private static final Logger logger =
+      LogManager.getLogger(MuxReceiveHandler.class);
+
+  private final EndpointTracker tracker;
+  private final HashedTimerWheel timer;
+  private final Executor readExecutor;
+  private final BufferPool bufferPool;
+  private final FlushPolicy flushPolicy;
+  private final ConcurrentHashMap<String, MuxReceiver> streams =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new multiplexed receive handler.
+   *
+   * @param tracker      endpoint tracker
+   * @param timer        timer used for keepalives and delayed flushes
+   * @param readExecutor executor used to read from blocking endpoints
+   * @param bufferPool   pool from which frame buffers are borrowed
+   * @param flushPolicy  policy deciding when coalesced frames are flushed
+   */
+  public MuxReceiveHandler(EndpointTracker tracker,
+      HashedTimerWheel timer, Executor readExecutor, BufferPool bufferPool,
+      FlushPolicy flushPolicy) {
+    this.tracker = tracker;
+    this.timer = timer;
+    this.readExecutor = readExecutor;
+    this.bufferPool = bufferPool;
+    this.flushPolicy = flushPolicy;
+  }
+
+  @Override public void handle(String target, Request baseRequest,
+      HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    String streamId = request.getParameter("stream");
+    if (streamId != null) {
+      update(streamId, request, response);
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    String user = CurrentUser.get();
+    String id = UUID.randomUUID().toString();
+
+    if (logger.isDebugEnabled())
+      logger.debug("Mux [" + id + "]: user=" + user + ", state=active");
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/octet-stream");
+
+    AsyncContext context = request.startAsync();
+    context.setTimeout(0L);
+    MuxReceiver receiver =
+        new MuxReceiver(id, user, tracker, context, readExecutor, timer,
+            bufferPool, flushPolicy, () -> streams.remove(id));
+    streams.put(id, receiver);
+    receiver.start();
+
+    String[] ids = request.getParameterValues("id");
+    if (ids != null) {
+      for (String sessionId : ids) {
+        receiver.add(sessionId);
+      }
+    }
+
+    baseRequest.setHandled(true);
+  }
+
+  private void update(String streamId, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    MuxReceiver receiver = streams.get(streamId);
+    if (receiver == null || !receiver.getUser().equals(CurrentUser.get())) {
+      sendMessage(response, HttpServletResponse.SC_NOT_FOUND,
+          "ERROR Unknown stream");
+      return;
+    }
+
+    String[] add = request.getParameterValues("add");
+    if (add != null) {
+      for (String id : add) {
+        receiver.add(id);
+      }
+    }
+
+    String[] remove = request.getParameterValues("remove");
+    if (remove != null) {
+      for (String id : remove) {
+        receiver.remove(id);
+      }
+    }
+
+    sendMessage(response, HttpServletResponse.SC_OK, "OK");
+  }
+
+  private void sendMessage(HttpServletResponse response, int status,
+      String message) throws IOException {
+    response.setStatus(status);
+    response.setContentType("text/plain");
+
+    PrintWriter out = null;
+    try {
+      out = response.getWriter();
+      out.print(message + "\r\n");
+    } finally {
+      try {
+        if (out != null)
+          out.close();
+      } catch (Throwable ignored) {
+      }
+    }
+  }
+}
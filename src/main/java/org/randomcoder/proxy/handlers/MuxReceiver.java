@@ -0,0 +1,479 @@
+package org.randomcoder.proxy.handlers;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.EndpointReader;
+import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.FlushPolicy;
+import org.randomcoder.proxy.support.HashedTimerWheel;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.Session;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking receive stream carrying frames for many sessions. Each session
+ * added to the stream is assigned a channel number, and every frame is
+ * prefixed with a four-byte channel number followed by the usual four-byte
+ * length. Channel 0 carries control messages, each a single line of text:
+ * <ul>
+ * <li><code>STREAM &lt;stream-id&gt;</code> - first message on the stream</li>
+ * <li><code>OPEN &lt;channel&gt; &lt;session-id&gt;</code> - session
+ * added</li>
+ * <li><code>UNKNOWN &lt;session-id&gt;</code> - session does not exist</li>
+ * <li><code>CLOSED &lt;channel&gt;</code> - session reached end of stream or
+ * failed</li>
+ * <li><code>REMOVED &lt;channel&gt;</code> - session removed on request</li>
+ * </ul>
+ * An empty frame on channel 0 is a keepalive.
+ * <p>
+ * Each channel has at most one read outstanding and does not read again until
+ * its previous frame has been written, so a slow client applies back-pressure
+ * to every session on the stream without holding any threads. A channel
+ * whose tunnel is rate-limited also waits for as long as the limits require
+ * before reading again.
+ */
+public class MuxReceiver implements WriteListener {
+  private static final Logger logger = LogManager.getLogger(MuxReceiver.class);
+
+  private static final byte[] PREAMBLE =
+      "SENDING\r\n".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEEPALIVE = new byte[8];
+  private static final int HEADER_SIZE = 8;
+  private static final int BUFFER_SIZE = 32768;
+  private static final long KEEPALIVE_INTERVAL = 30000L;
+
+  private final String streamId;
+  private final String user;
+  private final EndpointTracker tracker;
+  private final AsyncContext context;
+  private final ServletOutputStream out;
+  private final Executor executor;
+  private final HashedTimerWheel timer;
+  private final BufferPool pool;
+  private final FlushPolicy flushPolicy;
+  private final Runnable onComplete;
+
+  // all remaining state is guarded by this
+  private final Map<String, Channel> channels = new HashMap<>();
+  private final ArrayDeque<Channel> ready = new ArrayDeque<>();
+  private final ArrayDeque<byte[]> control = new ArrayDeque<>();
+  private int nextChannel = 1;
+  private Channel lastWritten = null;
+  private boolean preambleSent = false;
+  private boolean flushNeeded = false;
+  private boolean flushDue = false;
+  private int unflushed = 0;
+  private boolean idle = true;
+  private boolean keepaliveNeeded = false;
+  private boolean completed = false;
+  private HashedTimerWheel.Timeout keepaliveTimeout;
+  private HashedTimerWheel.Timeout flushTimeout;
+
+  /**
+   * Creates a new multiplexed receiver.
+   *
+   * @param streamId    unique identifier of this stream
+   * @param user        user which owns the stream
+   * @param tracker     endpoint tracker
+   * @param context     async context of the receive request
+   * @param executor    executor used to read from blocking endpoints
+   * @param timer       timer used for keepalives and delayed flushes
+   * @param pool        pool from which frame buffers are borrowed
+   * @param flushPolicy policy deciding when coalesced frames are flushed
+   * @param onComplete  callback run once the stream has completed
+   * @throws IOException if the response cannot be obtained
+   */
+  public MuxReceiver(String streamId, String user, EndpointTracker tracker,
+      AsyncContext context, Executor executor, HashedTimerWheel timer,
+      BufferPool pool, FlushPolicy flushPolicy, Runnable onComplete)
+      throws IOException {
+    this.streamId = streamId;
+    this.user = user;
+    this.tracker = tracker;
+    this.context = context;
+    this.out = context.getResponse().getOutputStream();
+    this.executor = executor;
+    this.timer = timer;
+    this.pool = pool;
+    this.flushPolicy = flushPolicy;
+    this.onComplete = onComplete;
+  }
+
+  /**
+   * Gets the user which owns this stream.
+   *
+   * @return user name
+   */
+  public String getUser() {
+    return user;
+  }
+
+  /**
+   * Starts the receiver. The container will call
+   * {@link #onWritePossible()} once the response can be written.
+   */
+  public void start() {
+    synchronized (this) {
+      control("STREAM " + streamId);
+      scheduleKeepalive();
+    }
+    out.setWriteListener(this);
+  }
+
+  /**
+   * Adds a session to the stream. Adding a session which is already on the
+   * stream has no effect.
+   *
+   * @param id session id
+   */
+  public synchronized void add(String id) {
+    if (completed || channels.containsKey(id)) {
+      return;
+    }
+    Session session = tracker.getSession(id);
+    if (session == null) {
+      control("UNKNOWN " + id);
+      drainQuietly();
+      return;
+    }
+    Channel channel = new Channel(nextChannel++, session);
+    channels.put(id, channel);
+    control("OPEN " + channel.number + " " + id);
+
+    if (logger.isDebugEnabled())
+      logger.debug("Mux [" + streamId + "]: user=" + user + ", channel="
+          + channel.number + ", id=" + id);
+
+    channel.read();
+    drainQuietly();
+  }
+
+  /**
+   * Removes a session from the stream. Any data already read from the session
+   * is delivered first, followed by a <code>REMOVED</code> message; the
+   * session must not be received from elsewhere until that message has been
+   * seen.
+   *
+   * @param id session id
+   */
+  public synchronized void remove(String id) {
+    Channel channel = channels.get(id);
+    if (channel == null || channel.removing) {
+      return;
+    }
+    channel.removing = true;
+    if (!channel.reading && channel.pending == 0 && channel != lastWritten) {
+      close(channel, "REMOVED");
+      drainQuietly();
+    }
+  }
+
+  @Override public synchronized void onWritePossible() throws IOException {
+    drain();
+  }
+
+  @Override public synchronized void onError(Throwable t) {
+    logger.debug("Mux [" + streamId + "]: user=" + user + ", error=" + t
+        .getMessage());
+    complete();
+  }
+
+  private void drainQuietly() {
+    try {
+      drain();
+    } catch (IOException e) {
+      onError((Throwable) e);
+    }
+  }
+
+  /**
+   * Writes as much as the output will accept without blocking. As with
+   * {@link AsyncReceiver}, every write and flush is preceded by a successful
+   * call to {@link ServletOutputStream#isReady()}, which also guarantees that
+   * the previously written channel buffer may be reused.
+   */
+  private void drain() throws IOException {
+    while (!completed) {
+      if (!out.isReady()) {
+        return;
+      }
+      if (lastWritten != null) {
+        Channel channel = lastWritten;
+        lastWritten = null;
+        channel.written();
+      }
+      if (!preambleSent) {
+        // must send something here so that server will actually flush the
+        // result
+        out.write(PREAMBLE);
+        preambleSent = true;
+        flushNeeded = true;
+        flushDue = true;
+      } else if (!control.isEmpty()) {
+        out.write(control.poll());
+        flushNeeded = true;
+        flushDue = true;
+      } else if (!ready.isEmpty()) {
+        Channel channel = ready.poll();
+        out.write(channel.buf, 0, channel.pending);
+        unflushed += channel.pending;
+        channel.pending = 0;
+        lastWritten = channel;
+        flushNeeded = true;
+      } else if (keepaliveNeeded) {
+        out.write(KEEPALIVE);
+        keepaliveNeeded = false;
+        flushNeeded = true;
+        flushDue = true;
+      } else if (flushNeeded && (flushDue || flushPolicy
+          .isFlushRequired(unflushed, false))) {
+        out.flush();
+        flushNeeded = false;
+        flushDue = false;
+        unflushed = 0;
+        cancelFlush();
+      } else {
+        if (flushNeeded && flushTimeout == null
+            && flushPolicy.getDelay() > 0L) {
+          flushTimeout = timer.schedule(this::flushExpired,
+              flushPolicy.getDelay(), TimeUnit.MILLISECONDS);
+        }
+        return;
+      }
+    }
+  }
+
+  private void control(String message) {
+    byte[] text = message.getBytes(StandardCharsets.UTF_8);
+    byte[] frame = new byte[HEADER_SIZE + text.length];
+    frame[4] = (byte) (text.length >>> 24);
+    frame[5] = (byte) (text.length >>> 16);
+    frame[6] = (byte) (text.length >>> 8);
+    frame[7] = (byte) text.length;
+    System.arraycopy(text, 0, frame, HEADER_SIZE, text.length);
+    control.add(frame);
+  }
+
+  private void close(Channel channel, String reason) {
+    channels.remove(channel.id);
+    channel.release();
+    control(reason + " " + channel.number);
+
+    if (logger.isDebugEnabled())
+      logger.debug("Mux [" + streamId + "]: user=" + user + ", channel="
+          + channel.number + ", state=" + reason.toLowerCase(Locale.US));
+  }
+
+  private void complete() {
+    if (completed) {
+      return;
+    }
+    completed = true;
+    if (keepaliveTimeout != null) {
+      keepaliveTimeout.cancel();
+      keepaliveTimeout = null;
+    }
+    cancelFlush();
+
+    List<Channel> open = new ArrayList<>(channels.values());
+    channels.clear();
+    ready.clear();
+    lastWritten = null;
+    for (Channel channel : open) {
+      tracker.receiveError(channel.id);
+      if (!channel.reading) {
+        // otherwise released when the outstanding read calls back
+        channel.release();
+      }
+    }
+
+    try {
+      context.complete();
+    } catch (Throwable ignored) {
+    }
+    onComplete.run();
+  }
+
+  private void cancelFlush() {
+    if (flushTimeout != null) {
+      flushTimeout.cancel();
+      flushTimeout = null;
+    }
+  }
+
+  private synchronized void flushExpired() {
+    flushTimeout = null;
+    if (completed || !flushNeeded) {
+      return;
+    }
+    flushDue = true;
+    drainQuietly();
+  }
+
+  private void scheduleKeepalive() {
+    idle = true;
+    keepaliveTimeout = timer
+        .schedule(this::keepalive, KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void keepalive() {
+    if (completed) {
+      return;
+    }
+    if (idle) {
+      keepaliveNeeded = true;
+      drainQuietly();
+    }
+    if (!completed) {
+      scheduleKeepalive();
+    }
+  }
+
+  /**
+   * A single session carried on the stream.
+   */
+  private final class Channel implements EndpointReader.Listener {
+    private final int number;
+    private final String id;
+    private final Session session;
+    private final EndpointReader reader;
+    private final RateLimiter.Tunnel limiter;
+    private ByteBuffer buffer;
+    private byte[] buf;
+    private int pending = 0;
+    private boolean reading = false;
+    private boolean paused = false;
+    private boolean waiting = false;
+    private boolean removing = false;
+    private boolean ended = false;
+
+    private Channel(int number, Session session) {
+      this.number = number;
+      this.id = session.getId();
+      this.session = session;
+      this.reader = new EndpointReader(session.getEndpoint(), executor, this);
+      this.limiter = session.getLimiter();
+      this.buffer = pool.acquire(BUFFER_SIZE, false);
+      this.buf = buffer.array();
+      buf[0] = (byte) (number >>> 24);
+      buf[1] = (byte) (number >>> 16);
+      buf[2] = (byte) (number >>> 8);
+      buf[3] = (byte) number;
+    }
+
+    private void read() {
+      reading = true;
+      reader.read(buf, HEADER_SIZE, BUFFER_SIZE - HEADER_SIZE);
+    }
+
+    /**
+     * Called once this channel's frame has been written and its buffer may be
+     * reused.
+     */
+    private void written() {
+      if (removing) {
+        close(this, "REMOVED");
+      } else if (ended) {
+        close(this, "CLOSED");
+      } else if (paused) {
+        waiting = true;
+      } else {
+        read();
+      }
+    }
+
+    private void unpause() {
+      synchronized (MuxReceiver.this) {
+        paused = false;
+        if (waiting) {
+          waiting = false;
+          // the channel may have been removed while waiting
+          if (!completed && channels.get(id) == this) {
+            read();
+          }
+        }
+      }
+    }
+
+    private void release() {
+      if (buffer != null) {
+        pool.release(buffer);
+        buffer = null;
+        buf = null;
+      }
+    }
+
+    @Override public void onData(byte[] data, int offset, int len) {
+      synchronized (MuxReceiver.this) {
+        reading = false;
+        if (completed) {
+          release();
+          return;
+        }
+        idle = false;
+
+        buf[4] = (byte) (len >>> 24);
+        buf[5] = (byte) (len >>> 16);
+        buf[6] = (byte) (len >>> 8);
+        buf[7] = (byte) len;
+        pending = HEADER_SIZE + len;
+        ready.add(this);
+
+        session.addBytesReceived(len);
+        if (!session.refresh()) {
+          ended = true;
+          tracker.receiveComplete(id);
+        }
+        long pause = limiter == null ? 0L : limiter.receive(len);
+        if (pause > 0L) {
+          paused = true;
+          limiter.resume(this::unpause, pause);
+        }
+        drainQuietly();
+      }
+    }
+
+    @Override public void onEnd() {
+      synchronized (MuxReceiver.this) {
+        reading = false;
+        if (completed) {
+          release();
+          return;
+        }
+        tracker.receiveComplete(id);
+        close(this, "CLOSED");
+        drainQuietly();
+      }
+    }
+
+    @Override public void onError(IOException e) {
+      synchronized (MuxReceiver.this) {
+        reading = false;
+        if (completed) {
+          release();
+          return;
+        }
+        logger.debug("Mux [" + streamId + "]: user=" + user + ", channel="
+            + number + ", error=" + e.getMessage());
+        tracker.receiveError(id);
+        close(this, "CLOSED");
+        drainQuietly();
+      }
+    }
+  }
+}
@@ -19,27 +19,20 @@ import java.io.PrintWriter;
 public class PingHandler extends AbstractHandler {
   private static final Logger logger = LogManager.getLogger(PingHandler.class);
 
-  private final String path;
   private final EndpointTracker tracker;
 
   /**
    * Creates a new ping handler.
    *
-   * @param path    base URL
    * @param tracker endpoint tracker
    */
-  public PingHandler(String path, EndpointTracker tracker) {
-    this.path = path + "/ping";
+  public PingHandler(EndpointTracker tracker) {
     this.tracker = tracker;
   }
 
   @Override public void handle(String target, Request baseRequest,
       HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
-    if (!path.equals(request.getRequestURI())) {
-      return;
-    }
-
     String id = request.getParameter("id");
     boolean active = tracker.refresh(id);
 
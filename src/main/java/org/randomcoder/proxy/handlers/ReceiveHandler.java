@@ -4,22 +4,43 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.Compression;
 import org.randomcoder.proxy.support.CurrentUser;
-import org.randomcoder.proxy.support.Endpoint;
 import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.FlushPolicy;
+import org.randomcoder.proxy.support.HashedTimerWheel;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.Session;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Handler which establishes and maintains a receive connection to the
  * underlying I/O stream.
+ * <p>
+ * Data is sent as frames, each a four-byte length followed by the payload; an
+ * empty frame is a keepalive. On tunnels which negotiated compression, a
+ * frame whose payload is compressed has the high bit of its length set.
+ * <p>
+ * On rate-limited tunnels, data is received no faster than the tunnel's and
+ * its user's receive rates allow.
  */
 public class ReceiveHandler extends AbstractHandler {
   /**
@@ -28,31 +49,55 @@ public class ReceiveHandler extends AbstractHandler {
   protected static final Logger logger =
       LogManager.getLogger(ReceiveHandler.class);
 
-  private final String path;
+  private static final long KEEPALIVE_INTERVAL = 30000L;
+  private static final int HEADER_SIZE = 4;
+  private static final int BUFFER_SIZE = 32768;
+  private static final int DEFLATE_BUFFER_SIZE =
+      HEADER_SIZE + Compression.maxDeflatedSize(BUFFER_SIZE - HEADER_SIZE);
+  private static final int COMPRESSED = 0x80000000;
+  private static final byte[] PREAMBLE =
+      "SENDING\r\n".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEEPALIVE = new byte[HEADER_SIZE];
+
   private final EndpointTracker tracker;
+  private final HashedTimerWheel timer;
+  private final Executor readExecutor;
+  private final Executor streamExecutor;
+  private final BufferPool bufferPool;
+  private final FlushPolicy flushPolicy;
 
   /**
    * Creates a new receive handler.
    *
-   * @param path    base URL
-   * @param tracker endpoint tracker
+   * @param tracker        endpoint tracker
+   * @param timer          timer used for keepalives
+   * @param readExecutor   executor used to read from endpoints when servicing
+   *                       receive streams asynchronously, or
+   *                       <code>null</code> to use blocking I/O
+   * @param streamExecutor executor used for the keepalives and timed flushes
+   *                       of blocking receive streams, or <code>null</code>
+   *                       to use the request thread pool
+   * @param bufferPool     pool from which copy buffers are borrowed
+   * @param flushPolicy    policy deciding when coalesced frames are flushed
    */
-  public ReceiveHandler(String path, EndpointTracker tracker) {
-    this.path = path + "/receive";
+  public ReceiveHandler(EndpointTracker tracker,
+      HashedTimerWheel timer, Executor readExecutor, Executor streamExecutor,
+      BufferPool bufferPool, FlushPolicy flushPolicy) {
     this.tracker = tracker;
+    this.timer = timer;
+    this.readExecutor = readExecutor;
+    this.streamExecutor = streamExecutor;
+    this.bufferPool = bufferPool;
+    this.flushPolicy = flushPolicy;
   }
 
   @Override public void handle(String target, Request baseRequest,
       HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
-    if (!path.equals(request.getRequestURI())) {
-      return;
-    }
-
     String id = request.getParameter("id");
-    Endpoint endpoint = tracker.getEndpoint(id);
+    Session session = tracker.getSession(id);
 
-    if (endpoint == null) {
+    if (session == null) {
       if (logger.isDebugEnabled())
         logger.debug("Receive [" + id + "]: user=" + CurrentUser.get()
             + ", state=closed");
@@ -69,32 +114,70 @@ public class ReceiveHandler extends AbstractHandler {
     response.setStatus(HttpServletResponse.SC_OK);
     response.setContentType("application/octet-stream");
 
-    DataOutputStream out = null;
-    KeepaliveThread ka = null;
+    if (readExecutor != null) {
+      AsyncContext context = request.startAsync();
+      context.setTimeout(0L);
+      new AsyncReceiver(session, CurrentUser.get(), tracker, context,
+          readExecutor, timer, bufferPool, flushPolicy).start();
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    ServletOutputStream out = null;
+    Keepalive ka = null;
+    Flusher flusher = null;
+    ByteBuffer buffer = bufferPool.acquire(BUFFER_SIZE, false);
+    Compression compression = session.getCompression();
+    ByteBuffer deflateBuffer = compression == null ?
+        null :
+        bufferPool.acquire(DEFLATE_BUFFER_SIZE, false);
     try {
-      out = new DataOutputStream(response.getOutputStream());
+      out = response.getOutputStream();
       out.flush();
-      InputStream endpointStream = endpoint.getInputStream();
+      InputStream endpointStream = session.getEndpoint().getInputStream();
+      RateLimiter.Tunnel limiter = session.getLimiter();
 
       // must send something here so that server will actually flush the
       // result
 
-      out.write("SENDING\r\n".getBytes("UTF-8"));
+      out.write(PREAMBLE);
       out.flush();
 
-      ka = new KeepaliveThread(id, out);
+      // keepalives and flushes may block on a slow client, so they are kept
+      // off the request threads where possible
+      Executor executor = streamExecutor != null ?
+          streamExecutor :
+          baseRequest.getHttpChannel().getConnector().getExecutor();
+      flusher = new Flusher(out, executor);
+
+      ka = new Keepalive(flusher, executor);
       ka.start();
 
-      byte[] buf = new byte[32768];
+      // payload is read in after the frame header, so each frame goes out
+      // in a single write
+      byte[] buf = buffer.array();
+      byte[] deflateBuf = deflateBuffer == null ? null : deflateBuffer.array();
       int c;
       do {
-        c = endpointStream.read(buf, 0, 32768);
+        c = endpointStream.read(buf, HEADER_SIZE, BUFFER_SIZE - HEADER_SIZE);
         if (c > 0) {
-          logger.debug("Wrote " + c + " bytes");
+          if (limiter != null) {
+            limiter.pause(limiter.receive(c));
+          }
+          if (logger.isDebugEnabled())
+            logger.debug("Wrote " + c + " bytes");
           ka.activity();
-          sendPacket(out, buf, 0, c);
+          int d = compression == null ?
+              -1 :
+              compression.deflate(buf, HEADER_SIZE, c, deflateBuf, HEADER_SIZE);
+          if (d >= 0) {
+            flusher.write(deflateBuf, d, true, endpointStream.available() > 0);
+          } else {
+            flusher.write(buf, c, false, endpointStream.available() > 0);
+          }
+          session.addBytesReceived(c);
 
-          if (!tracker.refresh(id))
+          if (!session.refresh())
             break;
         }
       } while (c >= 0);
@@ -108,12 +191,16 @@ public class ReceiveHandler extends AbstractHandler {
     } finally {
       if (ka != null) {
         ka.shutdown();
-        try {
-          ka.join(30000L);
-        } catch (InterruptedException ignored) {
-        }
         ka = null;
       }
+      if (flusher != null) {
+        flusher.shutdown();
+        flusher = null;
+      }
+      bufferPool.release(buffer);
+      if (deflateBuffer != null) {
+        bufferPool.release(deflateBuffer);
+      }
       try {
         if (out != null)
           out.close();
@@ -125,23 +212,55 @@ public class ReceiveHandler extends AbstractHandler {
   }
 
   /**
-   * Sends a packet.
+   * Sends a packet and flushes it, along with anything written before it.
+   * Callers sharing a stream must not write to it concurrently.
    *
-   * @param out    output stream
-   * @param buf    buffer
-   * @param offset offset
-   * @param len    length
+   * @param out output stream
+   * @param buf buffer
+   * @param len payload length
    * @throws IOException if an error occurs
+   * @see #writePacket(OutputStream, byte[], int)
    */
-  protected void sendPacket(DataOutputStream out, byte[] buf, int offset,
-      int len) throws IOException {
-    synchronized (out) {
-      out.writeInt(len);
-      if (len > 0) {
-        out.write(buf, offset, len);
-      }
-      out.flush();
-    }
+  protected void sendPacket(OutputStream out, byte[] buf, int len)
+      throws IOException {
+    writePacket(out, buf, len);
+    out.flush();
+  }
+
+  /**
+   * Writes a packet without flushing it. The payload must start at offset 4
+   * in the buffer; the length header is written into the first four bytes.
+   *
+   * @param out output stream
+   * @param buf buffer
+   * @param len payload length
+   * @throws IOException if an error occurs
+   */
+  protected void writePacket(OutputStream out, byte[] buf, int len)
+      throws IOException {
+    writePacket(out, buf, len, false);
+  }
+
+  /**
+   * Writes a packet without flushing it, marking it compressed if required.
+   * The payload must start at offset 4 in the buffer; the length header is
+   * written into the first four bytes. Callers sharing a stream must not
+   * write to it concurrently.
+   *
+   * @param out        output stream
+   * @param buf        buffer
+   * @param len        payload length
+   * @param compressed whether the payload is compressed
+   * @throws IOException if an error occurs
+   */
+  protected void writePacket(OutputStream out, byte[] buf, int len,
+      boolean compressed) throws IOException {
+    int header = compressed ? len | COMPRESSED : len;
+    buf[0] = (byte) (header >>> 24);
+    buf[1] = (byte) (header >>> 16);
+    buf[2] = (byte) (header >>> 8);
+    buf[3] = (byte) header;
+    out.write(buf, 0, HEADER_SIZE + len);
   }
 
   private void sendError(HttpServletResponse response, String error)
@@ -162,41 +281,186 @@ public class ReceiveHandler extends AbstractHandler {
     }
   }
 
-  private class KeepaliveThread extends Thread {
+  /**
+   * Sends an empty packet whenever a blocking receive stream has been idle
+   * for a full keepalive interval. Driven by the shared timer, so no thread is
+   * held between keepalives. At most one keepalive is queued at a time, and
+   * none is sent while the stream is being written, so a stream stalled on a
+   * slow client cannot tie up more than one thread.
+   */
+  private class Keepalive implements Runnable {
     private volatile boolean shutdown = false;
     private volatile boolean idle = true;
-    private final DataOutputStream dos;
-    private final byte[] NULL = new byte[0];
+    private volatile HashedTimerWheel.Timeout timeout;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final Flusher flusher;
+    private final Executor executor;
+
+    public Keepalive(Flusher flusher, Executor executor) {
+      this.flusher = flusher;
+      this.executor = executor;
+    }
 
-    public KeepaliveThread(String id, DataOutputStream dos) {
-      super("Keepalive " + id);
-      this.dos = dos;
+    public void start() {
+      idle = true;
+      timeout =
+          timer.schedule(this, KEEPALIVE_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     @Override public void run() {
-      while (!shutdown) {
+      if (shutdown) {
+        return;
+      }
+      if (idle && pending.compareAndSet(false, true)) {
+        // writes may block, so keep them off the timer thread
         try {
-          idle = true;
-          Thread.sleep(30000L);
-        } catch (InterruptedException ignored) {
+          executor.execute(this::sendKeepalive);
+        } catch (RejectedExecutionException e) {
+          pending.set(false);
         }
-        if (!shutdown && idle) {
-          try {
-            sendPacket(dos, NULL, 0, 0);
-          } catch (IOException e) {
-            logger.error("Error in keepalive thread", e);
-          }
+      }
+      start();
+    }
+
+    private void sendKeepalive() {
+      try {
+        if (!shutdown) {
+          flusher.trySend(KEEPALIVE, 0);
         }
+      } catch (IOException e) {
+        logger.error("Error sending keepalive", e);
+      } finally {
+        pending.set(false);
       }
     }
 
-    public synchronized void shutdown() {
+    public void shutdown() {
       shutdown = true;
-      interrupt();
+      HashedTimerWheel.Timeout t = timeout;
+      if (t != null) {
+        t.cancel();
+      }
     }
 
     public void activity() {
       idle = false;
     }
   }
+
+  /**
+   * Coalesces the packets of a blocking receive stream according to the flush
+   * policy. Packets which are not flushed immediately are flushed by the
+   * shared timer once the policy's delay has elapsed.
+   * <p>
+   * All writes to the stream go through the flusher. They are serialized with
+   * a lock rather than a monitor, as writes may block, and a virtual thread
+   * blocked while holding a monitor would pin its carrier thread. Timed
+   * flushes never wait for the lock: at most one is queued at a time, and
+   * one which finds the stream being written is retried after the delay.
+   */
+  private class Flusher implements Runnable {
+    private volatile boolean shutdown = false;
+    private volatile HashedTimerWheel.Timeout timeout;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final OutputStream out;
+    private final Executor executor;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // guarded by lock
+    private int unflushed = 0;
+
+    public Flusher(OutputStream out, Executor executor) {
+      this.out = out;
+      this.executor = executor;
+    }
+
+    public void write(byte[] buf, int len, boolean compressed,
+        boolean moreAvailable) throws IOException {
+      lock.lock();
+      try {
+        writePacket(out, buf, len, compressed);
+        unflushed += HEADER_SIZE + len;
+        if (flushPolicy.isFlushRequired(unflushed, moreAvailable)) {
+          flush();
+        } else if (timeout == null && flushPolicy.getDelay() > 0L) {
+          timeout = timer
+              .schedule(this, flushPolicy.getDelay(), TimeUnit.MILLISECONDS);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public boolean trySend(byte[] buf, int len) throws IOException {
+      if (!lock.tryLock()) {
+        return false;
+      }
+      try {
+        writePacket(out, buf, len);
+        flush();
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override public void run() {
+      if (!shutdown && pending.compareAndSet(false, true)) {
+        // flushes may block, so keep them off the timer thread
+        try {
+          executor.execute(this::flushQuietly);
+        } catch (RejectedExecutionException e) {
+          pending.set(false);
+          retry();
+        }
+      }
+    }
+
+    private void flushQuietly() {
+      try {
+        if (!lock.tryLock()) {
+          // the stream is being written, perhaps to a stalled client, and the
+          // writer may leave frames unflushed behind it
+          retry();
+          return;
+        }
+        try {
+          if (shutdown || unflushed == 0) {
+            return;
+          }
+          flush();
+        } catch (IOException e) {
+          logger.debug("Error flushing receive stream", e);
+        } finally {
+          lock.unlock();
+        }
+      } finally {
+        pending.set(false);
+      }
+    }
+
+    private void retry() {
+      if (!shutdown) {
+        timer.schedule(this, flushPolicy.getDelay(), TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void flush() throws IOException {
+      unflushed = 0;
+      HashedTimerWheel.Timeout t = timeout;
+      if (t != null) {
+        t.cancel();
+        timeout = null;
+      }
+      out.flush();
+    }
+
+    public void shutdown() {
+      shutdown = true;
+      HashedTimerWheel.Timeout t = timeout;
+      if (t != null) {
+        t.cancel();
+      }
+    }
+  }
 }
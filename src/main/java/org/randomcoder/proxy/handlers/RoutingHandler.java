@@ -0,0 +1,275 @@
+package org.randomcoder.proxy.handlers;
+
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.randomcoder.proxy.support.AdmissionController;
+import org.randomcoder.proxy.support.AdmissionController.OperationClass;
+import org.randomcoder.proxy.support.CurrentUser;
+import org.randomcoder.proxy.support.Metrics;
+import org.randomcoder.proxy.support.RateLimiter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handler which dispatches each request to exactly one operation handler. The
+ * request URI is resolved with a single lookup in a table built at startup;
+ * unknown paths are answered with 404 before any authentication work is done,
+ * and known paths are authenticated once and then passed directly to their
+ * handler.
+ * <p>
+ * When a {@link Metrics} registry is supplied, the time taken and status of
+ * each routed request are recorded against its operation. Requests which are
+ * completed asynchronously are recorded when they complete.
+ * <p>
+ * When a {@link RateLimiter} is supplied, authenticated requests from a user
+ * who has exceeded their request rate are answered with 429 and a
+ * <code>Retry-After</code> header.
+ * <p>
+ * When an {@link AdmissionController} is supplied, each route belongs to an
+ * {@link OperationClass}, and requests are counted in flight against their
+ * class until they complete. Requests which the controller sheds are
+ * answered with 503 and a <code>Retry-After</code> header before they are
+ * authenticated.
+ */
+public class RoutingHandler extends AbstractHandler {
+  private final String path;
+  private final Handler authHandler;
+  private final Metrics metrics;
+  private final RateLimiter rateLimiter;
+  private final AdmissionController admissionController;
+  private final Map<String, Handler> routes = new HashMap<String, Handler>();
+  private final Map<String, Metrics.Operation> operations =
+      new HashMap<String, Metrics.Operation>();
+  private final Map<String, OperationClass> classes =
+      new HashMap<String, OperationClass>();
+
+  /**
+   * Creates a new routing handler.
+   *
+   * @param path                base URL
+   * @param authHandler         handler which authenticates each routed
+   *                            request
+   * @param metrics             metrics registry, or <code>null</code> to
+   *                            record no metrics
+   * @param rateLimiter         rate limits, or <code>null</code> to leave
+   *                            request rates unlimited
+   * @param admissionController admission controller, or <code>null</code>
+   *                            to admit every request
+   */
+  public RoutingHandler(String path, Handler authHandler, Metrics metrics,
+      RateLimiter rateLimiter, AdmissionController admissionController) {
+    this.path = path;
+    this.authHandler = authHandler;
+    this.metrics = metrics;
+    this.rateLimiter = rateLimiter;
+    this.admissionController = admissionController;
+    addBean(authHandler);
+  }
+
+  /**
+   * Adds a route for requests which carry existing tunnels. Routes must be
+   * added before the server is started.
+   *
+   * @param operation operation name (last path segment, e.g.
+   *                  <code>send</code>)
+   * @param handler   handler for the operation
+   */
+  public void addRoute(String operation, Handler handler) {
+    addRoute(operation, handler, OperationClass.TUNNEL);
+  }
+
+  /**
+   * Adds a route. Routes must be added before the server is started.
+   *
+   * @param operation      operation name (last path segment, e.g.
+   *                       <code>send</code>)
+   * @param handler        handler for the operation
+   * @param operationClass class of the operation's requests
+   */
+  public void addRoute(String operation, Handler handler,
+      OperationClass operationClass) {
+    routes.put(path + "/" + operation, handler);
+    classes.put(path + "/" + operation, operationClass);
+    if (metrics != null) {
+      operations.put(path + "/" + operation, metrics.operation(operation));
+    }
+    addBean(handler);
+  }
+
+  @Override public void setServer(Server server) {
+    super.setServer(server);
+    authHandler.setServer(server);
+    for (Handler handler : routes.values()) {
+      handler.setServer(server);
+    }
+  }
+
+  @Override public void handle(String target, Request baseRequest,
+      HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    if (baseRequest.isHandled()) {
+      return;
+    }
+
+    Handler handler = routes.get(request.getRequestURI());
+    if (handler == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    long start = System.nanoTime();
+    Metrics.Operation operation = operations.get(request.getRequestURI());
+
+    // shed before authenticating, so that refusing work is cheap
+    OperationClass operationClass = admissionController == null ?
+        null :
+        classes.get(request.getRequestURI());
+    if (operationClass != null && !admissionController
+        .admit(operationClass)) {
+      reject(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          admissionController.getRetryAfter(), "ERROR Server busy");
+      baseRequest.setHandled(true);
+      if (operation != null) {
+        operation.record(System.nanoTime() - start, response.getStatus());
+      }
+      return;
+    }
+
+    try {
+      authHandler.handle(target, baseRequest, request, response);
+      if (baseRequest.isHandled()) {
+        if (metrics != null
+            && response.getStatus() == HttpServletResponse.SC_UNAUTHORIZED) {
+          metrics.authFailed();
+        }
+        return;
+      }
+
+      long wait = rateLimiter == null ?
+          0L :
+          rateLimiter.acquireRequest(CurrentUser.get());
+      if (wait > 0L) {
+        reject(response, HttpStatus.TOO_MANY_REQUESTS_429,
+            TimeUnit.NANOSECONDS.toSeconds(wait + 999999999L),
+            "ERROR Too many requests");
+        baseRequest.setHandled(true);
+        if (operation != null) {
+          operation.record(System.nanoTime() - start, response.getStatus());
+        }
+        return;
+      }
+
+      if (operation == null) {
+        handler.handle(target, baseRequest, request, response);
+        return;
+      }
+
+      try {
+        handler.handle(target, baseRequest, request, response);
+      } finally {
+        if (request.isAsyncStarted()) {
+          request.getAsyncContext()
+              .addListener(new AsyncRecorder(operation, start));
+        } else {
+          operation.record(System.nanoTime() - start, response.getStatus());
+        }
+      }
+    } finally {
+      if (operationClass != null) {
+        if (request.isAsyncStarted()) {
+          request.getAsyncContext().addListener(
+              new AsyncCompletion(admissionController, operationClass));
+        } else {
+          admissionController.complete(operationClass);
+        }
+      }
+    }
+  }
+
+  private void reject(HttpServletResponse response, int status,
+      long retryAfter, String message) throws IOException {
+    response.setStatus(status);
+    response.setContentType("text/plain");
+    response.setHeader("Retry-After", Long.toString(Math.max(1L, retryAfter)));
+
+    PrintWriter out = null;
+    try {
+      out = response.getWriter();
+      out.print(message + "\r\n");
+    } finally {
+      try {
+        if (out != null)
+          out.close();
+      } catch (Throwable ignored) {
+      }
+    }
+  }
+
+  /**
+   * Records an asynchronous request once it completes.
+   */
+  private static final class AsyncRecorder implements AsyncListener {
+    private final Metrics.Operation operation;
+    private final long start;
+
+    private AsyncRecorder(Metrics.Operation operation, long start) {
+      this.operation = operation;
+      this.start = start;
+    }
+
+    @Override public void onComplete(AsyncEvent event) {
+      operation.record(System.nanoTime() - start,
+          ((HttpServletResponse) event.getSuppliedResponse()).getStatus());
+    }
+
+    @Override public void onTimeout(AsyncEvent event) {
+    }
+
+    @Override public void onError(AsyncEvent event) {
+    }
+
+    @Override public void onStartAsync(AsyncEvent event) {
+    }
+  }
+
+  /**
+   * Tells the admission controller that an asynchronous request has
+   * completed.
+   */
+  private static final class AsyncCompletion implements AsyncListener {
+    private final AdmissionController admissionController;
+    private final OperationClass operationClass;
+
+    private AsyncCompletion(AdmissionController admissionController,
+        OperationClass operationClass) {
+      this.admissionController = admissionController;
+      this.operationClass = operationClass;
+    }
+
+    @Override public void onComplete(AsyncEvent event) {
+      admissionController.complete(operationClass);
+    }
+
+    @Override public void onTimeout(AsyncEvent event) {
+    }
+
+    @Override public void onError(AsyncEvent event) {
+    }
+
+    @Override public void onStartAsync(AsyncEvent event) {
+    }
+  }
+}
@@ -4,10 +4,16 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.Compression;
 import org.randomcoder.proxy.support.CurrentUser;
-import org.randomcoder.proxy.support.Endpoint;
 import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.EndpointWriter;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.SendSequencer;
+import org.randomcoder.proxy.support.Session;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
@@ -16,39 +22,93 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.zip.ZipException;
 
 /**
  * Handler which accepts messages and sends them to the underlying I/O stream.
+ * <p>
+ * A send carrying a <code>seq</code> parameter is numbered, starting from
+ * zero for each connection, and is delivered in sequence order through the
+ * connection's {@link SendSequencer}, so clients may have several numbered
+ * sends in flight at once. Such a send is answered with
+ * <code>RECEIVED</code> once it has been written or held, with
+ * <code>DUPLICATE</code> if its number was already accepted, and with an
+ * error if it is too far ahead or the reorder buffer is full. Numbered and
+ * unnumbered sends should not be mixed on one connection.
+ * <p>
+ * On connections which negotiated compression, a send with a
+ * <code>Content-Encoding: deflate</code> header carries the next part of the
+ * client's deflate stream, and is decompressed before being written.
+ * <p>
+ * Numbered and compressed sends are always copied on the thread which handles
+ * them, even when sends are otherwise handled asynchronously; see
+ * {@link #isBlocking(HttpServletRequest)}.
+ * <p>
+ * On rate-limited tunnels, the body is copied no faster than the tunnel's
+ * and its user's send rates allow.
  */
 public class SendHandler extends AbstractHandler {
   private static final Logger logger = LogManager.getLogger(SendHandler.class);
 
-  private final String path;
+  private static final int BUFFER_SIZE = 32768;
+
   private final EndpointTracker tracker;
+  private final Executor writeExecutor;
+  private final int maxQueueSize;
+  private final BufferPool bufferPool;
+  private final int reorderWindow;
+  private final int reorderSize;
 
   /**
    * Creates a new send handler.
    *
-   * @param path    base URL
-   * @param tracker endpoint tracker
+   * @param tracker       endpoint tracker
+   * @param writeExecutor executor used to write to endpoints when handling
+   *                      sends asynchronously, or <code>null</code> to use
+   *                      blocking I/O on the request thread
+   * @param maxQueueSize  maximum number of bytes queued toward an endpoint
+   *                      when handling sends asynchronously
+   * @param bufferPool    pool from which copy buffers are borrowed
+   * @param reorderWindow number of numbered sends which may be held ahead of
+   *                      the next expected send
+   * @param reorderSize   maximum number of bytes held by numbered sends for
+   *                      each connection
    */
-  public SendHandler(String path, EndpointTracker tracker) {
-    this.path = path + "/send";
+  public SendHandler(EndpointTracker tracker,
+      Executor writeExecutor, int maxQueueSize, BufferPool bufferPool,
+      int reorderWindow, int reorderSize) {
     this.tracker = tracker;
+    this.writeExecutor = writeExecutor;
+    this.maxQueueSize = maxQueueSize;
+    this.bufferPool = bufferPool;
+    this.reorderWindow = reorderWindow;
+    this.reorderSize = reorderSize;
+  }
+
+  /**
+   * Determines whether a send is copied on the thread which handles it, even
+   * when sends are handled asynchronously. Such sends may wait on rate limits,
+   * so should be kept off the request threads.
+   *
+   * @param request send request
+   * @return <code>true</code> if the send is numbered or compressed
+   */
+  public static boolean isBlocking(HttpServletRequest request) {
+    return request.getParameter("seq") != null || Compression.DEFLATE
+        .equalsIgnoreCase(request.getHeader("Content-Encoding"));
   }
 
   @Override public void handle(String target, Request baseRequest,
       HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
-    if (!path.equals(request.getRequestURI())) {
-      return;
-    }
-
     String id = request.getParameter("id");
-    Endpoint endpoint = tracker.getEndpoint(id);
+    Session session = tracker.getSession(id);
 
-    if (endpoint == null) {
+    if (session == null) {
       if (logger.isDebugEnabled())
         logger.debug(
             "Send [" + id + "]: user=" + CurrentUser.get() + ", state=closed");
@@ -58,21 +118,60 @@ public class SendHandler extends AbstractHandler {
       return;
     }
 
+    Compression compression = session.getCompression();
+    boolean deflated = Compression.DEFLATE
+        .equalsIgnoreCase(request.getHeader("Content-Encoding"));
+    if (deflated && compression == null) {
+      sendMessage(response, HttpServletResponse.SC_BAD_REQUEST,
+          "ERROR Compression not negotiated");
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    String seq = request.getParameter("seq");
+    if (seq != null) {
+      sendSequenced(id, session, seq, deflated, request, response);
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    // compressed bodies must be inflated in order, so are never queued
+    if (writeExecutor != null && !isBlocking(request)) {
+      AsyncContext context = request.startAsync();
+      context.setTimeout(0L);
+      new AsyncSender(session, CurrentUser.get(), context,
+          new EndpointWriter(session.getEndpoint(), writeExecutor,
+              maxQueueSize, bufferPool), bufferPool).start();
+      baseRequest.setHandled(true);
+      return;
+    }
+
     ServletInputStream in = null;
     ServletOutputStream out = null;
+    ByteBuffer buffer = bufferPool.acquire(BUFFER_SIZE, false);
     try {
       in = request.getInputStream();
 
-      OutputStream endpointOutputStream = endpoint.getOutputStream();
-      byte[] buf = new byte[32768];
+      OutputStream endpointOutputStream =
+          session.getEndpoint().getOutputStream();
+      RateLimiter.Tunnel limiter = session.getLimiter();
+      byte[] buf = buffer.array();
       int bytes = 0;
       int c = 0;
       do {
-        c = in.read(buf, 0, 32768);
+        c = in.read(buf, 0, BUFFER_SIZE);
         if (c > 0) {
-          endpointOutputStream.write(buf, 0, c);
+          if (limiter != null) {
+            limiter.pause(limiter.send(c));
+          }
+          if (deflated) {
+            compression.inflate(buf, 0, c, endpointOutputStream);
+          } else {
+            endpointOutputStream.write(buf, 0, c);
+          }
           bytes += c;
-          if (!tracker.refresh(id))
+          session.addBytesSent(c);
+          if (!session.refresh())
             break;
         }
       } while (c >= 0);
@@ -93,7 +192,10 @@ public class SendHandler extends AbstractHandler {
         logger.debug(
             "Send [" + id + "]: user=" + CurrentUser.get() + ", received "
                 + bytes + " bytes");
+    } catch (ZipException e) {
+      invalidCompression(id, response, e);
     } finally {
+      bufferPool.release(buffer);
       try {
         if (in != null)
           in.close();
@@ -109,15 +211,142 @@ public class SendHandler extends AbstractHandler {
     baseRequest.setHandled(true);
   }
 
+  private void sendSequenced(String id, Session session, String seq,
+      boolean deflated, HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    long sequence;
+    try {
+      sequence = Long.parseLong(seq);
+    } catch (NumberFormatException e) {
+      sequence = -1L;
+    }
+    if (sequence < 0L) {
+      sendMessage(response, HttpServletResponse.SC_BAD_REQUEST,
+          "ERROR Invalid sequence");
+      return;
+    }
+
+    SendSequencer sequencer =
+        session.getSendSequencer(reorderWindow, reorderSize);
+    byte[] data = readBody(request, sequencer.getMaxBytes());
+    if (data == null) {
+      sendMessage(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+          "ERROR Send too large");
+      return;
+    }
+
+    RateLimiter.Tunnel limiter = session.getLimiter();
+    if (limiter != null) {
+      limiter.pause(limiter.send(data.length));
+    }
+
+    SendSequencer.Result result;
+    try {
+      result = sequencer.submit(sequence, data, deflated);
+    } catch (ZipException e) {
+      invalidCompression(id, response, e);
+      return;
+    }
+
+    if (logger.isDebugEnabled())
+      logger.debug("Send [" + id + "]: user=" + CurrentUser.get() + ", seq="
+          + sequence + ", result=" + result + ", " + data.length + " bytes");
+
+    switch (result) {
+    case ACCEPTED:
+      session.addBytesSent(data.length);
+      session.refresh();
+      sendMessage(response, HttpServletResponse.SC_OK,
+          "RECEIVED " + data.length);
+      break;
+    case DUPLICATE:
+      sendMessage(response, HttpServletResponse.SC_OK,
+          "DUPLICATE " + sequence);
+      break;
+    case OUT_OF_WINDOW:
+      sendMessage(response, HttpServletResponse.SC_CONFLICT,
+          "ERROR Sequence out of window");
+      break;
+    default:
+      sendMessage(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "ERROR Reorder buffer full");
+    }
+  }
+
+  /**
+   * Disconnects a tunnel whose compressed stream is corrupt, since nothing
+   * further sent on it can be decompressed.
+   */
+  private void invalidCompression(String id, HttpServletResponse response,
+      ZipException e) throws IOException {
+    logger.info("Disconnect [" + id + "]: user=" + CurrentUser.get()
+        + ", error=" + e.getMessage());
+    tracker.remove(id);
+    sendMessage(response, HttpServletResponse.SC_BAD_REQUEST,
+        "ERROR " + e.getMessage());
+  }
+
+  /**
+   * Reads an entire request body into a new array.
+   *
+   * @param request  request
+   * @param maxBytes maximum body size
+   * @return body, or <code>null</code> if it exceeds the maximum size
+   * @throws IOException if an I/O error occurs
+   */
+  private byte[] readBody(HttpServletRequest request, int maxBytes)
+      throws IOException {
+    long length = request.getContentLengthLong();
+    if (length > maxBytes) {
+      return null;
+    }
+    byte[] data = new byte[length >= 0L ? (int) length : BUFFER_SIZE];
+    int size = 0;
+
+    ServletInputStream in = null;
+    try {
+      in = request.getInputStream();
+      while (true) {
+        if (size == data.length) {
+          if (size == maxBytes) {
+            if (in.read() < 0) {
+              break;
+            }
+            return null;
+          }
+          data = Arrays.copyOf(data,
+              Math.min(Math.max(size * 2, BUFFER_SIZE), maxBytes));
+        }
+        int c = in.read(data, size, data.length - size);
+        if (c < 0) {
+          break;
+        }
+        size += c;
+      }
+    } finally {
+      try {
+        if (in != null)
+          in.close();
+      } catch (Throwable ignored) {
+      }
+    }
+    return size == data.length ? data : Arrays.copyOf(data, size);
+  }
+
   private void sendError(HttpServletResponse response, String error)
       throws IOException {
-    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+    sendMessage(response, HttpServletResponse.SC_NOT_FOUND, "ERROR " + error);
+  }
+
+  private void sendMessage(HttpServletResponse response, int status,
+      String message) throws IOException {
+    response.setStatus(status);
     response.setContentType("text/plain");
 
     PrintWriter out = null;
     try {
       out = response.getWriter();
-      out.print("ERROR " + error + "\r\n");
+      out.print(message + "\r\n");
     } finally {
       try {
         if (out != null)
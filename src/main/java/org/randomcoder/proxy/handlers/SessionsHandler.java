@@ -0,0 +1,230 @@
+package org.randomcoder.proxy.handlers;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.Session;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Handler which lists active sessions as JSON, one page at a time.
+ * <p>
+ * Sessions are ordered by id, and a page is requested by passing the last id
+ * of the previous page as the <code>after</code> parameter; the response
+ * includes this cursor as <code>next</code>, which is <code>null</code> on
+ * the last page. Because the cursor is a key rather than a position, pages
+ * stay consistent while sessions are being added and removed.
+ * <p>
+ * Sessions are read directly from the tracker's live tables. Only the
+ * requested page is ever held, so the memory used by a request depends on
+ * the page size and not on the number of sessions.
+ * <p>
+ * Sessions of rate-limited tunnels also include the rates, in bytes per
+ * second, at which they sent and received over the last second.
+ * <p>
+ * Parameters:
+ * <ul>
+ * <li><code>after</code> - return sessions whose id follows this one</li>
+ * <li><code>limit</code> - maximum number of sessions to return (default
+ * 100, at most 1000)</li>
+ * <li><code>user</code> - only return sessions owned by this user</li>
+ * <li><code>destination</code> - only return sessions connected to this
+ * destination, given as <code>host:port</code> or just <code>host</code></li>
+ * </ul>
+ */
+public class SessionsHandler extends AbstractHandler {
+  private static final int DEFAULT_LIMIT = 100;
+  private static final int MAX_LIMIT = 1000;
+  private static final Comparator<Session> BY_ID =
+      Comparator.comparing(Session::getId);
+
+  private final EndpointTracker tracker;
+
+  /**
+   * Creates a new sessions handler.
+   *
+   * @param tracker endpoint tracker
+   */
+  public SessionsHandler(EndpointTracker tracker) {
+    this.tracker = tracker;
+  }
+
+  @Override public void handle(String target, Request baseRequest,
+      HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    String after = request.getParameter("after");
+    String user = request.getParameter("user");
+    String destination = request.getParameter("destination");
+    int limit;
+    try {
+      String value = request.getParameter("limit");
+      limit = value == null ? DEFAULT_LIMIT : Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      limit = -1;
+    }
+    if (limit < 1 || limit > MAX_LIMIT) {
+      sendError(response, "Invalid limit");
+      baseRequest.setHandled(true);
+      return;
+    }
+
+    // keep the first limit + 1 matching sessions after the cursor; the heap
+    // is ordered largest first so the largest can be dropped as it fills
+    PriorityQueue<Session> page =
+        new PriorityQueue<Session>(limit + 1, BY_ID.reversed());
+    int matched = 0;
+    for (Session session : tracker.getSessions()) {
+      if ((after != null && session.getId().compareTo(after) <= 0) || !matches(
+          session, user, destination)) {
+        continue;
+      }
+      matched++;
+      if (page.size() <= limit) {
+        page.offer(session);
+      } else if (BY_ID.compare(session, page.peek()) < 0) {
+        page.poll();
+        page.offer(session);
+      }
+    }
+
+    boolean more = page.size() > limit;
+    if (more) {
+      page.poll();
+    }
+    Session[] sessions = page.toArray(new Session[0]);
+    Arrays.sort(sessions, BY_ID);
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+
+    PrintWriter out = null;
+    try {
+      out = response.getWriter();
+      out.print("{\"sessions\":[");
+      for (int i = 0; i < sessions.length; i++) {
+        if (i > 0) {
+          out.print(',');
+        }
+        write(out, sessions[i]);
+      }
+      out.print("],\"remaining\":");
+      out.print(matched - sessions.length);
+      out.print(",\"next\":");
+      if (more) {
+        quote(out, sessions[sessions.length - 1].getId());
+      } else {
+        out.print("null");
+      }
+      out.print("}\n");
+    } finally {
+      try {
+        if (out != null) {
+          out.close();
+        }
+      } catch (Throwable ignored) {
+      }
+    }
+    baseRequest.setHandled(true);
+  }
+
+  private static boolean matches(Session session, String user,
+      String destination) {
+    if (user != null && !user.equals(session.getOwner())) {
+      return false;
+    }
+    if (destination == null) {
+      return true;
+    }
+    String d = session.getDestination();
+    return d.equals(destination) || (d.length() > destination.length()
+        && d.startsWith(destination)
+        && d.charAt(destination.length()) == ':'
+        && d.indexOf(':', destination.length() + 1) < 0);
+  }
+
+  private static void write(PrintWriter out, Session session) {
+    out.print("{\"id\":");
+    quote(out, session.getId());
+    out.print(",\"user\":");
+    quote(out, session.getOwner());
+    out.print(",\"destination\":");
+    quote(out, session.getDestination());
+    out.print(",\"endpoint\":");
+    quote(out, session.getEndpoint().toString());
+    out.print(",\"created\":");
+    out.print(session.getCreated());
+    out.print(",\"expires\":");
+    out.print(session.getExpiration());
+    out.print(",\"bytesSent\":");
+    out.print(session.getBytesSent());
+    out.print(",\"bytesReceived\":");
+    out.print(session.getBytesReceived());
+    out.print(",\"compressed\":");
+    out.print(session.getCompression() != null);
+    RateLimiter.Tunnel limiter = session.getLimiter();
+    if (limiter != null) {
+      out.print(",\"sendRate\":");
+      out.print(limiter.getSend().getCurrentRate());
+      out.print(",\"receiveRate\":");
+      out.print(limiter.getReceive().getCurrentRate());
+    }
+    out.print('}');
+  }
+
+  private static void quote(PrintWriter out, String value) {
+    if (value == null) {
+      out.print("null");
+      return;
+    }
+    out.print('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '"':
+        out.print("\\\"");
+        break;
+      case '\\':
+        out.print("\\\\");
+        break;
+      default:
+        if (c < 0x20) {
+          out.print(String.format("\\u%04x", (int) c));
+        } else {
+          out.print(c);
+        }
+      }
+    }
+    out.print('"');
+  }
+
+  private void sendError(HttpServletResponse response, String error)
+      throws IOException {
+    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+
+    PrintWriter out = null;
+    try {
+      out = response.getWriter();
+      out.print("{\"error\":");
+      quote(out, error);
+      out.print("}\n");
+    } finally {
+      try {
+        if (out != null)
+          out.close();
+      } catch (Throwable ignored) {
+      }
+    }
+  }
+}
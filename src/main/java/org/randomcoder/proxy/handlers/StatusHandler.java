@@ -2,43 +2,92 @@ package org.randomcoder.proxy.handlers;
 
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
-import org.randomcoder.proxy.support.Endpoint;
+import org.randomcoder.proxy.support.AdmissionController;
+import org.randomcoder.proxy.support.AdmissionController.OperationClass;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.CompressionStats;
+import org.randomcoder.proxy.support.ConnectStats;
 import org.randomcoder.proxy.support.EndpointEvent;
+import org.randomcoder.proxy.support.EndpointEvent.EventType;
 import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.Limits;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.Session;
+import org.randomcoder.proxy.support.TokenBucket;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
 import java.util.Map;
 
 /**
- * Handler which displays status.
+ * Handler which displays status. Sessions are also available one page at a
+ * time, as JSON, from {@link SessionsHandler}.
+ * <p>
+ * The events listed may be narrowed with the <code>type</code> (e.g.
+ * <code>EXPIRE</code>), <code>user</code> and <code>session</code>
+ * parameters.
+ * <p>
+ * Rates are shown as the rate measured over the last second followed by the
+ * limit, e.g. <code>1048576.0/4194304</code>.
  */
 public class StatusHandler extends AbstractHandler {
-  private final String path;
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+      .ofPattern("yyyy-MM-dd HH:mm:ss Z").withZone(ZoneId.systemDefault());
+
   private final EndpointTracker tracker;
+  private final BufferPool bufferPool;
+  private final CompressionStats compressionStats;
+  private final ConnectStats connectStats;
+  private final RateLimiter rateLimiter;
+  private final AdmissionController admissionController;
 
   /**
    * Creates a new status handler.
    *
-   * @param path    base URL
-   * @param tracker endpoint tracker
+   * @param tracker             endpoint tracker
+   * @param bufferPool          buffer pool, or <code>null</code> to omit pool
+   *                            statistics
+   * @param compressionStats    compression statistics, or <code>null</code>
+   *                            to omit them
+   * @param connectStats        connection statistics, or <code>null</code> to
+   *                            omit them
+   * @param rateLimiter         rate limits, or <code>null</code> to omit them
+   * @param admissionController admission controller, or <code>null</code> to
+   *                            omit it
    */
-  public StatusHandler(String path, EndpointTracker tracker) {
-    this.path = path + "/status";
+  public StatusHandler(EndpointTracker tracker,
+      BufferPool bufferPool, CompressionStats compressionStats,
+      ConnectStats connectStats, RateLimiter rateLimiter,
+      AdmissionController admissionController) {
     this.tracker = tracker;
+    this.bufferPool = bufferPool;
+    this.compressionStats = compressionStats;
+    this.connectStats = connectStats;
+    this.rateLimiter = rateLimiter;
+    this.admissionController = admissionController;
   }
 
   @Override public void handle(String target, Request baseRequest,
       HttpServletRequest request, HttpServletResponse response)
       throws IOException, ServletException {
-    if (!path.equals(request.getRequestURI())) {
-      return;
+    EventType type = null;
+    String typeName = request.getParameter("type");
+    if (typeName != null) {
+      try {
+        type = EventType.valueOf(typeName.toUpperCase(Locale.US));
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "Unknown event type");
+        baseRequest.setHandled(true);
+        return;
+      }
     }
 
     response.setStatus(HttpServletResponse.SC_OK);
@@ -46,38 +95,139 @@ public class StatusHandler extends AbstractHandler {
 
     PrintWriter out = null;
     try {
-      DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z");
-
       out = response.getWriter();
 
-      Map<String, Endpoint> endpointMap = tracker.getEndpointMap();
-      Map<String, Long> expirationMap = tracker.getExpirationMap();
-
       out.println("Active sessions:");
       out.println();
 
-      for (Map.Entry<String, Endpoint> ep : endpointMap.entrySet()) {
-        String key = ep.getKey();
-        out.print(ep.getKey());
+      for (Session session : tracker.getSessions()) {
+        out.print(session.getId());
         out.print(" => ");
-        out.print(ep.getValue());
-
-        Long expiration = expirationMap.get(key);
-        if (expiration == null) {
-          out.println(" (expiration unknown)");
-        } else {
-          out.print(" (expires ");
-          out.print(df.format(new Date(expiration)));
-          out.println(")");
+        out.print(session);
+        out.print(" (user ");
+        out.print(session.getOwner());
+        out.print(", destination ");
+        out.print(session.getDestination());
+        out.print(", sent ");
+        out.print(session.getBytesSent());
+        out.print(", received ");
+        out.print(session.getBytesReceived());
+        RateLimiter.Tunnel limiter = session.getLimiter();
+        if (limiter != null) {
+          out.print(", send rate ");
+          printRate(out, limiter.getSend());
+          out.print(", receive rate ");
+          printRate(out, limiter.getReceive());
+        }
+        out.print(", expires ");
+        out.print(
+            DATE_FORMAT.format(Instant.ofEpochMilli(session.getExpiration())));
+        out.println(")");
+      }
+
+      if (bufferPool != null) {
+        out.println();
+        out.println("Buffer pool:");
+        out.println();
+        out.print("hits ");
+        out.print(bufferPool.getHits());
+        out.print(", misses ");
+        out.print(bufferPool.getMisses());
+        out.print(", discards ");
+        out.print(bufferPool.getDiscards());
+        out.print(", heap ");
+        out.print(bufferPool.getHeapFootprint());
+        out.print(" bytes, direct ");
+        out.print(bufferPool.getDirectFootprint());
+        out.println(" bytes");
+      }
+
+      if (compressionStats != null) {
+        out.println();
+        out.println("Compression:");
+        out.println();
+        out.print("deflated ");
+        out.print(compressionStats.getDeflateInput());
+        out.print(" to ");
+        out.print(compressionStats.getDeflateOutput());
+        out.print(" bytes (ratio ");
+        out.print(String.format("%.3f", compressionStats.getDeflateRatio()));
+        out.print(") in ");
+        out.print(compressionStats.getDeflateNanos() / 1000000L);
+        out.print(" ms, passed through ");
+        out.print(compressionStats.getPassedThrough());
+        out.print(" bytes, inflated ");
+        out.print(compressionStats.getInflateInput());
+        out.print(" to ");
+        out.print(compressionStats.getInflateOutput());
+        out.print(" bytes in ");
+        out.print(compressionStats.getInflateNanos() / 1000000L);
+        out.println(" ms");
+      }
+
+      if (connectStats != null) {
+        out.println();
+        out.println("Connections:");
+        out.println();
+        printConnectStats(out, "total", connectStats.getTotal());
+        for (Map.Entry<String, ConnectStats.Destination> entry : connectStats
+            .getDestinations().entrySet()) {
+          printConnectStats(out, entry.getKey(), entry.getValue());
         }
       }
 
+      if (rateLimiter != null) {
+        out.println();
+        out.println("Rate limits:");
+        out.println();
+        for (RateLimiter.User user : rateLimiter.getUsers()) {
+          out.print(user.getName());
+          out.print(" => send ");
+          printRate(out, user.getSend());
+          out.print(", receive ");
+          printRate(out, user.getReceive());
+          out.print(", requests ");
+          printRate(out, user.getRequests());
+          Limits limits = user.getLimits();
+          out.print(", per tunnel send ");
+          printLimit(out, limits.getTunnelSend());
+          out.print(", per tunnel receive ");
+          printLimit(out, limits.getTunnelReceive());
+          out.print(", tunnels ");
+          printLimit(out, limits.getTunnels());
+          out.println();
+        }
+      }
+
+      if (admissionController != null) {
+        out.println();
+        out.println("Admission:");
+        out.println();
+        out.print("utilization ");
+        out.print(
+            String.format("%.3f", admissionController.getUtilization()));
+        for (OperationClass operationClass : OperationClass.values()) {
+          out.print(", ");
+          out.print(operationClass.name().toLowerCase(Locale.US));
+          out.print(" in flight ");
+          out.print(admissionController.getInFlight(operationClass));
+        }
+        out.print(", shed ");
+        out.print(admissionController.getShed());
+        out.print(", over quota ");
+        out.print(admissionController.getQuotaExceeded());
+        out.println();
+      }
+
       out.println();
       out.println("Events:");
       out.println();
 
-      for (EndpointEvent event : tracker.getEvents()) {
-        out.print(df.format(new Date(event.getTimestamp())));
+      for (EndpointEvent event : tracker
+          .getEvents(type, request.getParameter("user"),
+              request.getParameter("session"), Integer.MAX_VALUE)) {
+        out.print(
+            DATE_FORMAT.format(Instant.ofEpochMilli(event.getTimestamp())));
         out.print(" ");
         out.print(event.getStatus().name());
         out.print(" ");
@@ -96,4 +246,32 @@ public class StatusHandler extends AbstractHandler {
     }
     baseRequest.setHandled(true);
   }
-}
\ No newline at end of file
+
+  private void printRate(PrintWriter out, TokenBucket bucket) {
+    out.print(String.format("%.1f", bucket.getCurrentRate()));
+    out.print("/");
+    printLimit(out, bucket.getRate());
+  }
+
+  private void printLimit(PrintWriter out, long rate) {
+    out.print(rate > 0L ? Long.toString(rate) : "unlimited");
+  }
+
+  private void printConnectStats(PrintWriter out, String name,
+      ConnectStats.Destination stats) {
+    out.print(name);
+    out.print(" => ipv4 ");
+    out.print(stats.getIpv4());
+    out.print(", ipv6 ");
+    out.print(stats.getIpv6());
+    out.print(", fallbacks ");
+    out.print(stats.getFallbacks());
+    out.print(", failures ");
+    out.print(stats.getFailures());
+    out.print(", pooled ");
+    out.print(stats.getPooled());
+    out.print(", mean ");
+    out.print(String.format("%.1f", stats.getMeanMillis()));
+    out.println(" ms");
+  }
+}
\ No newline at end of file
@@ -0,0 +1,568 @@
+package org.randomcoder.proxy.handlers;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.SuspendToken;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.randomcoder.proxy.support.AdmissionController;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.EndpointConnector;
+import org.randomcoder.proxy.support.EndpointReader;
+import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.EndpointWriter;
+import org.randomcoder.proxy.support.RateLimiter;
+import org.randomcoder.proxy.support.Session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * WebSocket carrying both directions of any number of tunnels. Commands and
+ * replies are text messages, each a single line:
+ * <ul>
+ * <li><code>CONNECT &lt;host&gt; &lt;port&gt;</code> - opens a new tunnel,
+ * which is disconnected when the socket closes</li>
+ * <li><code>ATTACH &lt;session-id&gt;</code> - carries a tunnel opened with
+ * the connect operation</li>
+ * <li><code>CLOSE &lt;channel&gt;</code> - disconnects a tunnel</li>
+ * <li><code>PING</code> - keeps every tunnel on the socket alive</li>
+ * </ul>
+ * Successful <code>CONNECT</code> and <code>ATTACH</code> commands are
+ * answered with <code>OPEN &lt;channel&gt; &lt;session-id&gt;</code>,
+ * <code>PING</code> with <code>PONG</code>, and failures with
+ * <code>ERROR &lt;message&gt;</code> or <code>UNKNOWN &lt;session-id&gt;</code>.
+ * <code>CLOSED &lt;channel&gt;</code> is sent once a tunnel has ended.
+ * <p>
+ * Data travels in binary messages in both directions, each a four-byte
+ * channel number followed by the payload. Each channel has at most one
+ * message in flight toward the client, and stops reading from the socket
+ * while its upstream queue is full. Channels whose tunnels are rate-limited
+ * also pause in either direction for as long as the limits require.
+ */
+public class TunnelSocket implements WebSocketListener {
+  private static final Logger logger = LogManager.getLogger(TunnelSocket.class);
+
+  private static final int HEADER_SIZE = 4;
+  private static final int BUFFER_SIZE = 32768;
+  private static final WriteCallback IGNORE = new WriteCallback() {
+    @Override public void writeFailed(Throwable x) {
+    }
+
+    @Override public void writeSuccess() {
+    }
+  };
+
+  private final String user;
+  private final EndpointTracker tracker;
+  private final EndpointConnector connector;
+  private final Executor readExecutor;
+  private final Executor writeExecutor;
+  private final int maxQueueSize;
+  private final BufferPool pool;
+  private final RateLimiter rateLimiter;
+  private final AdmissionController admissionController;
+
+  // all remaining state is guarded by this
+  private final Map<Integer, Channel> channels = new HashMap<>();
+  private int nextChannel = 1;
+  private org.eclipse.jetty.websocket.api.Session socket;
+  private boolean closed = false;
+
+  /**
+   * Creates a new tunnel socket.
+   *
+   * @param user                user which owns the socket
+   * @param tracker             endpoint tracker
+   * @param connector           connector used to open endpoints
+   * @param readExecutor        executor used to read from blocking endpoints
+   * @param writeExecutor       executor used to write to blocking endpoints
+   * @param maxQueueSize        maximum number of bytes queued toward each
+   *                            endpoint
+   * @param pool                pool from which buffers are borrowed
+   * @param rateLimiter         rate limits applied to new tunnels, or
+   *                            <code>null</code> to leave them unlimited
+   * @param admissionController controller enforcing tunnel quotas, or
+   *                            <code>null</code> for no quotas
+   */
+  public TunnelSocket(String user, EndpointTracker tracker,
+      EndpointConnector connector, Executor readExecutor, Executor writeExecutor,
+      int maxQueueSize, BufferPool pool, RateLimiter rateLimiter,
+      AdmissionController admissionController) {
+    this.user = user;
+    this.tracker = tracker;
+    this.connector = connector;
+    this.readExecutor = readExecutor;
+    this.writeExecutor = writeExecutor;
+    this.maxQueueSize = maxQueueSize;
+    this.pool = pool;
+    this.rateLimiter = rateLimiter;
+    this.admissionController = admissionController;
+  }
+
+  @Override public synchronized void onWebSocketConnect(
+      org.eclipse.jetty.websocket.api.Session session) {
+    this.socket = session;
+
+    if (logger.isDebugEnabled())
+      logger.debug("Socket: user=" + user + ", remote=" + session
+          .getRemoteAddress() + ", state=open");
+  }
+
+  @Override public void onWebSocketText(String message) {
+    String[] words = message.trim().split(" ");
+    switch (words[0]) {
+    case "CONNECT":
+      if (words.length != 3) {
+        reply("ERROR Invalid command");
+        return;
+      }
+      connect(words[1], words[2]);
+      return;
+    case "ATTACH":
+      if (words.length != 2) {
+        reply("ERROR Invalid command");
+        return;
+      }
+      attach(words[1]);
+      return;
+    case "CLOSE":
+      if (words.length != 2) {
+        reply("ERROR Invalid command");
+        return;
+      }
+      close(words[1]);
+      return;
+    case "PING":
+      ping();
+      return;
+    default:
+      reply("ERROR Unknown command");
+    }
+  }
+
+  @Override public void onWebSocketBinary(byte[] payload, int offset,
+      int len) {
+    if (len < HEADER_SIZE) {
+      return;
+    }
+    int number =
+        ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16)
+            | ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3]
+            & 0xff);
+    Channel channel;
+    synchronized (this) {
+      channel = channels.get(number);
+    }
+    if (channel != null) {
+      channel.send(payload, offset + HEADER_SIZE, len - HEADER_SIZE);
+    }
+  }
+
+  @Override public void onWebSocketClose(int statusCode, String reason) {
+    if (logger.isDebugEnabled())
+      logger.debug(
+          "Socket: user=" + user + ", state=closed, status=" + statusCode);
+    shutdown();
+  }
+
+  @Override public void onWebSocketError(Throwable cause) {
+    logger.debug("Socket: user=" + user + ", error=" + cause.getMessage());
+    shutdown();
+  }
+
+  private void connect(String host, String portString) {
+    int port;
+    try {
+      port = Integer.parseInt(portString);
+    } catch (NumberFormatException e) {
+      reply("ERROR " + e.getMessage());
+      return;
+    }
+
+    AdmissionController.Permit permit = admissionController == null ?
+        null :
+        admissionController.acquireTunnel(user);
+    if (admissionController != null && permit == null) {
+      reply("ERROR Tunnel quota exceeded");
+      return;
+    }
+
+    connector.connect(host, port).whenComplete((endpoint, e) -> {
+      if (e != null) {
+        if (permit != null) {
+          permit.release();
+        }
+        // can't connect
+        Throwable cause = e instanceof CompletionException
+            && e.getCause() != null ? e.getCause() : e;
+        reply("ERROR " + cause.getMessage());
+        return;
+      }
+
+      Session session = tracker.add(endpoint, user, host + ":" + port);
+      if (rateLimiter != null) {
+        session.setLimiter(rateLimiter.forTunnel(user));
+      }
+      if (permit != null) {
+        session.setPermit(permit);
+        if (session.isClosed()) {
+          // closed before the permit was attached
+          permit.release();
+        }
+      }
+
+      logger.info(
+          "Connect [" + session.getId() + "]: user=" + user + ", destination="
+              + host + ":" + port + ", transport=websocket");
+
+      open(session, true);
+    });
+  }
+
+  private void attach(String id) {
+    Session session = tracker.getSession(id);
+    if (session == null) {
+      reply("UNKNOWN " + id);
+      return;
+    }
+    open(session, false);
+  }
+
+  private void open(Session session, boolean owned) {
+    Channel channel;
+    synchronized (this) {
+      if (closed) {
+        if (owned) {
+          tracker.remove(session.getId());
+        }
+        return;
+      }
+      channel = new Channel(nextChannel++, session, owned);
+      channels.put(channel.number, channel);
+    }
+    // queued ahead of any data for the channel
+    reply("OPEN " + channel.number + " " + session.getId());
+    channel.read();
+  }
+
+  private void close(String number) {
+    Channel channel;
+    synchronized (this) {
+      try {
+        channel = channels.get(Integer.valueOf(number));
+      } catch (NumberFormatException e) {
+        channel = null;
+      }
+    }
+    if (channel == null) {
+      reply("ERROR Unknown channel");
+      return;
+    }
+
+    logger.info("Disconnect [" + channel.id + "]: user=" + user
+        + ", transport=websocket");
+
+    // ending the tunnel completes the outstanding read, which reports CLOSED
+    tracker.remove(channel.id);
+  }
+
+  private void ping() {
+    List<Channel> open;
+    synchronized (this) {
+      open = new ArrayList<>(channels.values());
+    }
+    for (Channel channel : open) {
+      channel.session.refresh();
+    }
+    reply("PONG");
+  }
+
+  private void reply(String message) {
+    org.eclipse.jetty.websocket.api.Session s;
+    synchronized (this) {
+      s = socket;
+    }
+    if (s != null && s.isOpen()) {
+      s.getRemote().sendString(message, IGNORE);
+    }
+  }
+
+  private void shutdown() {
+    List<Channel> open;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      open = new ArrayList<>(channels.values());
+      channels.clear();
+    }
+    for (Channel channel : open) {
+      channel.shutdown();
+    }
+  }
+
+  /**
+   * A single tunnel carried on the socket.
+   */
+  private final class Channel
+      implements EndpointReader.Listener, WriteCallback {
+    private final int number;
+    private final String id;
+    private final Session session;
+    private final boolean owned;
+    private final EndpointReader reader;
+    private final EndpointWriter writer;
+    private final RateLimiter.Tunnel limiter;
+
+    // all remaining state is guarded by this
+    private ByteBuffer buffer;
+    private byte[] buf;
+    private boolean reading = false;
+    private boolean sending = false;
+    private boolean paused = false;
+    private boolean waiting = false;
+    private boolean ended = false;
+    private final Deque<ByteBuffer> pending = new ArrayDeque<>();
+    private SuspendToken suspended;
+
+    private Channel(int number, Session session, boolean owned) {
+      this.number = number;
+      this.id = session.getId();
+      this.session = session;
+      this.owned = owned;
+      this.reader =
+          new EndpointReader(session.getEndpoint(), readExecutor, this);
+      this.writer = new EndpointWriter(session.getEndpoint(), writeExecutor,
+          maxQueueSize, pool);
+      this.limiter = session.getLimiter();
+      this.buffer = pool.acquire(BUFFER_SIZE, false);
+      this.buf = buffer.array();
+      buf[0] = (byte) (number >>> 24);
+      buf[1] = (byte) (number >>> 16);
+      buf[2] = (byte) (number >>> 8);
+      buf[3] = (byte) number;
+    }
+
+    private synchronized void read() {
+      if (ended) {
+        release();
+        return;
+      }
+      reading = true;
+      reader.read(buf, HEADER_SIZE, BUFFER_SIZE - HEADER_SIZE);
+    }
+
+    @Override public void onData(byte[] data, int offset, int len) {
+      org.eclipse.jetty.websocket.api.Session s;
+      synchronized (this) {
+        reading = false;
+        if (ended) {
+          release();
+          return;
+        }
+        sending = true;
+        long pause = limiter == null ? 0L : limiter.receive(len);
+        if (pause > 0L) {
+          paused = true;
+          limiter.resume(this::unpause, pause);
+        }
+      }
+      synchronized (TunnelSocket.this) {
+        s = socket;
+      }
+      session.addBytesReceived(len);
+      session.refresh();
+      s.getRemote().sendBytes(ByteBuffer.wrap(buf, 0, HEADER_SIZE + len), this);
+    }
+
+    @Override public void writeSuccess() {
+      synchronized (this) {
+        sending = false;
+        if (paused) {
+          waiting = true;
+          return;
+        }
+      }
+      read();
+    }
+
+    private void unpause() {
+      synchronized (this) {
+        paused = false;
+        if (!waiting) {
+          return;
+        }
+        waiting = false;
+      }
+      read();
+    }
+
+    @Override public void writeFailed(Throwable x) {
+      synchronized (this) {
+        sending = false;
+      }
+      end(false);
+    }
+
+    @Override public void onEnd() {
+      synchronized (this) {
+        reading = false;
+      }
+      end(true);
+    }
+
+    @Override public void onError(IOException e) {
+      synchronized (this) {
+        reading = false;
+      }
+      end(false);
+    }
+
+    /**
+     * Copies data from the socket toward the endpoint. If the upstream queue
+     * cannot take all of it, or the tunnel's rate limits require a pause,
+     * reading from the socket is suspended until it can continue.
+     */
+    private void send(byte[] data, int offset, int len) {
+      session.addBytesSent(len);
+      session.refresh();
+      long pause = limiter == null ? 0L : limiter.send(len);
+      boolean queued;
+      synchronized (this) {
+        // frames already read from the socket are delivered even once it has
+        // been suspended, so they wait behind the data already pending
+        queued = !pending.isEmpty();
+        pending.add(ByteBuffer.wrap(data, offset, len));
+      }
+      if (queued || (offerPending() && pause == 0L)) {
+        return;
+      }
+      SuspendToken token;
+      synchronized (TunnelSocket.this) {
+        token = socket.suspend();
+      }
+      synchronized (this) {
+        if (!ended) {
+          suspended = token;
+          token = null;
+        }
+      }
+      if (token != null) {
+        token.resume();
+        return;
+      }
+      if (pause > 0L) {
+        // resumes once the pause has ended, or later if the queue is full
+        limiter.resume(this::resume, pause);
+      } else {
+        writer.onSpaceAvailable(this::resume);
+      }
+    }
+
+    private void resume() {
+      boolean drained;
+      SuspendToken token = null;
+      synchronized (this) {
+        drained = offerPending();
+        if (drained) {
+          token = suspended;
+          suspended = null;
+        }
+      }
+      if (!drained) {
+        writer.onSpaceAvailable(this::resume);
+      } else if (token != null) {
+        token.resume();
+      }
+    }
+
+    /**
+     * Offers as much pending data as the queue will take.
+     *
+     * @return <code>true</code> if no data remains pending
+     */
+    private synchronized boolean offerPending() {
+      try {
+        while (!pending.isEmpty()) {
+          ByteBuffer data = pending.peek();
+          int c = writer.offer(data.array(), data.position(), data.remaining());
+          data.position(data.position() + c);
+          if (data.hasRemaining()) {
+            return false;
+          }
+          pending.remove();
+        }
+      } catch (IOException e) {
+        // tunnel is broken; discard and let the reader report it
+        pending.clear();
+      }
+      return true;
+    }
+
+    private void end(boolean complete) {
+      boolean notify;
+      synchronized (TunnelSocket.this) {
+        notify = channels.remove(number) != null;
+      }
+      synchronized (this) {
+        boolean first = !ended;
+        ended = true;
+        if (!reading && !sending) {
+          release();
+        }
+        if (!first) {
+          return;
+        }
+      }
+      writer.close();
+      if (complete) {
+        tracker.receiveComplete(id);
+      } else {
+        tracker.receiveError(id);
+      }
+      if (notify) {
+        reply("CLOSED " + number);
+      }
+      if (owned && tracker.getSession(id) != null) {
+        tracker.remove(id);
+      }
+      resume();
+    }
+
+    private void shutdown() {
+      synchronized (this) {
+        boolean first = !ended;
+        ended = true;
+        if (!reading && !sending) {
+          release();
+        }
+        if (!first) {
+          return;
+        }
+      }
+      writer.close();
+      if (owned) {
+        // completes the outstanding read, which releases the buffer
+        tracker.remove(id);
+      }
+    }
+
+    private void release() {
+      if (buffer != null) {
+        pool.release(buffer);
+        buffer = null;
+        buf = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package org.randomcoder.proxy.handlers;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.randomcoder.proxy.support.AdmissionController;
+import org.randomcoder.proxy.support.BufferPool;
+import org.randomcoder.proxy.support.CurrentUser;
+import org.randomcoder.proxy.support.EndpointConnector;
+import org.randomcoder.proxy.support.EndpointTracker;
+import org.randomcoder.proxy.support.RateLimiter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Executor;
+
+/**
+ * Handler which upgrades authenticated requests to a {@link TunnelSocket}.
+ * Requests which are not WebSocket upgrades are rejected.
+ */
+public class TunnelSocketHandler extends WebSocketHandler {
+  private static final int MAX_MESSAGE_SIZE = 65536 + 4;
+
+  private final EndpointTracker tracker;
+  private final EndpointConnector connector;
+  private final Executor readExecutor;
+  private final Executor writeExecutor;
+  private final int maxQueueSize;
+  private final BufferPool bufferPool;
+  private final RateLimiter rateLimiter;
+  private final AdmissionController admissionController;
+
+  /**
+   * Creates a new tunnel socket handler.
+   *
+   * @param tracker             endpoint tracker
+   * @param connector           connector used to open endpoints
+   * @param readExecutor        executor used to read from blocking endpoints
+   * @param writeExecutor       executor used to write to blocking endpoints
+   * @param maxQueueSize        maximum number of bytes queued toward each
+   *                            endpoint
+   * @param bufferPool          pool from which buffers are borrowed
+   * @param rateLimiter         rate limits applied to new tunnels, or
+   *                            <code>null</code> to leave them unlimited
+   * @param admissionController controller enforcing tunnel quotas, or
+   *                            <code>null</code> for no quotas
+   */
+  public TunnelSocketHandler(EndpointTracker tracker,
+      EndpointConnector connector, Executor readExecutor, Executor writeExecutor,
+      int maxQueueSize, BufferPool bufferPool, RateLimiter rateLimiter,
+      AdmissionController admissionController) {
+    super(bufferPool);
+    this.tracker = tracker;
+    this.connector = connector;
+    this.readExecutor = readExecutor;
+    this.writeExecutor = writeExecutor;
+    this.maxQueueSize = maxQueueSize;
+    this.bufferPool = bufferPool;
+    this.rateLimiter = rateLimiter;
+    this.admissionController = admissionController;
+  }
+
+  @Override public void configure(WebSocketServletFactory factory) {
+    factory.getPolicy().setMaxBinaryMessageSize(MAX_MESSAGE_SIZE);
+
+    // sockets are created during the upgrade, on the authenticated thread
+    factory.setCreator(
+        (request, response) -> new TunnelSocket(CurrentUser.get(), tracker,
+            connector, readExecutor, writeExecutor, maxQueueSize,
+            bufferPool, rateLimiter, admissionController));
+  }
+
+  @Override public void handle(String target, Request baseRequest,
+      HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+    super.handle(target, baseRequest, request, response);
+    if (baseRequest.isHandled() || response.isCommitted()) {
+      return;
+    }
+
+    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    response.setContentType("text/plain");
+
+    PrintWriter out = null;
+    try {
+      out = response.getWriter();
+      out.print("ERROR WebSocket upgrade required\r\n");
+    } finally {
+      try {
+        if (out != null)
+          out.close();
+      } catch (Throwable ignored) {
+      }
+    }
+    baseRequest.setHandled(true);
+  }
+}
@@ -0,0 +1,223 @@
+package org.randomcoder.proxy.support;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether requests are admitted, so that an overloaded server sheds
+ * new work rather than slowing every tunnel down together.
+ * <p>
+ * Requests are divided into classes. Requests which would open new tunnels
+ * are refused once too many of them are in flight or the request thread pool
+ * is saturated, counting jobs queued for a thread as well as busy threads.
+ * Requests carrying existing tunnels, and administrative requests, are always
+ * admitted, so tunnels which are already open keep working under overload.
+ * <p>
+ * The controller also enforces each user's quota of concurrent tunnels, taken
+ * from their rate limits. A tunnel holds a {@link Permit} from the time it is
+ * opened until it is closed.
+ */
+public class AdmissionController {
+  /**
+   * Classes of request.
+   */
+  public enum OperationClass {
+    /**
+     * Requests which open new tunnels; shed under overload.
+     */
+    CONNECT,
+
+    /**
+     * Requests which carry or maintain existing tunnels; never shed.
+     */
+    TUNNEL,
+
+    /**
+     * Authentication and monitoring requests; never shed.
+     */
+    ADMIN
+  }
+
+  private static final OperationClass[] CLASSES = OperationClass.values();
+
+  private final QueuedThreadPool threadPool;
+  private final double maxUtilization;
+  private final int maxConnects;
+  private final long retryAfter;
+  private final RateLimiter rateLimiter;
+  private final AtomicInteger[] inFlight = new AtomicInteger[CLASSES.length];
+  private final ConcurrentHashMap<String, AtomicInteger> tunnels =
+      new ConcurrentHashMap<>();
+  private final LongAdder shed = new LongAdder();
+  private final LongAdder quotaExceeded = new LongAdder();
+
+  /**
+   * Creates a new admission controller.
+   *
+   * @param threadPool     request thread pool, or <code>null</code> to ignore
+   *                       pool saturation
+   * @param maxUtilization fraction of the pool's maximum threads which may be
+   *                       busy or queued before new tunnels are refused
+   * @param maxConnects    number of requests opening new tunnels which may be
+   *                       in flight at once
+   * @param retryAfter     time in seconds after which refused clients are
+   *                       told to retry
+   * @param rateLimiter    rate limits from which tunnel quotas are read, or
+   *                       <code>null</code> for no quotas
+   */
+  public AdmissionController(QueuedThreadPool threadPool,
+      double maxUtilization, int maxConnects, long retryAfter,
+      RateLimiter rateLimiter) {
+    this.threadPool = threadPool;
+    this.maxUtilization = maxUtilization;
+    this.maxConnects = maxConnects;
+    this.retryAfter = retryAfter;
+    this.rateLimiter = rateLimiter;
+    for (int i = 0; i < inFlight.length; i++) {
+      inFlight[i] = new AtomicInteger();
+    }
+  }
+
+  /**
+   * Admits a request, unless it must be shed. Every admitted request must be
+   * followed by a call to {@link #complete(OperationClass)} once it has
+   * completed.
+   *
+   * @param operationClass class of the request
+   * @return <code>true</code> if the request was admitted
+   */
+  public boolean admit(OperationClass operationClass) {
+    AtomicInteger count = inFlight[operationClass.ordinal()];
+    if (operationClass != OperationClass.CONNECT) {
+      count.incrementAndGet();
+      return true;
+    }
+    if (getUtilization() >= maxUtilization) {
+      shed.increment();
+      return false;
+    }
+    while (true) {
+      int c = count.get();
+      if (c >= maxConnects) {
+        shed.increment();
+        return false;
+      }
+      if (count.compareAndSet(c, c + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Records the completion of an admitted request.
+   *
+   * @param operationClass class of the request
+   */
+  public void complete(OperationClass operationClass) {
+    inFlight[operationClass.ordinal()].decrementAndGet();
+  }
+
+  /**
+   * Takes a place in a user's tunnel quota.
+   *
+   * @param user user opening a tunnel
+   * @return permit to be released once the tunnel is closed, or
+   * <code>null</code> if the user already has as many tunnels as allowed
+   */
+  public Permit acquireTunnel(String user) {
+    String name = user == null ? "" : user;
+    long quota =
+        rateLimiter == null ? 0L : rateLimiter.getLimits(user).getTunnels();
+    AtomicInteger count = tunnels.get(name);
+    if (count == null) {
+      count = tunnels.computeIfAbsent(name, n -> new AtomicInteger());
+    }
+    while (true) {
+      int c = count.get();
+      if (quota > 0L && c >= quota) {
+        quotaExceeded.increment();
+        return null;
+      }
+      if (count.compareAndSet(c, c + 1)) {
+        return new Permit(count);
+      }
+    }
+  }
+
+  /**
+   * Gets the time after which refused clients are told to retry.
+   *
+   * @return time in seconds
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+
+  /**
+   * Gets the utilization of the request thread pool: the number of busy
+   * threads plus the number of jobs waiting for a thread, as a fraction of
+   * the maximum number of threads.
+   *
+   * @return utilization, which may exceed 1 when jobs are queued
+   */
+  public double getUtilization() {
+    if (threadPool == null) {
+      return 0.0d;
+    }
+    return (double) (threadPool.getBusyThreads() + threadPool.getQueueSize())
+        / threadPool.getMaxThreads();
+  }
+
+  /**
+   * Gets the number of requests of a class currently in flight.
+   *
+   * @param operationClass class of request
+   * @return request count
+   */
+  public int getInFlight(OperationClass operationClass) {
+    return inFlight[operationClass.ordinal()].get();
+  }
+
+  /**
+   * Gets the number of requests shed because of overload.
+   *
+   * @return request count
+   */
+  public long getShed() {
+    return shed.sum();
+  }
+
+  /**
+   * Gets the number of tunnels refused because the user's quota was full.
+   *
+   * @return tunnel count
+   */
+  public long getQuotaExceeded() {
+    return quotaExceeded.sum();
+  }
+
+  /**
+   * A place in a user's tunnel quota.
+   */
+  public static final class Permit {
+    private final AtomicInteger count;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(AtomicInteger count) {
+      this.count = count;
+    }
+
+    /**
+     * Releases this permit. Releasing a permit more than once has no effect.
+     */
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        count.decrementAndGet();
+      }
+    }
+  }
+}
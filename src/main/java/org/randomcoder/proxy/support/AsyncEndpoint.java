@@ -0,0 +1,45 @@
+package org.randomcoder.proxy.support;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Endpoint which supports non-blocking I/O in addition to the stream accessors
+ * defined by {@link Endpoint}. Readiness callbacks are one-shot and are run on
+ * a shared selector thread, so they must never block.
+ */
+public interface AsyncEndpoint extends Endpoint {
+  /**
+   * Reads from the endpoint without blocking.
+   *
+   * @param dst buffer to read into
+   * @return number of bytes read, possibly zero, or -1 at end of stream
+   * @throws IOException if an I/O error occurs
+   */
+  public int read(ByteBuffer dst) throws IOException;
+
+  /**
+   * Writes to the endpoint without blocking.
+   *
+   * @param src buffer to write from
+   * @return number of bytes written, possibly zero
+   * @throws IOException if an I/O error occurs
+   */
+  public int write(ByteBuffer src) throws IOException;
+
+  /**
+   * Requests a one-time notification once the endpoint may be read from. The
+   * callback is also run if the endpoint is closed.
+   *
+   * @param callback callback to run
+   */
+  public void onReadable(Runnable callback);
+
+  /**
+   * Requests a one-time notification once the endpoint may be written to. The
+   * callback is also run if the endpoint is closed.
+   *
+   * @param callback callback to run
+   */
+  public void onWritable(Runnable callback);
+}
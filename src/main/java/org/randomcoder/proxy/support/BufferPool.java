@@ -0,0 +1,183 @@
+package org.randomcoder.proxy.support;
+
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool of heap and direct buffers. Requests are rounded up to the
+ * next power of two between {@value #MIN_SIZE} and {@value #MAX_SIZE} bytes
+ * and served from a bounded free list for that size; larger requests are
+ * simply allocated. The same pool is used by the connector and by the tunnel
+ * copy loops, so steady-state traffic allocates almost nothing.
+ * <p>
+ * As with any {@link ByteBufferPool}, a buffer must be released at most once
+ * and must not be touched after it has been released.
+ */
+public class BufferPool implements ByteBufferPool {
+  /**
+   * Smallest pooled buffer size.
+   */
+  public static final int MIN_SIZE = 1024;
+
+  /**
+   * Largest pooled buffer size.
+   */
+  public static final int MAX_SIZE = 65536;
+
+  private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+  private static final int CLASSES =
+      Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+  private final Bucket[] heap = new Bucket[CLASSES];
+  private final Bucket[] direct = new Bucket[CLASSES];
+  private final boolean pooling;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder discards = new LongAdder();
+
+  /**
+   * Creates a new buffer pool retaining up to 128 buffers of each size.
+   */
+  public BufferPool() {
+    this(128);
+  }
+
+  /**
+   * Creates a new buffer pool.
+   *
+   * @param maxPerClass maximum number of free buffers retained for each size
+   *                    and kind (0 disables pooling)
+   */
+  public BufferPool(int maxPerClass) {
+    this.pooling = maxPerClass > 0;
+    for (int i = 0; i < CLASSES; i++) {
+      heap[i] = new Bucket(MIN_SIZE << i, Math.max(1, maxPerClass));
+      direct[i] = new Bucket(MIN_SIZE << i, Math.max(1, maxPerClass));
+    }
+  }
+
+  @Override public ByteBuffer acquire(int size, boolean useDirect) {
+    int index = indexFor(size);
+    if (index < 0 || !pooling) {
+      misses.increment();
+      return newByteBuffer(size, useDirect);
+    }
+    Bucket bucket = (useDirect ? direct : heap)[index];
+    ByteBuffer buffer = bucket.free.poll();
+    if (buffer == null) {
+      misses.increment();
+      return newByteBuffer(bucket.size, useDirect);
+    }
+    hits.increment();
+    bucket.footprint.add(-bucket.size);
+    return buffer;
+  }
+
+  @Override public void release(ByteBuffer buffer) {
+    if (buffer == null || !pooling) {
+      return;
+    }
+    int index = indexFor(buffer.capacity());
+    if (index < 0) {
+      return;
+    }
+    Bucket bucket = (buffer.isDirect() ? direct : heap)[index];
+    if (bucket.size != buffer.capacity()) {
+      // not one of ours
+      discards.increment();
+      return;
+    }
+    BufferUtil.clear(buffer);
+    if (bucket.free.offer(buffer)) {
+      bucket.footprint.add(bucket.size);
+    } else {
+      discards.increment();
+    }
+  }
+
+  @Override public ByteBuffer newByteBuffer(int size, boolean useDirect) {
+    return useDirect ?
+        BufferUtil.allocateDirect(size) :
+        BufferUtil.allocate(size);
+  }
+
+  /**
+   * Gets the number of requests served from a free list.
+   *
+   * @return hit count
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Gets the number of requests which required a new allocation.
+   *
+   * @return miss count
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Gets the number of released buffers dropped because their free list was
+   * full.
+   *
+   * @return discard count
+   */
+  public long getDiscards() {
+    return discards.sum();
+  }
+
+  /**
+   * Gets the number of bytes held in free heap buffers.
+   *
+   * @return heap footprint in bytes
+   */
+  public long getHeapFootprint() {
+    return footprint(heap);
+  }
+
+  /**
+   * Gets the number of bytes held in free direct buffers.
+   *
+   * @return direct footprint in bytes
+   */
+  public long getDirectFootprint() {
+    return footprint(direct);
+  }
+
+  private static long footprint(Bucket[] buckets) {
+    long total = 0L;
+    for (Bucket bucket : buckets) {
+      total += bucket.footprint.sum();
+    }
+    return total;
+  }
+
+  private static int indexFor(int size) {
+    if (size > MAX_SIZE) {
+      return -1;
+    }
+    if (size <= MIN_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  private static final class Bucket {
+    private final int size;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final LongAdder footprint = new LongAdder();
+
+    private Bucket(int size, int capacity) {
+      this.size = size;
+      this.free = new ArrayBlockingQueue<ByteBuffer>(capacity);
+    }
+  }
+}
@@ -0,0 +1,315 @@
+package org.randomcoder.proxy.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Endpoint implementation that wraps a non-blocking socket channel serviced by
+ * a shared {@link SelectorPool}. Blocking stream accessors are provided for
+ * callers which do not use the readiness callbacks.
+ * <p>
+ * Data which has already arrived may be read ahead into a small buffer, both
+ * to detect end of stream and to report it from the input stream's
+ * <code>available()</code>; later reads return it first.
+ */
+public class ChannelEndpoint
+    implements AsyncEndpoint, SelectorPool.Selectable {
+  private static final int PROBE_SIZE = 4096;
+
+  private final SocketChannel channel;
+  private final SelectorPool.SelectorThread selector;
+  private final InputStream input = new ChannelInputStream();
+  private final OutputStream output = new ChannelOutputStream();
+  private final AtomicReference<Runnable> readCallback =
+      new AtomicReference<>();
+  private final AtomicReference<Runnable> writeCallback =
+      new AtomicReference<>();
+  private volatile boolean closed = false;
+
+  // data read ahead of the caller, reused for every read ahead; only accessed
+  // by the reading thread
+  private final ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+
+  // probe while it holds data not yet read, otherwise null
+  private ByteBuffer prefetched;
+
+  // only accessed from the selector thread
+  private SelectionKey key;
+
+  /**
+   * Creates a new channel endpoint.
+   *
+   * @param host hostname to connect to
+   * @param port port to connect to
+   * @param pool selector pool
+   * @throws IOException if an I/O error occurs
+   */
+  public ChannelEndpoint(String host, int port, SelectorPool pool)
+      throws IOException {
+    this(SocketChannel.open(new InetSocketAddress(host, port)), pool);
+  }
+
+  /**
+   * Creates a new channel endpoint from a connected channel.
+   *
+   * @param channel connected socket channel
+   * @param pool    selector pool
+   * @throws IOException if an I/O error occurs
+   */
+  public ChannelEndpoint(SocketChannel channel, SelectorPool pool)
+      throws IOException {
+    this.channel = channel;
+    this.selector = pool.choose();
+    channel.configureBlocking(false);
+  }
+
+  /**
+   * Creates a new channel endpoint which takes over an existing registration,
+   * such as one used to wait for the channel to connect. Must be called on
+   * the selector thread which owns the key.
+   *
+   * @param channel  connected non-blocking socket channel
+   * @param selector selector thread the channel is registered with
+   * @param key      selection key for the channel
+   */
+  ChannelEndpoint(SocketChannel channel, SelectorPool.SelectorThread selector,
+      SelectionKey key) {
+    this.channel = channel;
+    this.selector = selector;
+    this.key = key;
+    key.interestOps(0);
+    key.attach(this);
+  }
+
+  @Override public InputStream getInputStream() {
+    return input;
+  }
+
+  @Override public OutputStream getOutputStream() {
+    return output;
+  }
+
+  @Override public int read(ByteBuffer dst) throws IOException {
+    if (prefetched == null) {
+      return channel.read(dst);
+    }
+    int c = Math.min(prefetched.remaining(), dst.remaining());
+    for (int i = 0; i < c; i++) {
+      dst.put(prefetched.get());
+    }
+    if (!prefetched.hasRemaining()) {
+      prefetched = null;
+    }
+    return c;
+  }
+
+  @Override public int write(ByteBuffer src) throws IOException {
+    return channel.write(src);
+  }
+
+  @Override public void onReadable(Runnable callback) {
+    readCallback.set(callback);
+    if (prefetched != null) {
+      // already readable
+      selector.execute(() -> fire(readCallback));
+      return;
+    }
+    selector.execute(() -> interest(SelectionKey.OP_READ));
+  }
+
+  @Override public void onWritable(Runnable callback) {
+    writeCallback.set(callback);
+    selector.execute(() -> interest(SelectionKey.OP_WRITE));
+  }
+
+  private void interest(int op) {
+    if (closed) {
+      fire(readCallback);
+      fire(writeCallback);
+      return;
+    }
+    try {
+      if (key == null) {
+        key = channel.register(selector.selector(), op, this);
+      } else {
+        key.interestOps(key.interestOps() | op);
+      }
+    } catch (IOException | CancelledKeyException e) {
+      // channel has been closed; let the callback discover the error
+      fire(readCallback);
+      fire(writeCallback);
+    }
+  }
+
+  @Override public void ready(SelectionKey key) {
+    int ready;
+    try {
+      ready = key.readyOps();
+      key.interestOps(key.interestOps() & ~ready);
+    } catch (CancelledKeyException e) {
+      ready = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    }
+    if ((ready & SelectionKey.OP_READ) != 0) {
+      fire(readCallback);
+    }
+    if ((ready & SelectionKey.OP_WRITE) != 0) {
+      fire(writeCallback);
+    }
+  }
+
+  private static void fire(AtomicReference<Runnable> ref) {
+    Runnable callback = ref.getAndSet(null);
+    if (callback != null) {
+      callback.run();
+    }
+  }
+
+  @Override public boolean isClosed() {
+    return closed;
+  }
+
+  @Override public boolean isConnected() {
+    if (closed) {
+      return false;
+    }
+    // end of stream can only be seen by reading, so read whatever has
+    // arrived and keep it for the next read
+    try {
+      return prefetch();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Reads whatever has already arrived into the read-ahead buffer, without
+   * blocking.
+   *
+   * @return <code>false</code> if the end of stream was reached
+   * @throws IOException if an I/O error occurs
+   */
+  private boolean prefetch() throws IOException {
+    if (prefetched == null) {
+      probe.clear();
+    } else {
+      probe.compact();
+    }
+    try {
+      int c;
+      while (probe.hasRemaining() && (c = channel.read(probe)) != 0) {
+        if (c < 0) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      probe.flip();
+      prefetched = probe.hasRemaining() ? probe : null;
+    }
+  }
+
+  @Override public void close() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (Throwable ignored) {
+    }
+    selector.execute(() -> {
+      if (key != null) {
+        key.cancel();
+      }
+      fire(readCallback);
+      fire(writeCallback);
+    });
+  }
+
+  @Override public String toString() {
+    StringBuilder buf = new StringBuilder();
+    buf.append(getClass().getSimpleName());
+    buf.append("[");
+    buf.append("local=");
+    buf.append(channel.socket().getLocalSocketAddress());
+    buf.append(",remote=");
+    buf.append(channel.socket().getRemoteSocketAddress());
+    buf.append("]");
+    return buf.toString();
+  }
+
+  private void await(boolean read) throws IOException {
+    CountDownLatch latch = new CountDownLatch(1);
+    if (read) {
+      onReadable(latch::countDown);
+    } else {
+      onWritable(latch::countDown);
+    }
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private final class ChannelInputStream extends InputStream {
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      int c = read(b, 0, 1);
+      return c < 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+      int c;
+      while ((c = ChannelEndpoint.this.read(dst)) == 0) {
+        await(true);
+      }
+      return c;
+    }
+
+    @Override public int available() throws IOException {
+      if (closed) {
+        return 0;
+      }
+      if (prefetched == null) {
+        prefetch();
+      }
+      return prefetched == null ? 0 : prefetched.remaining();
+    }
+
+    @Override public void close() {
+      ChannelEndpoint.this.close();
+    }
+  }
+
+  private final class ChannelOutputStream extends OutputStream {
+    @Override public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len)
+        throws IOException {
+      ByteBuffer src = ByteBuffer.wrap(b, off, len);
+      while (src.hasRemaining()) {
+        if (channel.write(src) == 0) {
+          await(false);
+        }
+      }
+    }
+
+    @Override public void close() {
+      ChannelEndpoint.this.close();
+    }
+  }
+}
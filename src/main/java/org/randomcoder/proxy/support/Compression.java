@@ -0,0 +1,182 @@
+package org.randomcoder.proxy.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Deflate compression for a single tunnel, negotiated when the tunnel is
+ * connected. Each direction is one raw deflate stream which lasts as long as
+ * the tunnel, so later frames benefit from the history of earlier ones; every
+ * frame ends with a sync flush, so it can be decompressed as soon as it
+ * arrives without waiting for more data.
+ * <p>
+ * Frames toward the client are only compressed when that is likely to help.
+ * Very small frames are always sent as they are, and a frame which does not
+ * compress well causes the following frames to be sent as they are too, for a
+ * number of frames which doubles each time compression fails again. Frames
+ * sent as they are never enter the stream, so both sides stay in step.
+ */
+public class Compression {
+  /**
+   * Name of the deflate method, as requested by clients.
+   */
+  public static final String DEFLATE = "deflate";
+
+  private static final int MIN_SIZE = 64;
+  private static final int MAX_SKIP = 64;
+  private static final int INFLATE_BUFFER_SIZE = 8192;
+
+  private final Deflater deflater;
+  private final Inflater inflater;
+  private final CompressionStats stats;
+  // inflated data is written to the endpoint, which may block, so the
+  // inflater is guarded by a lock rather than a monitor; a virtual thread
+  // blocked while holding a monitor would pin its carrier thread
+  private final ReentrantLock inflateLock = new ReentrantLock();
+  private final byte[] inflateBuffer = new byte[INFLATE_BUFFER_SIZE];
+
+  private volatile boolean closed = false;
+
+  // guarded by deflater
+  private int skip = 0;
+  private int backoff = 0;
+
+  /**
+   * Creates a new tunnel compression context.
+   *
+   * @param level deflate compression level (1-9)
+   * @param stats shared statistics to update
+   */
+  public Compression(int level, CompressionStats stats) {
+    this.deflater = new Deflater(level, true);
+    this.inflater = new Inflater(true);
+    this.stats = stats;
+  }
+
+  /**
+   * Gets the size of buffer needed to hold the compressed form of a frame.
+   *
+   * @param len uncompressed frame size
+   * @return maximum compressed size
+   */
+  public static int maxDeflatedSize(int len) {
+    return len + (len >>> 12) + 64;
+  }
+
+  /**
+   * Compresses a frame toward the client.
+   *
+   * @param in     buffer containing uncompressed data
+   * @param off    offset of data within input buffer
+   * @param len    length of data
+   * @param out    buffer to compress into, with room for at least
+   *               {@link #maxDeflatedSize(int)} bytes after the offset
+   * @param outOff offset within output buffer
+   * @return compressed length, or -1 if the frame should be sent uncompressed
+   * @throws IOException if the tunnel has been closed
+   */
+  public int deflate(byte[] in, int off, int len, byte[] out, int outOff)
+      throws IOException {
+    synchronized (deflater) {
+      if (closed) {
+        throw new IOException("Compression closed");
+      }
+      if (len < MIN_SIZE || skip > 0) {
+        if (len >= MIN_SIZE) {
+          skip--;
+        }
+        stats.passedThrough(len);
+        return -1;
+      }
+
+      long start = System.nanoTime();
+      deflater.setInput(in, off, len);
+      int space = out.length - outOff;
+      int size = deflater.deflate(out, outOff, space, Deflater.SYNC_FLUSH);
+      stats.deflated(len, size, System.nanoTime() - start);
+      if (size == space) {
+        // remaining output would be lost, leaving the stream unusable
+        throw new IOException("Compression buffer too small");
+      }
+
+      if (size * 10L >= len * 9L) {
+        // less than 10% saved; stop wasting effort for a while
+        backoff = backoff == 0 ? 1 : Math.min(backoff * 2, MAX_SKIP);
+        skip = backoff;
+      } else {
+        backoff = 0;
+      }
+      return size;
+    }
+  }
+
+  /**
+   * Decompresses data from the client, writing the result to the given
+   * stream. Data must be supplied in the order the client compressed it.
+   *
+   * @param in  buffer containing compressed data
+   * @param off offset of data within buffer
+   * @param len length of data
+   * @param out stream to write uncompressed data to
+   * @return number of uncompressed bytes written
+   * @throws ZipException if the data is not a valid deflate stream
+   * @throws IOException  if the tunnel has been closed or cannot be written
+   */
+  public int inflate(byte[] in, int off, int len, OutputStream out)
+      throws IOException {
+    inflateLock.lock();
+    try {
+      if (closed) {
+        throw new IOException("Compression closed");
+      }
+      inflater.setInput(in, off, len);
+      int total = 0;
+      long nanos = 0L;
+      try {
+        while (true) {
+          long start = System.nanoTime();
+          int c = inflater.inflate(inflateBuffer);
+          nanos += System.nanoTime() - start;
+          if (c > 0) {
+            out.write(inflateBuffer, 0, c);
+            total += c;
+          } else if (inflater.needsInput()) {
+            break;
+          } else {
+            throw new ZipException("Invalid compressed data");
+          }
+        }
+      } catch (DataFormatException e) {
+        throw new ZipException("Invalid compressed data");
+      } finally {
+        stats.inflated(len, total, nanos);
+      }
+      return total;
+    } finally {
+      inflateLock.unlock();
+    }
+  }
+
+  /**
+   * Releases the native resources held by this context. Further attempts to
+   * compress or decompress fail. Closing an already closed context has no
+   * effect.
+   */
+  public void close() {
+    closed = true;
+    synchronized (deflater) {
+      deflater.end();
+    }
+    inflateLock.lock();
+    try {
+      inflater.end();
+    } finally {
+      inflateLock.unlock();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package org.randomcoder.proxy.support;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by every {@link Compression}, reporting how much tunneled
+ * data was compressed or decompressed, how well it compressed, and how much
+ * time was spent doing so.
+ */
+public class CompressionStats {
+  private final LongAdder deflateInput = new LongAdder();
+  private final LongAdder deflateOutput = new LongAdder();
+  private final LongAdder deflateNanos = new LongAdder();
+  private final LongAdder passedThrough = new LongAdder();
+  private final LongAdder inflateInput = new LongAdder();
+  private final LongAdder inflateOutput = new LongAdder();
+  private final LongAdder inflateNanos = new LongAdder();
+
+  void deflated(int input, int output, long nanos) {
+    deflateInput.add(input);
+    deflateOutput.add(output);
+    deflateNanos.add(nanos);
+  }
+
+  void passedThrough(int bytes) {
+    passedThrough.add(bytes);
+  }
+
+  void inflated(int input, int output, long nanos) {
+    inflateInput.add(input);
+    inflateOutput.add(output);
+    inflateNanos.add(nanos);
+  }
+
+  /**
+   * Gets the number of bytes given to compressors.
+   *
+   * @return uncompressed byte count
+   */
+  public long getDeflateInput() {
+    return deflateInput.sum();
+  }
+
+  /**
+   * Gets the number of bytes produced by compressors.
+   *
+   * @return compressed byte count
+   */
+  public long getDeflateOutput() {
+    return deflateOutput.sum();
+  }
+
+  /**
+   * Gets the time spent compressing.
+   *
+   * @return elapsed time in nanoseconds
+   */
+  public long getDeflateNanos() {
+    return deflateNanos.sum();
+  }
+
+  /**
+   * Gets the number of bytes sent uncompressed on compressed tunnels because
+   * recent data did not compress.
+   *
+   * @return byte count
+   */
+  public long getPassedThrough() {
+    return passedThrough.sum();
+  }
+
+  /**
+   * Gets the number of bytes given to decompressors.
+   *
+   * @return compressed byte count
+   */
+  public long getInflateInput() {
+    return inflateInput.sum();
+  }
+
+  /**
+   * Gets the number of bytes produced by decompressors.
+   *
+   * @return uncompressed byte count
+   */
+  public long getInflateOutput() {
+    return inflateOutput.sum();
+  }
+
+  /**
+   * Gets the time spent decompressing.
+   *
+   * @return elapsed time in nanoseconds
+   */
+  public long getInflateNanos() {
+    return inflateNanos.sum();
+  }
+
+  /**
+   * Gets the ratio of compressed to uncompressed bytes for data compressed so
+   * far.
+   *
+   * @return compression ratio, or 1 if nothing has been compressed
+   */
+  public double getDeflateRatio() {
+    long input = deflateInput.sum();
+    return input == 0L ? 1.0d : (double) deflateOutput.sum() / input;
+  }
+}
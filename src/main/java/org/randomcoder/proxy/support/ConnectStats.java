@@ -0,0 +1,158 @@
+package org.randomcoder.proxy.support;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters recording the outcome of connections made by an
+ * {@link EndpointConnector}, both in total and for each destination. For
+ * successful connections, the address family of the winning attempt is
+ * recorded, which shows destinations whose preferred family is broken.
+ * <p>
+ * Only a bounded number of destinations are tracked individually; once the
+ * limit is reached, new destinations are counted in the totals only.
+ */
+public class ConnectStats {
+  private static final int MAX_DESTINATIONS = 1000;
+
+  private final Destination total = new Destination();
+  private final ConcurrentHashMap<String, Destination> destinations =
+      new ConcurrentHashMap<>();
+
+  void connected(String destination, InetAddress address, int attempt,
+      long nanos) {
+    total.connected(address, attempt, nanos);
+    Destination d = destination(destination);
+    if (d != null) {
+      d.connected(address, attempt, nanos);
+    }
+  }
+
+  void failed(String destination) {
+    total.failures.increment();
+    Destination d = destination(destination);
+    if (d != null) {
+      d.failures.increment();
+    }
+  }
+
+  void pooled(String destination) {
+    total.pooled.increment();
+    Destination d = destination(destination);
+    if (d != null) {
+      d.pooled.increment();
+    }
+  }
+
+  private Destination destination(String destination) {
+    Destination d = destinations.get(destination);
+    if (d == null && destinations.size() < MAX_DESTINATIONS) {
+      d = destinations.computeIfAbsent(destination, k -> new Destination());
+    }
+    return d;
+  }
+
+  /**
+   * Gets the totals for all destinations.
+   *
+   * @return total counters
+   */
+  public Destination getTotal() {
+    return total;
+  }
+
+  /**
+   * Gets a live view of the counters for each destination, keyed by
+   * <code>host:port</code>.
+   *
+   * @return destination counters
+   */
+  public Map<String, Destination> getDestinations() {
+    return destinations;
+  }
+
+  /**
+   * Connection counters for a single destination.
+   */
+  public static final class Destination {
+    private final LongAdder ipv4 = new LongAdder();
+    private final LongAdder ipv6 = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder pooled = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private void connected(InetAddress address, int attempt, long elapsed) {
+      if (address instanceof Inet6Address) {
+        ipv6.increment();
+      } else {
+        ipv4.increment();
+      }
+      if (attempt > 0) {
+        fallbacks.increment();
+      }
+      nanos.add(elapsed);
+    }
+
+    /**
+     * Gets the number of connections made over IPv4.
+     *
+     * @return connection count
+     */
+    public long getIpv4() {
+      return ipv4.sum();
+    }
+
+    /**
+     * Gets the number of connections made over IPv6.
+     *
+     * @return connection count
+     */
+    public long getIpv6() {
+      return ipv6.sum();
+    }
+
+    /**
+     * Gets the number of connections which were not made to the first
+     * address tried.
+     *
+     * @return connection count
+     */
+    public long getFallbacks() {
+      return fallbacks.sum();
+    }
+
+    /**
+     * Gets the number of connections which could not be made to any address.
+     *
+     * @return failure count
+     */
+    public long getFailures() {
+      return failures.sum();
+    }
+
+    /**
+     * Gets the number of connections taken from a warm pool instead of being
+     * opened on demand.
+     *
+     * @return connection count
+     */
+    public long getPooled() {
+      return pooled.sum();
+    }
+
+    /**
+     * Gets the mean time taken by successful connections, including name
+     * resolution.
+     *
+     * @return mean connect time in milliseconds
+     */
+    public double getMeanMillis() {
+      long count = ipv4.sum() + ipv6.sum();
+      return count == 0L ? 0.0d : nanos.sum() / 1000000.0d / count;
+    }
+  }
+}
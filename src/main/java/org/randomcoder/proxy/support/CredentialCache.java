@@ -0,0 +1,133 @@
+package org.randomcoder.proxy.support;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of credentials which have already been verified. Entries are
+ * keyed by a SHA-256 digest of the credential rather than the credential
+ * itself, expire after a fixed time to live, and remember the password hash
+ * they were verified against so that a changed password invalidates them
+ * immediately.
+ */
+public class CredentialCache {
+  private static final ThreadLocal<MessageDigest> digest =
+      ThreadLocal.withInitial(() -> {
+        try {
+          return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+
+  private final ConcurrentHashMap<ByteBuffer, Entry> entries =
+      new ConcurrentHashMap<ByteBuffer, Entry>();
+  private final int maxSize;
+  private final long ttlNanos;
+
+  /**
+   * Creates a new credential cache.
+   *
+   * @param maxSize maximum number of entries
+   * @param ttl     time to live of each entry in milliseconds
+   */
+  public CredentialCache(int maxSize, long ttl) {
+    this.maxSize = maxSize;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+  }
+
+  /**
+   * Looks up a previously verified credential.
+   *
+   * @param credential credential (e.g. an Authorization header value)
+   * @param store      password store used to check the entry is still current
+   * @return user name, or <code>null</code> if not cached
+   */
+  public String get(String credential, PasswordStore store) {
+    if (maxSize <= 0) {
+      return null;
+    }
+    ByteBuffer key = key(credential);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.expires > 0L || !entry.hash
+        .equals(store.getHash(entry.user))) {
+      entries.remove(key, entry);
+      return null;
+    }
+    return entry.user;
+  }
+
+  /**
+   * Records a successfully verified credential.
+   *
+   * @param credential credential which was verified
+   * @param user       user it was verified for
+   * @param hash       password hash it was verified against
+   */
+  public void put(String credential, String user, String hash) {
+    if (maxSize <= 0) {
+      return;
+    }
+    if (entries.size() >= maxSize) {
+      evict();
+    }
+    entries.put(key(credential),
+        new Entry(user, hash, System.nanoTime() + ttlNanos));
+  }
+
+  /**
+   * Removes all entries for the given users.
+   *
+   * @param users users to invalidate
+   */
+  public void invalidate(Set<String> users) {
+    entries.values().removeIf(entry -> users.contains(entry.user));
+  }
+
+  /**
+   * Gets the number of cached entries.
+   *
+   * @return entry count
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  private void evict() {
+    long now = System.nanoTime();
+    entries.values().removeIf(entry -> now - entry.expires > 0L);
+
+    // still full; drop arbitrary entries, which will simply be re-verified
+    Iterator<ByteBuffer> it = entries.keySet().iterator();
+    while (entries.size() >= maxSize && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private static ByteBuffer key(String credential) {
+    return ByteBuffer
+        .wrap(digest.get().digest(credential.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static final class Entry {
+    private final String user;
+    private final String hash;
+    private final long expires;
+
+    private Entry(String user, String hash, long expires) {
+      this.user = user;
+      this.hash = hash;
+      this.expires = expires;
+    }
+  }
+}
@@ -27,4 +27,27 @@ public interface Endpoint extends Closeable {
    * @throws IOException if an I/O error occurs
    */
   public OutputStream getOutputStream() throws IOException;
+
+  /**
+   * Checks whether the peer is still connected, without waiting for data.
+   * Any data which has already arrived is not lost; it is returned by the
+   * next read. Must not be called while another thread may be reading from
+   * this endpoint.
+   *
+   * @return <code>false</code> if the connection is known to be closed
+   */
+  public default boolean isConnected() {
+    return true;
+  }
+
+  /**
+   * Checks whether this endpoint is already known to be closed. Unlike
+   * {@link #isConnected()}, this performs no I/O, so may be called at any
+   * time.
+   *
+   * @return <code>true</code> if the endpoint is closed
+   */
+  public default boolean isClosed() {
+    return false;
+  }
 }
@@ -0,0 +1,514 @@
+package org.randomcoder.proxy.support;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens endpoints without holding the calling thread. Host names are resolved
+ * through a {@link ResolverCache}, and each connection is abandoned once the
+ * connect timeout elapses.
+ * <p>
+ * When a name resolves to several addresses, connection attempts are raced
+ * in the manner of RFC 8305 ("Happy Eyeballs"): addresses are ordered so
+ * that the address families alternate, starting with the family of the
+ * first address returned, and a new attempt is started each time the attempt
+ * delay elapses or an earlier attempt fails. The first attempt to succeed
+ * wins and the others are abandoned, so an unreachable address (typically a
+ * broken IPv6 path) costs one attempt delay instead of the whole connect
+ * timeout. The outcome of each connection is recorded in
+ * {@link ConnectStats}.
+ * <p>
+ * When a {@link SelectorPool} is supplied, connections are made without
+ * blocking and produce {@link ChannelEndpoint} instances; no thread is held
+ * while a connection is pending. Otherwise each attempt is made by a
+ * blocking connect on the supplied executor and produces a
+ * {@link SocketEndpoint}.
+ * <p>
+ * Connections to frequently used destinations may be opened ahead of time;
+ * see {@link #warm(String, int, int, long)}.
+ * <p>
+ * The number of pending connections is bounded, so a burst of connections to
+ * unresponsive destinations fails fast instead of exhausting threads or file
+ * descriptors.
+ */
+public class EndpointConnector {
+  /**
+   * Default delay in milliseconds before the next address is tried, as
+   * recommended by RFC 8305.
+   */
+  public static final long DEFAULT_ATTEMPT_DELAY = 250L;
+
+  private final ResolverCache resolver;
+  private final SelectorPool selectorPool;
+  private final Executor executor;
+  private final HashedTimerWheel timer;
+  private final long connectTimeout;
+  private final int maxPending;
+  private final long attemptDelay;
+  private final ConnectStats stats;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final ConcurrentHashMap<String, WarmPool> warmPools =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new endpoint connector using the default attempt delay.
+   *
+   * @param resolver       resolver used to look up host names
+   * @param selectorPool   selector pool for non-blocking endpoints, or
+   *                       <code>null</code> to create blocking socket
+   *                       endpoints
+   * @param executor       executor used to make blocking connections
+   * @param timer          timer used to enforce the connect timeout
+   * @param connectTimeout connect timeout in milliseconds, not including name
+   *                       resolution
+   * @param maxPending     maximum number of connections which may be pending
+   *                       at once
+   */
+  public EndpointConnector(ResolverCache resolver, SelectorPool selectorPool,
+      Executor executor, HashedTimerWheel timer, long connectTimeout,
+      int maxPending) {
+    this(resolver, selectorPool, executor, timer, connectTimeout, maxPending,
+        DEFAULT_ATTEMPT_DELAY, new ConnectStats());
+  }
+
+  /**
+   * Creates a new endpoint connector.
+   *
+   * @param resolver       resolver used to look up host names
+   * @param selectorPool   selector pool for non-blocking endpoints, or
+   *                       <code>null</code> to create blocking socket
+   *                       endpoints
+   * @param executor       executor used to make blocking connections
+   * @param timer          timer used to enforce the connect timeout
+   * @param connectTimeout connect timeout in milliseconds, not including name
+   *                       resolution
+   * @param maxPending     maximum number of connections which may be pending
+   *                       at once
+   * @param attemptDelay   delay in milliseconds before the next address is
+   *                       tried while earlier attempts are still pending
+   * @param stats          statistics updated as connections complete
+   */
+  public EndpointConnector(ResolverCache resolver, SelectorPool selectorPool,
+      Executor executor, HashedTimerWheel timer, long connectTimeout,
+      int maxPending, long attemptDelay, ConnectStats stats) {
+    this.resolver = resolver;
+    this.selectorPool = selectorPool;
+    this.executor = executor;
+    this.timer = timer;
+    this.connectTimeout = connectTimeout;
+    this.maxPending = maxPending;
+    this.attemptDelay = attemptDelay;
+    this.stats = stats;
+  }
+
+  /**
+   * Opens a new endpoint. The returned future may be completed on any thread,
+   * including selector and timer threads, so callers must not block in
+   * dependent actions.
+   *
+   * @param host host to connect to
+   * @param port port to connect to
+   * @return future completed with a connected endpoint, or exceptionally with
+   * the cause of failure; a {@link RejectedExecutionException} indicates that
+   * too many connections were already pending
+   */
+  public CompletableFuture<Endpoint> connect(String host, int port) {
+    String destination = host + ":" + port;
+    WarmPool pool = warmPools.get(destination);
+    if (pool != null) {
+      Endpoint endpoint = pool.take();
+      if (endpoint != null) {
+        stats.pooled(destination);
+        return CompletableFuture.completedFuture(endpoint);
+      }
+    }
+    return open(host, port);
+  }
+
+  /**
+   * Keeps connections to a destination open ahead of time. Each connection
+   * made to the destination by {@link #connect(String, int)} then uses one
+   * of these if available, and a replacement is opened in the background.
+   * Idle connections are checked periodically, and are closed once they
+   * have been idle for the maximum idle time, which should be shorter than
+   * the destination's own idle timeout.
+   *
+   * @param host    destination host
+   * @param port    destination port
+   * @param size    number of idle connections to keep open
+   * @param maxIdle time in milliseconds after which an idle connection is
+   *                closed and replaced
+   */
+  public void warm(String host, int port, int size, long maxIdle) {
+    WarmPool pool =
+        new WarmPool(this, host, port, size, maxIdle, timer, executor);
+    WarmPool old = warmPools.put(host + ":" + port, pool);
+    if (old != null) {
+      old.close();
+    }
+  }
+
+  /**
+   * Closes all idle connections kept open by {@link #warm(String, int, int,
+   * long)}.
+   */
+  public void close() {
+    for (WarmPool pool : warmPools.values()) {
+      pool.close();
+    }
+    warmPools.clear();
+  }
+
+  /**
+   * Opens a new connection, bypassing any warm pool.
+   *
+   * @param host host to connect to
+   * @param port port to connect to
+   * @return future completed with a connected endpoint
+   */
+  CompletableFuture<Endpoint> open(String host, int port) {
+    if (pending.incrementAndGet() > maxPending) {
+      pending.decrementAndGet();
+      return CompletableFuture.failedFuture(
+          new RejectedExecutionException("Too many pending connections"));
+    }
+
+    long start = System.nanoTime();
+    String destination = host + ":" + port;
+    CompletableFuture<Endpoint> result = new CompletableFuture<>();
+    result.whenComplete((endpoint, e) -> {
+      pending.decrementAndGet();
+      if (e != null) {
+        stats.failed(destination);
+      }
+    });
+
+    resolver.resolve(host).whenComplete((addresses, e) -> {
+      if (e != null) {
+        result.completeExceptionally(unwrap(e));
+        return;
+      }
+      HashedTimerWheel.Timeout timeout = timer.schedule(() -> result
+              .completeExceptionally(
+                  new SocketTimeoutException("Connect timed out")),
+          connectTimeout, TimeUnit.MILLISECONDS);
+      result.whenComplete((endpoint, t) -> timeout.cancel());
+
+      new Race(destination, order(addresses, port), start, result).next();
+    });
+    return result;
+  }
+
+  /**
+   * Gets the number of connections currently pending.
+   *
+   * @return pending connection count
+   */
+  public int getPending() {
+    return pending.get();
+  }
+
+  /**
+   * Gets the statistics updated by this connector.
+   *
+   * @return connection statistics
+   */
+  public ConnectStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Orders addresses so that address families alternate, starting with the
+   * family of the first address (RFC 8305, section 4).
+   */
+  private static InetSocketAddress[] order(InetAddress[] addresses,
+      int port) {
+    List<InetAddress> preferred = new ArrayList<>(addresses.length);
+    List<InetAddress> other = new ArrayList<>(addresses.length);
+    boolean ipv6 = addresses[0] instanceof Inet6Address;
+    for (InetAddress address : addresses) {
+      if ((address instanceof Inet6Address) == ipv6) {
+        preferred.add(address);
+      } else {
+        other.add(address);
+      }
+    }
+
+    InetSocketAddress[] result = new InetSocketAddress[addresses.length];
+    int i = 0;
+    for (int j = 0; i < result.length; j++) {
+      if (j < preferred.size()) {
+        result[i++] = new InetSocketAddress(preferred.get(j), port);
+      }
+      if (j < other.size()) {
+        result[i++] = new InetSocketAddress(other.get(j), port);
+      }
+    }
+    return result;
+  }
+
+  private void attempt(InetSocketAddress address,
+      CompletableFuture<Endpoint> attempt) {
+    if (selectorPool != null) {
+      connectChannel(address, attempt);
+      return;
+    }
+
+    try {
+      executor.execute(() -> connectSocket(address, attempt));
+    } catch (RejectedExecutionException e) {
+      // every connect thread is busy and the queue is full
+      attempt.completeExceptionally(
+          new RejectedExecutionException("Too many pending connections", e));
+    }
+  }
+
+  private void connectSocket(InetSocketAddress address,
+      CompletableFuture<Endpoint> result) {
+    if (result.isDone()) {
+      // abandoned while waiting for a thread
+      return;
+    }
+    Socket socket = new Socket();
+    // closing the socket aborts a connect which is abandoned
+    result.whenComplete((endpoint, e) -> {
+      if (e != null) {
+        try {
+          socket.close();
+        } catch (Throwable ignored) {
+        }
+      }
+    });
+    try {
+      socket.connect(address, (int) connectTimeout);
+      SocketEndpoint endpoint = new SocketEndpoint(socket);
+      if (!result.complete(endpoint)) {
+        endpoint.close();
+      }
+    } catch (IOException e) {
+      try {
+        socket.close();
+      } catch (Throwable ignored) {
+      }
+      result.completeExceptionally(e);
+    }
+  }
+
+  private void connectChannel(InetSocketAddress address,
+      CompletableFuture<Endpoint> result) {
+    SocketChannel channel = null;
+    try {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      if (channel.connect(address)) {
+        ChannelEndpoint endpoint = new ChannelEndpoint(channel, selectorPool);
+        if (!result.complete(endpoint)) {
+          endpoint.close();
+        }
+        return;
+      }
+    } catch (IOException e) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (Throwable ignored) {
+        }
+      }
+      result.completeExceptionally(e);
+      return;
+    }
+
+    PendingConnect connect =
+        new PendingConnect(channel, selectorPool.choose(), result);
+    connect.selector.execute(connect::register);
+    result.whenComplete((endpoint, e) -> {
+      if (e != null) {
+        connect.selector.execute(connect::abandon);
+      }
+    });
+  }
+
+  private static Throwable unwrap(Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ?
+        e.getCause() :
+        e;
+  }
+
+  /**
+   * Staggered connection attempts to the addresses of one destination. The
+   * first attempt to succeed completes the result; once the result is
+   * complete, attempts still pending are cancelled, which abandons their
+   * connections.
+   */
+  private final class Race {
+    private final String destination;
+    private final InetSocketAddress[] addresses;
+    private final long start;
+    private final CompletableFuture<Endpoint> result;
+
+    // guarded by this
+    private final List<CompletableFuture<Endpoint>> attempts =
+        new ArrayList<>();
+    private int started = 0;
+    private int failed = 0;
+    private HashedTimerWheel.Timeout delay;
+
+    private Race(String destination, InetSocketAddress[] addresses,
+        long start, CompletableFuture<Endpoint> result) {
+      this.destination = destination;
+      this.addresses = addresses;
+      this.start = start;
+      this.result = result;
+      result.whenComplete((endpoint, e) -> cancel());
+    }
+
+    /**
+     * Starts an attempt on the next address, and schedules the one after it.
+     */
+    private void next() {
+      CompletableFuture<Endpoint> attempt = new CompletableFuture<>();
+      int index;
+      synchronized (this) {
+        if (result.isDone() || started == addresses.length) {
+          return;
+        }
+        index = started++;
+        attempts.add(attempt);
+        if (started < addresses.length) {
+          delay = timer.schedule(this::next, attemptDelay,
+              TimeUnit.MILLISECONDS);
+        }
+      }
+
+      attempt.whenComplete((endpoint, e) -> {
+        if (e != null) {
+          failed(e);
+        } else if (result.complete(endpoint)) {
+          stats.connected(destination, addresses[index].getAddress(), index,
+              System.nanoTime() - start);
+        } else {
+          // lost the race
+          try {
+            endpoint.close();
+          } catch (Throwable ignored) {
+          }
+        }
+      });
+      attempt(addresses[index], attempt);
+    }
+
+    /**
+     * Fails the result once every address has failed; otherwise starts the
+     * next attempt without waiting for the attempt delay.
+     */
+    private void failed(Throwable e) {
+      boolean exhausted;
+      HashedTimerWheel.Timeout t;
+      synchronized (this) {
+        exhausted = ++failed == addresses.length;
+        t = delay;
+        delay = null;
+      }
+      if (exhausted) {
+        result.completeExceptionally(e);
+        return;
+      }
+      if (t != null) {
+        t.cancel();
+      }
+      next();
+    }
+
+    private void cancel() {
+      List<CompletableFuture<Endpoint>> pending;
+      HashedTimerWheel.Timeout t;
+      synchronized (this) {
+        pending = new ArrayList<>(attempts);
+        t = delay;
+        delay = null;
+      }
+      if (t != null) {
+        t.cancel();
+      }
+      for (CompletableFuture<Endpoint> attempt : pending) {
+        attempt.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Non-blocking connection awaiting completion. All methods run on the
+   * selector thread.
+   */
+  private static final class PendingConnect
+      implements SelectorPool.Selectable {
+    private final SocketChannel channel;
+    private final SelectorPool.SelectorThread selector;
+    private final CompletableFuture<Endpoint> result;
+    private SelectionKey key;
+
+    private PendingConnect(SocketChannel channel,
+        SelectorPool.SelectorThread selector,
+        CompletableFuture<Endpoint> result) {
+      this.channel = channel;
+      this.selector = selector;
+      this.result = result;
+    }
+
+    private void register() {
+      if (result.isDone()) {
+        abandon();
+        return;
+      }
+      try {
+        key = channel.register(selector.selector(), SelectionKey.OP_CONNECT,
+            this);
+      } catch (IOException e) {
+        abandon();
+        result.completeExceptionally(e);
+      }
+    }
+
+    @Override public void ready(SelectionKey key) {
+      try {
+        if (!channel.finishConnect()) {
+          return;
+        }
+      } catch (IOException e) {
+        abandon();
+        result.completeExceptionally(e);
+        return;
+      }
+      // the endpoint takes over the registration
+      ChannelEndpoint endpoint = new ChannelEndpoint(channel, selector, key);
+      if (!result.complete(endpoint)) {
+        endpoint.close();
+      }
+    }
+
+    private void abandon() {
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (Throwable ignored) {
+      }
+    }
+  }
+}
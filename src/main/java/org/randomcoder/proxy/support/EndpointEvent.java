@@ -36,6 +36,7 @@ public class EndpointEvent {
   private String details;
   private EventType status;
   private long timestamp;
+  private String owner;
 
   /**
    * Creates a new event.
@@ -47,10 +48,26 @@ public class EndpointEvent {
    */
   public EndpointEvent(String connectionId, String details, EventType status,
       long timestamp) {
+    this(connectionId, details, status, timestamp, null);
+  }
+
+  /**
+   * Creates a new event.
+   *
+   * @param connectionId connection ID
+   * @param details      connection details
+   * @param status       event status
+   * @param timestamp    event timestamp
+   * @param owner        user which owns the connection, or <code>null</code>
+   *                     if unknown
+   */
+  public EndpointEvent(String connectionId, String details, EventType status,
+      long timestamp, String owner) {
     this.connectionId = connectionId;
     this.details = details;
     this.status = status;
     this.timestamp = timestamp;
+    this.owner = owner;
   }
 
   /**
@@ -88,4 +105,13 @@ public class EndpointEvent {
   public long getTimestamp() {
     return timestamp;
   }
+
+  /**
+   * Gets the user which owns the connection.
+   *
+   * @return owner, or <code>null</code> if unknown
+   */
+  public String getOwner() {
+    return owner;
+  }
 }
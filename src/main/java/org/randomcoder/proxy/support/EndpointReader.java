@@ -0,0 +1,122 @@
+package org.randomcoder.proxy.support;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Demand-driven reader for an {@link Endpoint}. Each call to
+ * {@link #read(byte[], int, int)} results in exactly one callback to the
+ * supplied {@link Listener}, so a consumer which cannot keep up simply stops
+ * asking for more data. Apart from reporting that the reader has been shut
+ * down, callbacks are never made from within {@link #read(byte[], int, int)}
+ * itself.
+ * <p>
+ * Endpoints implementing {@link AsyncEndpoint} are read from without blocking
+ * when they become readable, so an idle endpoint does not occupy a thread.
+ * Other endpoints are read from using blocking I/O on the supplied executor.
+ */
+public class EndpointReader {
+  private final Endpoint endpoint;
+  private final Executor executor;
+  private final Listener listener;
+
+  /**
+   * Receives the results of read requests.
+   */
+  public interface Listener {
+    /**
+     * Called when data has been read.
+     *
+     * @param buf    buffer passed to read
+     * @param offset offset passed to read
+     * @param len    number of bytes read (always positive)
+     */
+    public void onData(byte[] buf, int offset, int len);
+
+    /**
+     * Called when the endpoint has reached end of stream.
+     */
+    public void onEnd();
+
+    /**
+     * Called when the read failed.
+     *
+     * @param e cause of failure
+     */
+    public void onError(IOException e);
+  }
+
+  /**
+   * Creates a new endpoint reader.
+   *
+   * @param endpoint endpoint to read from
+   * @param executor executor used to perform blocking reads (unused for
+   *                 asynchronous endpoints)
+   * @param listener listener to notify
+   */
+  public EndpointReader(Endpoint endpoint, Executor executor,
+      Listener listener) {
+    this.endpoint = endpoint;
+    this.executor = executor;
+    this.listener = listener;
+  }
+
+  /**
+   * Requests a single read. The buffer must not be touched by the caller until
+   * the listener has been notified.
+   *
+   * @param buf    buffer to read into
+   * @param offset offset within buffer
+   * @param len    maximum number of bytes to read
+   */
+  public void read(byte[] buf, int offset, int len) {
+    if (endpoint instanceof AsyncEndpoint) {
+      AsyncEndpoint async = (AsyncEndpoint) endpoint;
+      async.onReadable(() -> readNow(async, buf, offset, len));
+      return;
+    }
+    try {
+      executor.execute(() -> doRead(buf, offset, len));
+    } catch (RejectedExecutionException e) {
+      listener.onError(new IOException("Reader shut down", e));
+    }
+  }
+
+  private void readNow(AsyncEndpoint async, byte[] buf, int offset,
+      int len) {
+    int c;
+    try {
+      c = async.read(ByteBuffer.wrap(buf, offset, len));
+    } catch (IOException e) {
+      listener.onError(e);
+      return;
+    }
+    if (c == 0) {
+      // spurious wakeup
+      async.onReadable(() -> readNow(async, buf, offset, len));
+    } else if (c < 0) {
+      listener.onEnd();
+    } else {
+      listener.onData(buf, offset, c);
+    }
+  }
+
+  private void doRead(byte[] buf, int offset, int len) {
+    int c;
+    try {
+      do {
+        c = endpoint.getInputStream().read(buf, offset, len);
+      } while (c == 0);
+    } catch (IOException e) {
+      listener.onError(e);
+      return;
+    }
+    if (c < 0) {
+      listener.onEnd();
+    } else {
+      listener.onData(buf, offset, c);
+    }
+  }
+}
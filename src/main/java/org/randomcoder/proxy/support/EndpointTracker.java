@@ -3,18 +3,21 @@ package org.randomcoder.proxy.support;
 import org.apache.log4j.Logger;
 import org.randomcoder.proxy.support.EndpointEvent.EventType;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Endpoint tracker which watches Endpoint instances and cleans them up after a
  * specified period of inactivity.
+ * <p>
+ * Each tunnel is represented by a single {@link Session}. Sessions are spread
+ * across a power-of-two number of shards by id, so adds, lookups and removes
+ * on different tunnels rarely touch the same map segment, and a lookup is a
+ * single hash probe into one shard.
  */
 public class EndpointTracker {
   /**
@@ -24,54 +27,72 @@ public class EndpointTracker {
       Logger.getLogger(EndpointTracker.class);
 
   /**
-   * Map of ids to endpoints.
+   * Default number of events retained.
    */
-  protected final ConcurrentHashMap<String, Endpoint> endpointMap =
-      new ConcurrentHashMap<String, Endpoint>();
+  public static final int DEFAULT_EVENT_CAPACITY = 128;
 
   /**
-   * Map of ids to expiration times.
+   * Log of recent events.
    */
-  protected final ConcurrentHashMap<String, Long> expirationMap =
-      new ConcurrentHashMap<String, Long>();
-
-  /**
-   * List of events.
-   */
-  protected final ConcurrentLinkedQueue<EndpointEvent> events =
-      new ConcurrentLinkedQueue<EndpointEvent>();
+  protected final EventLog events;
 
   /**
    * Maximum idle time in milliseconds;
    */
   protected final long maxIdle;
 
+  private final long maxIdleNanos;
+  private final HashedTimerWheel timer;
+  private final Shard[] shards;
+  private final int shardMask;
+  private final TunnelStats stats = new TunnelStats();
+  private volatile boolean shutdown = false;
+
   /**
-   * Time to sleep between eviction runs in milliseconds.
+   * Creats a new endpoint tracker using default values.
+   *
+   * @param timer timer used to schedule expiration
    */
-  protected final long evictionFrequency;
-
-  private final ReaperThread reaperThread;
+  public EndpointTracker(HashedTimerWheel timer) {
+    this(60000L, Runtime.getRuntime().availableProcessors() * 2, timer);
+  }
 
   /**
-   * Creats a new endpoint tracker using default values.
+   * Creates a new endpoint tracker.
+   *
+   * @param maxIdle    maximum time before idle threads are killed (in milliseconds)
+   * @param shardCount number of shards (rounded up to a power of two)
+   * @param timer      timer used to schedule expiration
    */
-  public EndpointTracker() {
-    this(60000L, 10000L);
+  public EndpointTracker(long maxIdle, int shardCount,
+      HashedTimerWheel timer) {
+    this(maxIdle, shardCount, DEFAULT_EVENT_CAPACITY, timer);
   }
 
   /**
    * Creates a new endpoint tracker.
    *
-   * @param maxIdle           maximum time before idle threads are killed (in milliseconds)
-   * @param evictionFrequency how often to perform evictions
+   * @param maxIdle       maximum time before idle threads are killed (in milliseconds)
+   * @param shardCount    number of shards (rounded up to a power of two)
+   * @param eventCapacity number of recent events retained (rounded up to a
+   *                      power of two)
+   * @param timer         timer used to schedule expiration
    */
-  public EndpointTracker(long maxIdle, long evictionFrequency) {
+  public EndpointTracker(long maxIdle, int shardCount, int eventCapacity,
+      HashedTimerWheel timer) {
     this.maxIdle = maxIdle;
-    this.evictionFrequency = evictionFrequency;
-    reaperThread = new ReaperThread();
-    reaperThread.start();
-    logger.info("Endpoint tracker initialized");
+    this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdle);
+    this.timer = timer;
+    this.events = new EventLog(eventCapacity);
+
+    int size = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1;
+    shards = new Shard[size];
+    for (int i = 0; i < size; i++) {
+      shards[i] = new Shard();
+    }
+    shardMask = size - 1;
+
+    logger.info("Endpoint tracker initialized with " + size + " shards");
   }
 
   /**
@@ -80,26 +101,13 @@ public class EndpointTracker {
   public void destroy() {
     logger.info("Endpoint tracker shutting down...");
 
-    reaperThread.shutdown();
-    try {
-      reaperThread.join(30000);
-    } catch (InterruptedException ignored) {
-    }
+    shutdown = true;
 
     int count = 0;
 
     // make sure all referenced connections are closed
-    for (Map.Entry<String, Endpoint> entry : endpointMap.entrySet()) {
-      String id = entry.getKey();
-      expirationMap.remove(id);
-      Endpoint endpoint = endpointMap.remove(id);
-      if (endpoint != null) {
-        try {
-          endpoint.close();
-        } catch (Throwable ignored) {
-        }
-        count++;
-      }
+    for (Shard shard : shards) {
+      count += shard.closeAll();
     }
 
     logger.info("Endpoint tracker shutdown, " + count + " endpoints closed");
@@ -108,19 +116,22 @@ public class EndpointTracker {
   /**
    * Adds a new endpoint to the tracker.
    *
-   * @param endpoint endpoint to add
-   * @return unique identifier
+   * @param endpoint    endpoint to add
+   * @param owner       user which created the endpoint
+   * @param destination destination the endpoint is connected to
+   * @return new session
    */
-  public String add(Endpoint endpoint) {
+  public Session add(Endpoint endpoint, String owner, String destination) {
     String id = UUID.randomUUID().toString();
 
-    events.offer(new EndpointEvent(id, endpoint.toString(), EventType.CONNECT,
-        System.currentTimeMillis()));
+    Session session =
+        new Session(id, endpoint, owner, destination, maxIdleNanos, stats);
+    stats.opened();
+    events.record(EventType.CONNECT, id, session);
+    shard(id).sessions.put(id, session);
+    scheduleExpiration(session, maxIdleNanos);
 
-    endpointMap.put(id, endpoint);
-    expirationMap.put(id, System.currentTimeMillis() + maxIdle);
-
-    return id;
+    return session;
   }
 
   /**
@@ -129,16 +140,10 @@ public class EndpointTracker {
    * @param id unique identifier of endpoint to remove
    */
   public void remove(String id) {
-    expirationMap.remove(id);
-    Endpoint endpoint = endpointMap.remove(id);
-    events.offer(
-        new EndpointEvent(id, endpoint == null ? "null" : endpoint.toString(),
-            EventType.DISCONNECT, System.currentTimeMillis()));
-    try {
-      if (endpoint != null) {
-        endpoint.close();
-      }
-    } catch (Throwable ignored) {
+    Session session = id == null ? null : shard(id).sessions.remove(id);
+    events.record(EventType.DISCONNECT, id, session);
+    if (session != null) {
+      close(session);
     }
   }
 
@@ -148,10 +153,7 @@ public class EndpointTracker {
    * @param id unique identifier of endpoint
    */
   public void receiveComplete(String id) {
-    Endpoint endpoint = endpointMap.get(id);
-    events.offer(
-        new EndpointEvent(id, endpoint == null ? "null" : endpoint.toString(),
-            EventType.RECEIVE_COMPLETE, System.currentTimeMillis()));
+    events.record(EventType.RECEIVE_COMPLETE, id, getSession(id));
   }
 
   /**
@@ -160,26 +162,30 @@ public class EndpointTracker {
    * @param id unique identifier of endpoint
    */
   public void receiveError(String id) {
-    Endpoint endpoint = endpointMap.get(id);
-    events.offer(
-        new EndpointEvent(id, endpoint == null ? "null" : endpoint.toString(),
-            EventType.RECEIVE_ERROR, System.currentTimeMillis()));
+    events.record(EventType.RECEIVE_ERROR, id, getSession(id));
   }
 
   /**
    * Refreshes an endpoint's timeout value, typically in response to activity
-   * or a keep-alive request.
+   * or a keep-alive request. Callers which already hold the {@link Session}
+   * should call {@link Session#refresh()} directly.
    *
    * @param id unique identifier of endpoint to refresh
    * @return <code>true</code> if endpoint was still active
    */
   public boolean refresh(String id) {
-    long timeout = System.currentTimeMillis() + maxIdle;
-    Long oldTimeout = expirationMap.replace(id, timeout);
-
-    logger.debug("Refresh [" + id + "]: old=" + oldTimeout + ",new=" + timeout);
+    Session session = getSession(id);
+    return session != null && session.refresh();
+  }
 
-    return (oldTimeout != null);
+  /**
+   * Gets a session by id.
+   *
+   * @param id unique identifier of session to retrieve
+   * @return session, or <code>null</code> if not found
+   */
+  public Session getSession(String id) {
+    return id == null ? null : shard(id).sessions.get(id);
   }
 
   /**
@@ -189,105 +195,169 @@ public class EndpointTracker {
    * @return endpoint, or <code>null</code> if not found
    */
   public Endpoint getEndpoint(String id) {
-    return endpointMap.get(id);
+    Session session = getSession(id);
+    return session == null ? null : session.getEndpoint();
   }
 
   /**
-   * Gets the endpoint map (for status).
+   * Gets a live, weakly consistent view of all sessions (for status). No copy
+   * is made; sessions added or removed during iteration may or may not be
+   * seen.
    *
-   * @return endpoint map
+   * @return sessions
    */
-  public TreeMap<String, Endpoint> getEndpointMap() {
-    return new TreeMap<String, Endpoint>(endpointMap);
+  public Iterable<Session> getSessions() {
+    return SessionIterator::new;
   }
 
   /**
-   * Gets the expiration map (for status).
+   * Gets the number of active sessions.
    *
-   * @return expiration map
+   * @return session count
    */
-  public Map<String, Long> getExpirationMap() {
-    return new TreeMap<String, Long>(expirationMap);
+  public int getSessionCount() {
+    int count = 0;
+    for (Shard shard : shards) {
+      count += shard.sessions.size();
+    }
+    return count;
+  }
+
+  /**
+   * Gets counters covering all sessions, including closed ones.
+   *
+   * @return tunnel statistics
+   */
+  public TunnelStats getStats() {
+    return stats;
   }
 
   /**
-   * Gets the list of recent events.
+   * Gets the list of recent events, newest first.
    *
    * @return event list
    */
   public List<EndpointEvent> getEvents() {
-    List<EndpointEvent> result = new ArrayList<EndpointEvent>(events);
-    Collections.reverse(result);
-    return result;
+    return events.getEvents(null, null, null, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Gets recent events matching the given criteria, newest first.
+   *
+   * @param type  event type, or <code>null</code> for any type
+   * @param owner user which owns the session, or <code>null</code> for any
+   *              user
+   * @param id    session id, or <code>null</code> for any session
+   * @param limit maximum number of events to return
+   * @return matching events
+   */
+  public List<EndpointEvent> getEvents(EventType type, String owner,
+      String id, int limit) {
+    return events.getEvents(type, owner, id, limit);
+  }
+
+  private Shard shard(String id) {
+    int h = id.hashCode();
+    return shards[(h ^ (h >>> 16)) & shardMask];
+  }
+
+  private void close(Session session) {
+    if (!session.markClosed()) {
+      return;
+    }
+    HashedTimerWheel.Timeout timeout = session.timeout;
+    if (timeout != null) {
+      timeout.cancel();
+    }
+    try {
+      session.getEndpoint().close();
+    } catch (Throwable ignored) {
+    }
+    Compression compression = session.getCompression();
+    if (compression != null) {
+      compression.close();
+    }
+    AdmissionController.Permit permit = session.getPermit();
+    if (permit != null) {
+      permit.release();
+    }
+  }
+
+  private void scheduleExpiration(Session session, long delayNanos) {
+    session.timeout = timer
+        .schedule(() -> checkExpiration(session), delayNanos,
+            TimeUnit.NANOSECONDS);
   }
 
-  private final class ReaperThread extends Thread {
-    private volatile boolean shutdown = false;
+  /**
+   * Called by the timer when a session may have expired. Refreshing only
+   * updates the deadline, so this either expires the session or reschedules
+   * itself for the remaining time; each check touches only one session and
+   * idle sessions are checked once per idle period.
+   */
+  private void checkExpiration(Session session) {
+    if (shutdown || session.isClosed()) {
+      return;
+    }
+    long remaining = session.getDeadline() - System.nanoTime();
+    if (remaining > 0L) {
+      scheduleExpiration(session, remaining);
+      return;
+    }
 
-    /**
-     * Creates a new reaper thread.
-     */
-    public ReaperThread() {
-      super("Endpoint reaper");
+    String id = session.getId();
+    if (!shard(id).sessions.remove(id, session)) {
+      return;
     }
 
-    @Override public void run() {
-      while (!shutdown) {
-        try {
-          long now = System.currentTimeMillis();
-
-          logger.debug("Checking for stale connections, time = " + now);
-
-          // walk object map
-          for (Map.Entry<String, Long> entry : expirationMap.entrySet()) {
-            if (entry.getValue() <= now) {
-              // remove stale object
-              String id = entry.getKey();
-              expirationMap.remove(id);
-              Endpoint endpoint = endpointMap.remove(id);
-
-              events.offer(new EndpointEvent(id,
-                  endpoint == null ? "null" : endpoint.toString(),
-                  EventType.EXPIRE, System.currentTimeMillis()));
-
-              if (endpoint != null) {
-                logger.info("Closing stale connection with ID " + id);
-                try {
-                  endpoint.close();
-                } catch (Throwable ignored) {
-                }
-              }
-            }
-          }
-
-          logger.debug("Done checking for stale connections");
-
-          logger.debug("Clearing event list");
-
-          while (events.size() > 100) {
-            events.remove();
-          }
-
-          logger.debug("Done clearing event list");
-
-          // sleep until next round
-          try {
-            Thread.sleep(evictionFrequency);
-          } catch (InterruptedException ignored) {
-          }
-        } catch (Throwable t) {
-          // defensive catch to avoid thread death
-          logger.error("Caught exception", t);
+    events.record(EventType.EXPIRE, id, session);
+
+    stats.expired();
+    logger.info("Closing stale connection with ID " + id);
+    close(session);
+  }
+
+  /**
+   * A partition of the session table.
+   */
+  private final class Shard {
+    private final ConcurrentHashMap<String, Session> sessions =
+        new ConcurrentHashMap<String, Session>();
+
+    private int closeAll() {
+      int count = 0;
+      for (Session session : sessions.values()) {
+        if (sessions.remove(session.getId(), session)) {
+          close(session);
+          count++;
         }
       }
+      return count;
+    }
+  }
+
+  /**
+   * Iterates the live session tables of each shard in turn.
+   */
+  private final class SessionIterator implements Iterator<Session> {
+    private int shard = 0;
+    private Iterator<Session> current = shards[0].sessions.values().iterator();
+
+    @Override public boolean hasNext() {
+      while (!current.hasNext()) {
+        if (++shard >= shards.length) {
+          return false;
+        }
+        current = shards[shard].sessions.values().iterator();
+      }
+      return true;
     }
 
-    /**
-     * Requests that this thread be shutdown.
-     */
-    public void shutdown() {
-      shutdown = true;
-      interrupt();
+    @Override public Session next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
     }
   }
 }
@@ -0,0 +1,333 @@
+package org.randomcoder.proxy.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bounded, asynchronous writer for an {@link Endpoint}. Callers copy data into
+ * a fixed-size queue without blocking, and the queue is drained to the
+ * endpoint on a separate executor. Producers which find the queue full may ask
+ * to be notified when space becomes available, and may wait for a given
+ * number of bytes to be committed to the endpoint.
+ * <p>
+ * Endpoints implementing {@link AsyncEndpoint} are written to without blocking
+ * when they become writable. Other endpoints are written to using blocking I/O
+ * on the supplied executor.
+ * <p>
+ * The queue is borrowed from a {@link BufferPool} and returned once the
+ * writer has been closed and any write in progress has finished.
+ */
+public class EndpointWriter {
+  private final Endpoint endpoint;
+  private final Executor executor;
+  private final BufferPool pool;
+  private final ByteBuffer buffer;
+  private final byte[] queue;
+  private final int capacity;
+
+  // all remaining state is guarded by this
+  private int head = 0;
+  private int size = 0;
+  private long written = 0L;
+  private boolean writing = false;
+  private IOException failure = null;
+  private boolean closed = false;
+  private boolean released = false;
+  private final List<Runnable> spaceWaiters = new ArrayList<>();
+  private final List<CommitWaiter> commitWaiters = new ArrayList<>();
+
+  /**
+   * Receives notification that queued bytes have been committed.
+   */
+  public interface CommitListener {
+    /**
+     * Called once the requested bytes have been written to the endpoint.
+     */
+    public void onCommitted();
+
+    /**
+     * Called if the endpoint could not be written to.
+     *
+     * @param e cause of failure
+     */
+    public void onFailed(IOException e);
+  }
+
+  /**
+   * Creates a new endpoint writer.
+   *
+   * @param endpoint     endpoint to write to
+   * @param executor     executor used to perform blocking writes (unused for
+   *                     asynchronous endpoints)
+   * @param maxQueueSize maximum number of bytes which may be queued
+   * @param pool         pool to borrow the queue from
+   */
+  public EndpointWriter(Endpoint endpoint, Executor executor,
+      int maxQueueSize, BufferPool pool) {
+    this.endpoint = endpoint;
+    this.executor = executor;
+    this.pool = pool;
+    this.buffer = pool.acquire(maxQueueSize, false);
+    this.queue = buffer.array();
+    this.capacity = maxQueueSize;
+  }
+
+  /**
+   * Gets the number of bytes which may currently be queued without exceeding
+   * the queue limit.
+   *
+   * @return available space in bytes
+   */
+  public synchronized int available() {
+    return capacity - size;
+  }
+
+  /**
+   * Queues data for writing. At most {@link #available()} bytes are accepted.
+   *
+   * @param buf    buffer containing data
+   * @param offset offset within buffer
+   * @param len    number of bytes to queue
+   * @return number of bytes accepted
+   * @throws IOException if a previous write to the endpoint failed
+   */
+  public int offer(byte[] buf, int offset, int len) throws IOException {
+    synchronized (this) {
+      if (failure != null) {
+        throw failure;
+      }
+      if (closed) {
+        throw new IOException("Writer closed");
+      }
+      len = Math.min(len, capacity - size);
+      int tail = (head + size) % capacity;
+      int first = Math.min(len, capacity - tail);
+      System.arraycopy(buf, offset, queue, tail, first);
+      System.arraycopy(buf, offset + first, queue, 0, len - first);
+      size += len;
+      if (len == 0 || writing) {
+        return len;
+      }
+      writing = true;
+    }
+    if (endpoint instanceof AsyncEndpoint) {
+      ((AsyncEndpoint) endpoint).onWritable(this::drain);
+      return len;
+    }
+    try {
+      executor.execute(this::drain);
+    } catch (RejectedExecutionException e) {
+      fail(new IOException("Writer shut down", e));
+    }
+    return len;
+  }
+
+  /**
+   * Gets the total number of bytes which have been accepted by
+   * {@link #offer(byte[], int, int)} over the life of this writer.
+   *
+   * @return accepted byte count
+   */
+  public synchronized long getAccepted() {
+    return written + size;
+  }
+
+  /**
+   * Requests a one-time notification once queue space is available. If space
+   * is already available, the callback is run immediately.
+   *
+   * @param callback callback to run
+   */
+  public void onSpaceAvailable(Runnable callback) {
+    synchronized (this) {
+      if (size == capacity && failure == null && !closed) {
+        spaceWaiters.add(callback);
+        return;
+      }
+    }
+    callback.run();
+  }
+
+  /**
+   * Requests notification once the given number of accepted bytes has been
+   * written to the endpoint. If the bytes have already been written, the
+   * listener is notified immediately.
+   *
+   * @param position total accepted byte count to wait for
+   * @param listener listener to notify
+   */
+  public void onCommitted(long position, CommitListener listener) {
+    IOException e;
+    synchronized (this) {
+      e = failure;
+      if (e == null && written < position) {
+        commitWaiters.add(new CommitWaiter(position, listener));
+        return;
+      }
+    }
+    if (e == null) {
+      listener.onCommitted();
+    } else {
+      listener.onFailed(e);
+    }
+  }
+
+  /**
+   * Closes the writer. No further data may be offered, and anyone waiting for
+   * space is notified so that they can find out; the queue is returned to the
+   * pool as soon as no write is in progress.
+   */
+  public void close() {
+    List<Runnable> space;
+    boolean release;
+    synchronized (this) {
+      closed = true;
+      release = releasable();
+      space = takeSpaceWaiters();
+    }
+    for (Runnable r : space) {
+      r.run();
+    }
+    if (release) {
+      pool.release(buffer);
+    }
+  }
+
+  private void drain() {
+    AsyncEndpoint async =
+        endpoint instanceof AsyncEndpoint ? (AsyncEndpoint) endpoint : null;
+    OutputStream out;
+    try {
+      out = async == null ? endpoint.getOutputStream() : null;
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    while (true) {
+      int offset;
+      int len;
+      boolean release = false;
+      synchronized (this) {
+        if (size == 0) {
+          writing = false;
+          release = releasable();
+        }
+        offset = head;
+        len = Math.min(size, capacity - head);
+      }
+      if (len == 0) {
+        if (release) {
+          pool.release(buffer);
+        }
+        return;
+      }
+      int c;
+      try {
+        if (async == null) {
+          out.write(queue, offset, len);
+          out.flush();
+          c = len;
+        } else {
+          c = async.write(ByteBuffer.wrap(queue, offset, len));
+        }
+      } catch (IOException e) {
+        fail(e);
+        return;
+      }
+      if (c == 0) {
+        async.onWritable(this::drain);
+        return;
+      }
+      List<Runnable> space;
+      List<CommitListener> committed = null;
+      synchronized (this) {
+        head = (head + c) % capacity;
+        size -= c;
+        written += c;
+        space = takeSpaceWaiters();
+        for (Iterator<CommitWaiter> it = commitWaiters.iterator(); it
+            .hasNext(); ) {
+          CommitWaiter waiter = it.next();
+          if (waiter.position <= written) {
+            if (committed == null) {
+              committed = new ArrayList<>();
+            }
+            committed.add(waiter.listener);
+            it.remove();
+          }
+        }
+      }
+      for (Runnable r : space) {
+        r.run();
+      }
+      if (committed != null) {
+        for (CommitListener listener : committed) {
+          listener.onCommitted();
+        }
+      }
+    }
+  }
+
+  private void fail(IOException e) {
+    List<Runnable> space;
+    List<CommitWaiter> commits;
+    boolean release;
+    synchronized (this) {
+      failure = e;
+      writing = false;
+      size = 0;
+      release = releasable();
+      space = takeSpaceWaiters();
+      commits = new ArrayList<>(commitWaiters);
+      commitWaiters.clear();
+    }
+    if (release) {
+      pool.release(buffer);
+    }
+    for (Runnable r : space) {
+      r.run();
+    }
+    for (CommitWaiter waiter : commits) {
+      waiter.listener.onFailed(e);
+    }
+  }
+
+  /**
+   * Determines whether the queue may be returned to the pool, and if so marks
+   * it as returned. Must be called while holding the lock.
+   *
+   * @return <code>true</code> if the caller should release the queue
+   */
+  private boolean releasable() {
+    if (!closed || writing || released) {
+      return false;
+    }
+    released = true;
+    return true;
+  }
+
+  private List<Runnable> takeSpaceWaiters() {
+    if (spaceWaiters.isEmpty()) {
+      return List.of();
+    }
+    List<Runnable> result = new ArrayList<>(spaceWaiters);
+    spaceWaiters.clear();
+    return result;
+  }
+
+  private static final class CommitWaiter {
+    private final long position;
+    private final CommitListener listener;
+
+    private CommitWaiter(long position, CommitListener listener) {
+      this.position = position;
+      this.listener = listener;
+    }
+  }
+}
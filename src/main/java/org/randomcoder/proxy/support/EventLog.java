@@ -0,0 +1,147 @@
+package org.randomcoder.proxy.support;
+
+import org.randomcoder.proxy.support.EndpointEvent.EventType;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size, lock-free log of recent endpoint events. Events are stored as
+ * plain fields in preallocated arrays, so recording an event allocates
+ * nothing beyond its session's description, which is built once per session;
+ * the {@link EndpointEvent} objects are only created when the log is read.
+ * Only strings are kept, never the sessions themselves, so the log does not
+ * hold closed sessions or their endpoints in memory. Once the log is full,
+ * each new event overwrites the oldest.
+ * <p>
+ * Each slot carries a sequence number which works as a per-slot sequence
+ * lock: a writer claims the slot by replacing the sequence with a negative
+ * marker, stores the fields and then publishes the new sequence, and a reader
+ * only accepts a slot whose sequence is the same before and after reading
+ * it. A writer which finds its slot still being written by another (only
+ * possible when the log wraps around during the write), or already holding a
+ * newer event, drops its event rather than waiting.
+ */
+public class EventLog {
+  private static final EventType[] TYPES = EventType.values();
+
+  private final int mask;
+  private final AtomicLong next = new AtomicLong();
+  private final AtomicLongArray sequences;
+  private final long[] timestamps;
+  private final byte[] types;
+  private final String[] ids;
+  private final String[] owners;
+  private final String[] descriptions;
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * Creates a new event log.
+   *
+   * @param capacity number of events retained (rounded up to a power of two)
+   */
+  public EventLog(int capacity) {
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    mask = size - 1;
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      // no event has this sequence, so unused slots are never read
+      sequences.set(i, Long.MAX_VALUE);
+    }
+    timestamps = new long[size];
+    types = new byte[size];
+    ids = new String[size];
+    owners = new String[size];
+    descriptions = new String[size];
+  }
+
+  /**
+   * Records an event.
+   *
+   * @param type    event type
+   * @param id      session id
+   * @param session session, or <code>null</code> if unknown
+   */
+  public void record(EventType type, String id, Session session) {
+    long seq = next.getAndIncrement();
+    int i = (int) (seq & mask);
+    long current = sequences.get(i);
+    // the slot must hold an older event (or none), and not be mid-write
+    if (current < 0L || (current > seq && current != Long.MAX_VALUE)
+        || !sequences.compareAndSet(i, current, -seq - 1L)) {
+      dropped.increment();
+      return;
+    }
+    timestamps[i] = System.currentTimeMillis();
+    types[i] = (byte) type.ordinal();
+    ids[i] = id;
+    owners[i] = session == null ? null : session.getOwner();
+    descriptions[i] = String.valueOf(
+        session == null ? null : session.getDescription());
+    sequences.set(i, seq);
+  }
+
+  /**
+   * Gets recent events matching the given criteria, newest first.
+   *
+   * @param type  event type, or <code>null</code> for any type
+   * @param owner user which owns the session, or <code>null</code> for any
+   *              user
+   * @param id    session id, or <code>null</code> for any session
+   * @param limit maximum number of events to return
+   * @return matching events
+   */
+  public List<EndpointEvent> getEvents(EventType type, String owner,
+      String id, int limit) {
+    List<EndpointEvent> result = new ArrayList<EndpointEvent>();
+    long end = next.get();
+    long start = Math.max(0L, end - mask - 1L);
+    for (long seq = end - 1L; seq >= start && result.size() < limit; seq--) {
+      int i = (int) (seq & mask);
+      if (sequences.get(i) != seq) {
+        // not yet written, being written or already overwritten
+        continue;
+      }
+      long timestamp = timestamps[i];
+      EventType t = TYPES[types[i]];
+      String eventId = ids[i];
+      String eventOwner = owners[i];
+      String description = descriptions[i];
+      VarHandle.acquireFence();
+      if (sequences.get(i) != seq) {
+        continue;
+      }
+
+      if ((type != null && type != t) || (id != null && !id.equals(eventId))
+          || (owner != null && !owner.equals(eventOwner))) {
+        continue;
+      }
+      result.add(
+          new EndpointEvent(eventId, description, t, timestamp, eventOwner));
+    }
+    return result;
+  }
+
+  /**
+   * Gets the number of events which were dropped because their slot was
+   * still being written.
+   *
+   * @return dropped event count
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Gets the number of events retained.
+   *
+   * @return capacity
+   */
+  public int getCapacity() {
+    return mask + 1;
+  }
+}
@@ -0,0 +1,91 @@
+package org.randomcoder.proxy.support;
+
+import java.util.Locale;
+
+/**
+ * Decides when coalesced receive frames are flushed to the client. Frames are
+ * always flushed once the unflushed byte count reaches a threshold. Below the
+ * threshold, a policy without a delay flushes as soon as the endpoint has no
+ * more data immediately available, while a policy with a delay holds data for
+ * up to that long in the hope of filling a larger write.
+ */
+public class FlushPolicy {
+  /**
+   * Policy for latency-sensitive traffic such as interactive shells. Frames
+   * are only held back while more upstream data is already waiting.
+   */
+  public static final FlushPolicy INTERACTIVE = new FlushPolicy(32768, 0L);
+
+  /**
+   * Policy for bulk transfers. Frames are held for up to 20 milliseconds or
+   * until 64 KB are waiting.
+   */
+  public static final FlushPolicy BULK = new FlushPolicy(65536, 20L);
+
+  private final int threshold;
+  private final long delay;
+
+  /**
+   * Creates a new flush policy.
+   *
+   * @param threshold number of unflushed bytes which forces a flush
+   * @param delay     maximum time data may be held, in milliseconds (0 to
+   *                  flush whenever no more data is available)
+   */
+  public FlushPolicy(int threshold, long delay) {
+    this.threshold = threshold;
+    this.delay = delay;
+  }
+
+  /**
+   * Gets a predefined policy by name.
+   *
+   * @param name policy name (<code>interactive</code> or <code>bulk</code>)
+   * @return flush policy
+   * @throws IllegalArgumentException if the name is unknown
+   */
+  public static FlushPolicy forName(String name) {
+    switch (name.toLowerCase(Locale.US)) {
+    case "interactive":
+      return INTERACTIVE;
+    case "bulk":
+      return BULK;
+    default:
+      throw new IllegalArgumentException("Unknown flush policy: " + name);
+    }
+  }
+
+  /**
+   * Gets the number of unflushed bytes which forces a flush.
+   *
+   * @return threshold in bytes
+   */
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Gets the maximum time data may be held before it is flushed.
+   *
+   * @return delay in milliseconds
+   */
+  public long getDelay() {
+    return delay;
+  }
+
+  /**
+   * Determines whether data must be flushed now. If not, and the policy has a
+   * delay, the caller must arrange for a flush once the delay has elapsed.
+   *
+   * @param unflushed     number of bytes written but not yet flushed
+   * @param moreAvailable whether the endpoint has more data which can be read
+   *                      without blocking
+   * @return <code>true</code> if data should be flushed immediately
+   */
+  public boolean isFlushRequired(int unflushed, boolean moreAvailable) {
+    if (unflushed >= threshold) {
+      return true;
+    }
+    return delay == 0L && !moreAvailable;
+  }
+}
@@ -0,0 +1,256 @@
+package org.randomcoder.proxy.support;
+
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel which services any number of timeouts from a single
+ * thread. Scheduling and cancellation are O(1), and each tick only visits the
+ * bucket for that tick. Timeouts fire no earlier than requested and no later
+ * than one tick after.
+ * <p>
+ * Tasks are run on the timer thread and must not block; tasks which may block
+ * should hand off to an executor.
+ */
+public class HashedTimerWheel {
+  /**
+   * Logger instance.
+   */
+  protected static final Logger logger =
+      Logger.getLogger(HashedTimerWheel.class);
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+  private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+  private final WorkerThread worker;
+  private final long startTime;
+
+  // only accessed from the worker thread
+  private long tick = 0L;
+
+  /**
+   * Creates and starts a new timer wheel.
+   *
+   * @param name          name of the timer thread
+   * @param tickDuration  duration of a single tick
+   * @param unit          unit of tick duration
+   * @param ticksPerWheel number of buckets (rounded up to a power of two)
+   */
+  public HashedTimerWheel(String name, long tickDuration, TimeUnit unit,
+      int ticksPerWheel) {
+    int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+    wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    mask = size - 1;
+    tickNanos = Math.max(1L, unit.toNanos(tickDuration));
+    startTime = System.nanoTime();
+    worker = new WorkerThread(name);
+    worker.start();
+  }
+
+  /**
+   * Destroys the timer. Pending timeouts are discarded without being run.
+   */
+  public void destroy() {
+    worker.shutdown();
+    try {
+      worker.join(30000L);
+    } catch (InterruptedException ignored) {
+    }
+  }
+
+  /**
+   * Schedules a task to run once after the given delay.
+   *
+   * @param task  task to run
+   * @param delay delay before running
+   * @param unit  unit of delay
+   * @return handle which may be used to cancel the task
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    Timeout timeout =
+        new Timeout(task, System.nanoTime() + unit.toNanos(delay) - startTime);
+    added.offer(timeout);
+    return timeout;
+  }
+
+  private void transferAdded() {
+    // bound the work done per tick so that a flood of additions cannot
+    // starve expiry
+    for (int i = 0; i < 100000; i++) {
+      Timeout timeout = added.poll();
+      if (timeout == null) {
+        return;
+      }
+      if (timeout.state.get() != Timeout.ST_INIT) {
+        continue;
+      }
+      long ticks = Math.max(tick, timeout.deadline / tickNanos);
+      timeout.rounds = (ticks - tick) / wheel.length;
+      wheel[(int) (ticks & mask)].add(timeout);
+    }
+  }
+
+  private void removeCancelled() {
+    Timeout timeout;
+    while ((timeout = cancelled.poll()) != null) {
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+      }
+    }
+  }
+
+  private void expire(Bucket bucket, long deadline) {
+    Timeout timeout = bucket.head;
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      if (timeout.rounds <= 0) {
+        bucket.remove(timeout);
+        if (timeout.deadline <= deadline && timeout.state
+            .compareAndSet(Timeout.ST_INIT, Timeout.ST_EXPIRED)) {
+          try {
+            timeout.task.run();
+          } catch (Throwable t) {
+            logger.error("Caught exception", t);
+          }
+        }
+      } else if (timeout.state.get() == Timeout.ST_CANCELLED) {
+        bucket.remove(timeout);
+      } else {
+        timeout.rounds--;
+      }
+      timeout = next;
+    }
+  }
+
+  /**
+   * Handle for a scheduled task.
+   */
+  public final class Timeout {
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+    // only accessed from the worker thread
+    private long rounds;
+    private Bucket bucket;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancels the task if it has not yet run.
+     *
+     * @return <code>true</code> if the task was cancelled
+     */
+    public boolean cancel() {
+      if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+        return false;
+      }
+      cancelled.offer(this);
+      return true;
+    }
+
+    /**
+     * Determines if the task has been run.
+     *
+     * @return <code>true</code> if the task has run
+     */
+    public boolean isExpired() {
+      return state.get() == ST_EXPIRED;
+    }
+  }
+
+  /**
+   * Doubly-linked list of timeouts which hash to the same tick.
+   */
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    private void add(Timeout timeout) {
+      timeout.bucket = this;
+      timeout.prev = tail;
+      timeout.next = null;
+      if (tail == null) {
+        head = timeout;
+      } else {
+        tail.next = timeout;
+      }
+      tail = timeout;
+    }
+
+    private void remove(Timeout timeout) {
+      if (timeout.bucket != this) {
+        return;
+      }
+      if (timeout.prev == null) {
+        head = timeout.next;
+      } else {
+        timeout.prev.next = timeout.next;
+      }
+      if (timeout.next == null) {
+        tail = timeout.prev;
+      } else {
+        timeout.next.prev = timeout.prev;
+      }
+      timeout.bucket = null;
+      timeout.prev = null;
+      timeout.next = null;
+    }
+  }
+
+  private final class WorkerThread extends Thread {
+    private volatile boolean shutdown = false;
+
+    private WorkerThread(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    @Override public void run() {
+      while (!shutdown) {
+        try {
+          long deadline = tickNanos * (tick + 1);
+          long sleepNanos;
+          while ((sleepNanos = deadline - (System.nanoTime() - startTime))
+              > 0L) {
+            if (shutdown) {
+              return;
+            }
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos + 999999L));
+          }
+          removeCancelled();
+          transferAdded();
+          expire(wheel[(int) (tick & mask)], deadline);
+          tick++;
+        } catch (InterruptedException ignored) {
+        } catch (Throwable t) {
+          // defensive catch to avoid thread death
+          logger.error("Caught exception", t);
+        }
+      }
+    }
+
+    private void shutdown() {
+      shutdown = true;
+      interrupt();
+    }
+  }
+}
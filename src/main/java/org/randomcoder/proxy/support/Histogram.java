@@ -0,0 +1,109 @@
+package org.randomcoder.proxy.support;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed bucket boundaries. Each bucket is a striped
+ * counter, so recording a value is a bounded search of the boundaries and a
+ * single uncontended increment, and allocates nothing.
+ */
+public class Histogram {
+  /**
+   * Default bucket boundaries in seconds, from half a millisecond to five
+   * minutes.
+   */
+  public static final double[] DEFAULT_BOUNDS =
+      { 0.0005d, 0.001d, 0.0025d, 0.005d, 0.01d, 0.025d, 0.05d, 0.1d, 0.25d,
+          0.5d, 1.0d, 2.5d, 5.0d, 10.0d, 30.0d, 60.0d, 300.0d };
+
+  private final double[] bounds;
+  private final long[] boundNanos;
+  private final LongAdder[] counts;
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * Creates a new histogram using the default bucket boundaries.
+   */
+  public Histogram() {
+    this(DEFAULT_BOUNDS);
+  }
+
+  /**
+   * Creates a new histogram.
+   *
+   * @param bounds inclusive upper bounds of each bucket in seconds, in
+   *               ascending order; a final unbounded bucket is added
+   */
+  public Histogram(double... bounds) {
+    this.bounds = bounds.clone();
+    boundNanos = new long[bounds.length];
+    for (int i = 0; i < bounds.length; i++) {
+      boundNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1L));
+    }
+    counts = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records a value.
+   *
+   * @param nanos value in nanoseconds
+   */
+  public void record(long nanos) {
+    int lo = 0;
+    int hi = boundNanos.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (boundNanos[mid] < nanos) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    counts[lo].increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Gets the number of buckets, including the final unbounded bucket.
+   *
+   * @return bucket count
+   */
+  public int getBucketCount() {
+    return counts.length;
+  }
+
+  /**
+   * Gets the upper bound of a bucket.
+   *
+   * @param bucket bucket index
+   * @return upper bound in seconds, or {@link Double#POSITIVE_INFINITY} for
+   * the final bucket
+   */
+  public double getUpperBound(int bucket) {
+    return bucket < bounds.length ? bounds[bucket] : Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Gets the number of values recorded in a bucket (not including lower
+   * buckets).
+   *
+   * @param bucket bucket index
+   * @return value count
+   */
+  public long getCount(int bucket) {
+    return counts[bucket].sum();
+  }
+
+  /**
+   * Gets the sum of all values recorded.
+   *
+   * @return sum in nanoseconds
+   */
+  public long getSumNanos() {
+    return sumNanos.sum();
+  }
+}
@@ -0,0 +1,178 @@
+package org.randomcoder.proxy.support;
+
+import java.util.Objects;
+
+/**
+ * Rate limits applying to a single user. Limits are written as a
+ * comma-separated list of <code>name=value</code> pairs, where each value is
+ * a rate per second and 0 means no limit:
+ * <ul>
+ * <li><code>send</code> - bytes sent by all of the user's tunnels</li>
+ * <li><code>receive</code> - bytes received by all of the user's tunnels</li>
+ * <li><code>tunnel.send</code> - bytes sent by each tunnel</li>
+ * <li><code>tunnel.receive</code> - bytes received by each tunnel</li>
+ * <li><code>requests</code> - requests made by the user</li>
+ * <li><code>tunnels</code> - tunnels the user may have open at once (not a
+ * rate)</li>
+ * </ul>
+ * For example, <code>send=1048576,receive=4194304,requests=50</code>.
+ */
+public final class Limits {
+  /**
+   * Limits which restrict nothing.
+   */
+  public static final Limits NONE = new Limits(0L, 0L, 0L, 0L, 0L, 0L);
+
+  private final long send;
+  private final long receive;
+  private final long tunnelSend;
+  private final long tunnelReceive;
+  private final long requests;
+  private final long tunnels;
+
+  private Limits(long send, long receive, long tunnelSend, long tunnelReceive,
+      long requests, long tunnels) {
+    this.send = send;
+    this.receive = receive;
+    this.tunnelSend = tunnelSend;
+    this.tunnelReceive = tunnelReceive;
+    this.requests = requests;
+    this.tunnels = tunnels;
+  }
+
+  /**
+   * Parses limits. Limits which are not given are taken from the defaults.
+   *
+   * @param spec     limits, or <code>null</code> to use the defaults
+   * @param defaults default limits
+   * @return limits
+   * @throws IllegalArgumentException if the limits are not valid
+   */
+  public static Limits parse(String spec, Limits defaults) {
+    if (spec == null || spec.trim().isEmpty()) {
+      return defaults;
+    }
+    long send = defaults.send;
+    long receive = defaults.receive;
+    long tunnelSend = defaults.tunnelSend;
+    long tunnelReceive = defaults.tunnelReceive;
+    long requests = defaults.requests;
+    long tunnels = defaults.tunnels;
+    for (String pair : spec.split(",")) {
+      int eq = pair.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("Invalid limit: " + pair);
+      }
+      String name = pair.substring(0, eq).trim();
+      long value;
+      try {
+        value = Long.parseLong(pair.substring(eq + 1).trim());
+      } catch (NumberFormatException e) {
+        value = -1L;
+      }
+      if (value < 0L) {
+        throw new IllegalArgumentException("Invalid limit: " + pair);
+      }
+      switch (name) {
+      case "send":
+        send = value;
+        break;
+      case "receive":
+        receive = value;
+        break;
+      case "tunnel.send":
+        tunnelSend = value;
+        break;
+      case "tunnel.receive":
+        tunnelReceive = value;
+        break;
+      case "requests":
+        requests = value;
+        break;
+      case "tunnels":
+        tunnels = value;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown limit: " + name);
+      }
+    }
+    return new Limits(send, receive, tunnelSend, tunnelReceive, requests,
+        tunnels);
+  }
+
+  /**
+   * Gets the rate at which all of the user's tunnels together may send.
+   *
+   * @return bytes per second, or 0 if unlimited
+   */
+  public long getSend() {
+    return send;
+  }
+
+  /**
+   * Gets the rate at which all of the user's tunnels together may receive.
+   *
+   * @return bytes per second, or 0 if unlimited
+   */
+  public long getReceive() {
+    return receive;
+  }
+
+  /**
+   * Gets the rate at which each of the user's tunnels may send.
+   *
+   * @return bytes per second, or 0 if unlimited
+   */
+  public long getTunnelSend() {
+    return tunnelSend;
+  }
+
+  /**
+   * Gets the rate at which each of the user's tunnels may receive.
+   *
+   * @return bytes per second, or 0 if unlimited
+   */
+  public long getTunnelReceive() {
+    return tunnelReceive;
+  }
+
+  /**
+   * Gets the rate at which the user may make requests.
+   *
+   * @return requests per second, or 0 if unlimited
+   */
+  public long getRequests() {
+    return requests;
+  }
+
+  /**
+   * Gets the number of tunnels the user may have open at once.
+   *
+   * @return tunnel count, or 0 if unlimited
+   */
+  public long getTunnels() {
+    return tunnels;
+  }
+
+  @Override public boolean equals(Object o) {
+    if (!(o instanceof Limits)) {
+      return false;
+    }
+    Limits other = (Limits) o;
+    return send == other.send && receive == other.receive
+        && tunnelSend == other.tunnelSend
+        && tunnelReceive == other.tunnelReceive && requests == other.requests
+        && tunnels == other.tunnels;
+  }
+
+  @Override public int hashCode() {
+    return Objects
+        .hash(send, receive, tunnelSend, tunnelReceive, requests, tunnels);
+  }
+
+  @Override public String toString() {
+    return "send=" + send + ",receive=" + receive + ",tunnel.send="
+        + tunnelSend + ",tunnel.receive=" + tunnelReceive + ",requests="
+        + requests + ",tunnels=" + tunnels;
+  }
+}
@@ -0,0 +1,238 @@
+package org.randomcoder.proxy.support;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.randomcoder.proxy.support.AdmissionController.OperationClass;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the proxy's metrics, rendered in the Prometheus text exposition
+ * format. Lines always end with a single newline, as the format requires.
+ * <p>
+ * Counters and histograms are updated as requests complete, using striped
+ * counters so that recording never allocates or contends. Gauges and the
+ * statistics kept by other components (tunnels, outbound connections and the
+ * request thread pool) are read only when the metrics are rendered.
+ */
+public class Metrics {
+  private final EndpointTracker tracker;
+  private final ConnectStats connectStats;
+  private final QueuedThreadPool threadPool;
+  private final AdmissionController admissionController;
+  private final Map<String, Operation> operations = new TreeMap<>();
+  private final LongAdder authFailures = new LongAdder();
+
+  /**
+   * Creates a new metrics registry.
+   *
+   * @param tracker             endpoint tracker
+   * @param connectStats        outbound connection statistics, or
+   *                            <code>null</code> to omit them
+   * @param threadPool          request thread pool, or <code>null</code> to
+   *                            omit pool metrics
+   * @param admissionController admission controller, or <code>null</code> to
+   *                            omit admission metrics
+   */
+  public Metrics(EndpointTracker tracker, ConnectStats connectStats,
+      QueuedThreadPool threadPool, AdmissionController admissionController) {
+    this.tracker = tracker;
+    this.connectStats = connectStats;
+    this.threadPool = threadPool;
+    this.admissionController = admissionController;
+  }
+
+  /**
+   * Gets the metrics for an operation, creating them if required. Operations
+   * must be created before the server is started.
+   *
+   * @param name operation name
+   * @return operation metrics
+   */
+  public synchronized Operation operation(String name) {
+    return operations.computeIfAbsent(name, Operation::new);
+  }
+
+  /**
+   * Records a request which failed authentication.
+   */
+  public void authFailed() {
+    authFailures.increment();
+  }
+
+  /**
+   * Writes all metrics.
+   *
+   * @param out writer
+   */
+  public synchronized void write(PrintWriter out) {
+    header(out, "proxy_request_duration_seconds", "histogram",
+        "Time taken to handle requests, by operation.");
+    for (Operation op : operations.values()) {
+      String labels = "operation=\"" + op.name + "\"";
+      Histogram h = op.latency;
+      long cumulative = 0L;
+      for (int i = 0; i < h.getBucketCount(); i++) {
+        cumulative += h.getCount(i);
+        double bound = h.getUpperBound(i);
+        sample(out, "proxy_request_duration_seconds_bucket",
+            labels + ",le=\"" + (Double.isInfinite(bound) ?
+                "+Inf" :
+                Double.toString(bound)) + "\"", cumulative);
+      }
+      sample(out, "proxy_request_duration_seconds_sum", labels,
+          h.getSumNanos() / 1e9d);
+      sample(out, "proxy_request_duration_seconds_count", labels, cumulative);
+    }
+
+    header(out, "proxy_request_errors_total", "counter",
+        "Requests answered with an error status, by operation.");
+    for (Operation op : operations.values()) {
+      sample(out, "proxy_request_errors_total",
+          "operation=\"" + op.name + "\"", op.errors.sum());
+    }
+
+    header(out, "proxy_auth_failures_total", "counter",
+        "Requests rejected by authentication.");
+    sample(out, "proxy_auth_failures_total", null, authFailures.sum());
+
+    TunnelStats tunnels = tracker.getStats();
+    header(out, "proxy_tunnels_active", "gauge", "Tunnels currently open.");
+    sample(out, "proxy_tunnels_active", null, tracker.getSessionCount());
+    header(out, "proxy_tunnels_opened_total", "counter", "Tunnels opened.");
+    sample(out, "proxy_tunnels_opened_total", null, tunnels.getOpened());
+    header(out, "proxy_tunnels_expired_total", "counter",
+        "Tunnels closed because they were idle.");
+    sample(out, "proxy_tunnels_expired_total", null, tunnels.getExpired());
+    header(out, "proxy_bytes_sent_total", "counter",
+        "Bytes sent from clients to destinations.");
+    sample(out, "proxy_bytes_sent_total", null, tunnels.getBytesSent());
+    header(out, "proxy_bytes_received_total", "counter",
+        "Bytes received from destinations by clients.");
+    sample(out, "proxy_bytes_received_total", null,
+        tunnels.getBytesReceived());
+
+    if (connectStats != null) {
+      ConnectStats.Destination total = connectStats.getTotal();
+      header(out, "proxy_upstream_connects_total", "counter",
+          "Connections made to destinations, by address family.");
+      sample(out, "proxy_upstream_connects_total", "family=\"ipv4\"",
+          total.getIpv4());
+      sample(out, "proxy_upstream_connects_total", "family=\"ipv6\"",
+          total.getIpv6());
+      header(out, "proxy_upstream_connect_failures_total", "counter",
+          "Connections which could not be made to any address.");
+      sample(out, "proxy_upstream_connect_failures_total", null,
+          total.getFailures());
+      header(out, "proxy_upstream_pooled_total", "counter",
+          "Connections taken from a warm pool.");
+      sample(out, "proxy_upstream_pooled_total", null, total.getPooled());
+    }
+
+    if (threadPool != null) {
+      header(out, "jetty_threads", "gauge", "Request threads, by state.");
+      sample(out, "jetty_threads", "state=\"busy\"",
+          threadPool.getBusyThreads());
+      sample(out, "jetty_threads", "state=\"idle\"",
+          threadPool.getIdleThreads());
+      header(out, "jetty_threads_max", "gauge", "Maximum request threads.");
+      sample(out, "jetty_threads_max", null, threadPool.getMaxThreads());
+      header(out, "jetty_queue_size", "gauge",
+          "Jobs waiting for a request thread.");
+      sample(out, "jetty_queue_size", null, threadPool.getQueueSize());
+      header(out, "jetty_low_on_threads", "gauge",
+          "Whether the request thread pool is nearly exhausted.");
+      sample(out, "jetty_low_on_threads", null,
+          threadPool.isLowOnThreads() ? 1 : 0);
+    }
+
+    if (admissionController != null) {
+      header(out, "proxy_thread_pool_utilization", "gauge",
+          "Busy and queued request jobs as a fraction of maximum threads.");
+      sample(out, "proxy_thread_pool_utilization", null,
+          admissionController.getUtilization());
+      header(out, "proxy_admission_in_flight", "gauge",
+          "Admitted requests in flight, by class.");
+      for (OperationClass operationClass : OperationClass.values()) {
+        sample(out, "proxy_admission_in_flight",
+            "class=\"" + operationClass.name().toLowerCase(Locale.US) + "\"",
+            admissionController.getInFlight(operationClass));
+      }
+      header(out, "proxy_admission_shed_total", "counter",
+          "Requests for new tunnels refused because of overload.");
+      sample(out, "proxy_admission_shed_total", null,
+          admissionController.getShed());
+      header(out, "proxy_admission_quota_exceeded_total", "counter",
+          "Tunnels refused because the user's tunnel quota was full.");
+      sample(out, "proxy_admission_quota_exceeded_total", null,
+          admissionController.getQuotaExceeded());
+    }
+  }
+
+  private static void header(PrintWriter out, String name, String type,
+      String help) {
+    out.print("# HELP ");
+    out.print(name);
+    out.print(' ');
+    out.print(help);
+    out.print('\n');
+    out.print("# TYPE ");
+    out.print(name);
+    out.print(' ');
+    out.print(type);
+    out.print('\n');
+  }
+
+  private static void sample(PrintWriter out, String name, String labels,
+      long value) {
+    name(out, name, labels);
+    out.print(value);
+    out.print('\n');
+  }
+
+  private static void sample(PrintWriter out, String name, String labels,
+      double value) {
+    name(out, name, labels);
+    out.print(value);
+    out.print('\n');
+  }
+
+  private static void name(PrintWriter out, String name, String labels) {
+    out.print(name);
+    if (labels != null) {
+      out.print('{');
+      out.print(labels);
+      out.print('}');
+    }
+    out.print(' ');
+  }
+
+  /**
+   * Metrics for a single operation.
+   */
+  public static final class Operation {
+    private final String name;
+    private final Histogram latency = new Histogram();
+    private final LongAdder errors = new LongAdder();
+
+    private Operation(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Records a completed request.
+     *
+     * @param nanos  time taken to handle the request, in nanoseconds
+     * @param status response status
+     */
+    public void record(long nanos, int status) {
+      latency.record(nanos);
+      if (status >= 400) {
+        errors.increment();
+      }
+    }
+  }
+}
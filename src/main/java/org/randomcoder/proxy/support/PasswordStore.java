@@ -0,0 +1,231 @@
+package org.randomcoder.proxy.support;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * User store backed by a password file of <code>user:hash</code> lines. A
+ * line may have a third field holding the user's rate limits, as in
+ * <code>user:hash:send=1048576,receive=1048576</code>; see {@link Limits}.
+ * The file may be watched for changes, in which case it is re-read and swapped in
+ * atomically; readers always see either the old or the new contents, never a
+ * mixture. Reloads run on an executor supplied by the caller rather than on
+ * the timer, since they read the file and notify listeners.
+ */
+public class PasswordStore {
+  /**
+   * Logger instance.
+   */
+  protected static final Logger logger = Logger.getLogger(PasswordStore.class);
+
+  private final File passwdFile;
+  private final CopyOnWriteArrayList<Consumer<Set<String>>> listeners =
+      new CopyOnWriteArrayList<>();
+
+  private volatile Map<String, Entry> userMap;
+  private volatile long lastModified;
+  private volatile long length;
+  private volatile boolean watching = false;
+
+  /**
+   * Creates a new password store.
+   *
+   * @param passwdFile password file
+   * @throws IOException if the file cannot be read
+   */
+  public PasswordStore(File passwdFile) throws IOException {
+    this.passwdFile = passwdFile;
+    load();
+  }
+
+  /**
+   * Gets the password hash for a user.
+   *
+   * @param username user name
+   * @return password hash, or <code>null</code> if the user does not exist
+   */
+  public String getHash(String username) {
+    Entry entry = userMap.get(username);
+    return entry == null ? null : entry.hash;
+  }
+
+  /**
+   * Gets the rate limits given for a user.
+   *
+   * @param username user name
+   * @return limits as written in the password file, or <code>null</code> if
+   * the user does not exist or has no limits
+   */
+  public String getLimits(String username) {
+    Entry entry = userMap.get(username);
+    return entry == null ? null : entry.limits;
+  }
+
+  /**
+   * Registers a listener which is told which users were added, removed or
+   * changed each time the file is reloaded. Listeners are called on the
+   * executor given to {@link #watch(HashedTimerWheel, Executor, long)}.
+   *
+   * @param listener listener to add
+   */
+  public void addChangeListener(Consumer<Set<String>> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Starts watching the password file for changes.
+   *
+   * @param timer    timer used to schedule checks
+   * @param executor executor on which the file is checked and reloaded
+   * @param interval time between checks in milliseconds
+   */
+  public void watch(HashedTimerWheel timer, Executor executor, long interval) {
+    watching = true;
+    schedule(timer, executor, interval);
+  }
+
+  /**
+   * Stops watching the password file.
+   */
+  public void unwatch() {
+    watching = false;
+  }
+
+  private void schedule(HashedTimerWheel timer, Executor executor,
+      long interval) {
+    timer.schedule(() -> {
+      if (!watching) {
+        return;
+      }
+      try {
+        executor.execute(() -> check(timer, executor, interval));
+      } catch (RejectedExecutionException e) {
+        // executor shut down
+        watching = false;
+      }
+    }, interval, TimeUnit.MILLISECONDS);
+  }
+
+  private void check(HashedTimerWheel timer, Executor executor,
+      long interval) {
+    if (!watching) {
+      return;
+    }
+    try {
+      if (passwdFile.lastModified() != lastModified
+          || passwdFile.length() != length) {
+        load();
+      }
+    } catch (IOException e) {
+      logger.warn("Unable to reload " + passwdFile + ", keeping "
+          + userMap.size() + " existing entries", e);
+    } catch (RuntimeException e) {
+      logger.error("Error reloading " + passwdFile, e);
+    }
+    schedule(timer, executor, interval);
+  }
+
+  private void load() throws IOException {
+    long modified = passwdFile.lastModified();
+    long size = passwdFile.length();
+
+    Map<String, Entry> map = new HashMap<String, Entry>();
+
+    FileReader fr = null;
+    BufferedReader br = null;
+    try {
+      fr = new FileReader(passwdFile);
+      br = new BufferedReader(fr);
+      String line = null;
+      while ((line = br.readLine()) != null) {
+        String[] parts = line.split(":");
+        if (parts.length >= 2) {
+          map.put(parts[0],
+              new Entry(parts[1], parts.length >= 3 ? parts[2] : null));
+        }
+      }
+    } finally {
+      if (br != null)
+        try {
+          br.close();
+        } catch (Exception ignored) {
+        }
+      if (fr != null)
+        try {
+          fr.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    Map<String, Entry> previous = userMap;
+    userMap = Collections.unmodifiableMap(map);
+    lastModified = modified;
+    length = size;
+
+    if (previous == null) {
+      logger.info("Initialized user store with " + map.size() + " entries");
+      return;
+    }
+
+    Set<String> changed = new HashSet<String>();
+    for (Map.Entry<String, Entry> entry : previous.entrySet()) {
+      if (!entry.getValue().equals(map.get(entry.getKey()))) {
+        changed.add(entry.getKey());
+      }
+    }
+    for (String user : map.keySet()) {
+      if (!previous.containsKey(user)) {
+        changed.add(user);
+      }
+    }
+
+    logger.info("Reloaded user store with " + map.size() + " entries, "
+        + changed.size() + " changed");
+
+    if (!changed.isEmpty()) {
+      for (Consumer<Set<String>> listener : listeners) {
+        listener.accept(changed);
+      }
+    }
+  }
+
+  /**
+   * A single line of the password file.
+   */
+  private static final class Entry {
+    private final String hash;
+    private final String limits;
+
+    private Entry(String hash, String limits) {
+      this.hash = hash;
+      this.limits = limits;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry other = (Entry) o;
+      return hash.equals(other.hash) && Objects.equals(limits, other.limits);
+    }
+
+    @Override public int hashCode() {
+      return Objects.hash(hash, limits);
+    }
+  }
+}
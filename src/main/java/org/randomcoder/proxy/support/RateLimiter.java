@@ -0,0 +1,301 @@
+package org.randomcoder.proxy.support;
+
+import org.apache.log4j.Logger;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-user and per-tunnel rate limits. Each user has token buckets for the
+ * bytes sent and received by all of their tunnels and for the requests they
+ * make, and each tunnel has its own buckets for the bytes it sends and
+ * receives. Limits are read from the password file, falling back to the
+ * defaults, and follow the file as it is reloaded.
+ * <p>
+ * Traffic is shaped rather than refused: copy loops record each chunk and are
+ * then told how long to pause before the next, so a user moving bulk data is
+ * slowed down without disturbing anyone else's tunnels. Requests beyond the
+ * request rate are refused instead, since holding them would tie up request
+ * threads.
+ */
+public class RateLimiter {
+  /**
+   * Logger instance.
+   */
+  protected static final Logger logger = Logger.getLogger(RateLimiter.class);
+
+  private final PasswordStore passwordStore;
+  private final Limits defaults;
+  private final HashedTimerWheel timer;
+  private final ConcurrentHashMap<String, User> users =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new rate limiter.
+   *
+   * @param passwordStore store from which each user's limits are read
+   * @param defaults      limits for users which have none of their own
+   * @param timer         timer used to resume paused transfers
+   */
+  public RateLimiter(PasswordStore passwordStore, Limits defaults,
+      HashedTimerWheel timer) {
+    this.passwordStore = passwordStore;
+    this.defaults = defaults;
+    this.timer = timer;
+    passwordStore.addChangeListener(this::reload);
+  }
+
+  /**
+   * Creates the limits for a new tunnel.
+   *
+   * @param user user which owns the tunnel
+   * @return tunnel limits
+   */
+  public Tunnel forTunnel(String user) {
+    return new Tunnel(user(user));
+  }
+
+  /**
+   * Gets the limits currently applied to a user.
+   *
+   * @param user user name
+   * @return limits
+   */
+  public Limits getLimits(String user) {
+    return user(user).limits;
+  }
+
+  /**
+   * Records a request, unless the user has exceeded their request rate.
+   *
+   * @param user user making the request
+   * @return 0 if the request may proceed, otherwise the time in nanoseconds
+   * until the user may make another request
+   */
+  public long acquireRequest(String user) {
+    return user(user).requests.tryAcquire(1L);
+  }
+
+  /**
+   * Gets the limits and current rates of every user which has been active
+   * since startup, ordered by name.
+   *
+   * @return users
+   */
+  public List<User> getUsers() {
+    List<User> result = new ArrayList<>(users.values());
+    result.sort(Comparator.comparing(User::getName));
+    return result;
+  }
+
+  private User user(String name) {
+    if (name == null) {
+      // requests which were not authenticated share a single set of limits
+      name = "";
+    }
+    User user = users.get(name);
+    return user != null ?
+        user :
+        users.computeIfAbsent(name, n -> new User(n, limits(n)));
+  }
+
+  private Limits limits(String user) {
+    String spec = passwordStore.getLimits(user);
+    try {
+      return Limits.parse(spec, defaults);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Ignoring invalid limits for " + user + ": " + e
+          .getMessage());
+      return defaults;
+    }
+  }
+
+  private void reload(Set<String> changed) {
+    for (String name : changed) {
+      User user = users.get(name);
+      if (user != null) {
+        user.setLimits(limits(name));
+      }
+    }
+  }
+
+  /**
+   * Token buckets shared by all of a user's tunnels and requests.
+   */
+  public static final class User {
+    private final String name;
+    private final TokenBucket send;
+    private final TokenBucket receive;
+    private final TokenBucket requests;
+    private volatile Limits limits;
+
+    private User(String name, Limits limits) {
+      this.name = name;
+      this.limits = limits;
+      this.send = new TokenBucket(limits.getSend());
+      this.receive = new TokenBucket(limits.getReceive());
+      this.requests = new TokenBucket(limits.getRequests());
+    }
+
+    private void setLimits(Limits limits) {
+      send.setRate(limits.getSend());
+      receive.setRate(limits.getReceive());
+      requests.setRate(limits.getRequests());
+      this.limits = limits;
+    }
+
+    /**
+     * Gets the user name.
+     *
+     * @return user name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Gets the limits currently applied to this user.
+     *
+     * @return limits
+     */
+    public Limits getLimits() {
+      return limits;
+    }
+
+    /**
+     * Gets the bucket for bytes sent by all of this user's tunnels.
+     *
+     * @return token bucket
+     */
+    public TokenBucket getSend() {
+      return send;
+    }
+
+    /**
+     * Gets the bucket for bytes received by all of this user's tunnels.
+     *
+     * @return token bucket
+     */
+    public TokenBucket getReceive() {
+      return receive;
+    }
+
+    /**
+     * Gets the bucket for this user's requests.
+     *
+     * @return token bucket
+     */
+    public TokenBucket getRequests() {
+      return requests;
+    }
+  }
+
+  /**
+   * Token buckets for a single tunnel. Bytes recorded against a tunnel are
+   * also recorded against its user, and the longer of the two pauses
+   * applies.
+   */
+  public final class Tunnel {
+    private final User user;
+    private final TokenBucket send;
+    private final TokenBucket receive;
+    private volatile Limits limits;
+
+    private Tunnel(User user) {
+      this.user = user;
+      this.limits = user.limits;
+      this.send = new TokenBucket(limits.getTunnelSend());
+      this.receive = new TokenBucket(limits.getTunnelReceive());
+    }
+
+    /**
+     * Records bytes sent by this tunnel.
+     *
+     * @param count number of bytes
+     * @return time in nanoseconds to pause before sending more, or 0
+     */
+    public long send(long count) {
+      update();
+      return Math.max(user.send.reserve(count), send.reserve(count));
+    }
+
+    /**
+     * Records bytes received by this tunnel.
+     *
+     * @param count number of bytes
+     * @return time in nanoseconds to pause before receiving more, or 0
+     */
+    public long receive(long count) {
+      update();
+      return Math.max(user.receive.reserve(count), receive.reserve(count));
+    }
+
+    /**
+     * Pauses the calling thread.
+     *
+     * @param nanos time to pause in nanoseconds, as returned by
+     *              {@link #send(long)} or {@link #receive(long)}
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    public void pause(long nanos) throws InterruptedIOException {
+      if (nanos <= 0L) {
+        return;
+      }
+      try {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while paused");
+      }
+    }
+
+    /**
+     * Runs a task once a pause has elapsed. The task runs on the timer thread,
+     * so must not block.
+     *
+     * @param task  task to run
+     * @param nanos time to pause in nanoseconds, as returned by
+     *              {@link #send(long)} or {@link #receive(long)}
+     */
+    public void resume(Runnable task, long nanos) {
+      timer.schedule(task, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the bucket for bytes sent by this tunnel.
+     *
+     * @return token bucket
+     */
+    public TokenBucket getSend() {
+      return send;
+    }
+
+    /**
+     * Gets the bucket for bytes received by this tunnel.
+     *
+     * @return token bucket
+     */
+    public TokenBucket getReceive() {
+      return receive;
+    }
+
+    private void update() {
+      // follows the user's limits as the password file is reloaded
+      Limits current = user.limits;
+      if (current != limits) {
+        synchronized (this) {
+          if (current != limits) {
+            send.setRate(current.getTunnelSend());
+            receive.setRate(current.getTunnelReceive());
+            limits = current;
+          }
+        }
+      }
+    }
+  }
+}
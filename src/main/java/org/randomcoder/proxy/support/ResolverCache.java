@@ -0,0 +1,223 @@
+package org.randomcoder.proxy.support;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous host name resolver with a cache of both successful and failed
+ * lookups. Lookups block, so they are performed on a separate executor, and
+ * concurrent requests for the same name share a single lookup. Callers are
+ * told of a failure once the resolve timeout elapses even if the lookup
+ * itself has not yet given up; its eventual result is still cached.
+ */
+public class ResolverCache {
+  private static final int MAX_ENTRIES = 10000;
+
+  private final Executor executor;
+  private final HashedTimerWheel timer;
+  private final long timeout;
+  private final long ttlNanos;
+  private final long negativeTtlNanos;
+  private final ConcurrentHashMap<String, Entry> cache =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CompletableFuture<InetAddress[]>>
+      lookups = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Creates a new resolver cache.
+   *
+   * @param executor    executor used to perform lookups
+   * @param timer       timer used to enforce the resolve timeout
+   * @param timeout     resolve timeout in milliseconds
+   * @param ttl         time a successful lookup is cached, in milliseconds
+   * @param negativeTtl time a failed lookup is cached, in milliseconds
+   */
+  public ResolverCache(Executor executor, HashedTimerWheel timer,
+      long timeout, long ttl, long negativeTtl) {
+    this.executor = executor;
+    this.timer = timer;
+    this.timeout = timeout;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+    this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+  }
+
+  /**
+   * Resolves a host name. The returned future may be completed on the
+   * calling thread, a lookup thread or the timer thread.
+   *
+   * @param host host name or address literal
+   * @return future completed with the host's addresses, or exceptionally with
+   * an {@link UnknownHostException} if the name cannot be resolved in time,
+   * or a {@link RejectedExecutionException} if no lookup could be started
+   */
+  public CompletableFuture<InetAddress[]> resolve(String host) {
+    String literal = literal(host);
+    if (literal != null) {
+      // no lookup is performed for address literals
+      try {
+        return CompletableFuture
+            .completedFuture(InetAddress.getAllByName(literal));
+      } catch (UnknownHostException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    }
+
+    Entry entry = cache.get(host);
+    if (entry != null && entry.expires - System.nanoTime() > 0L) {
+      hits.increment();
+      return entry.failure == null ?
+          CompletableFuture.completedFuture(entry.addresses) :
+          CompletableFuture.failedFuture(entry.failure);
+    }
+    misses.increment();
+
+    CompletableFuture<InetAddress[]> created = new CompletableFuture<>();
+    CompletableFuture<InetAddress[]> lookup =
+        lookups.putIfAbsent(host, created);
+    if (lookup == null) {
+      lookup = created;
+      lookup(host, created);
+    }
+
+    CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+    HashedTimerWheel.Timeout t = timer.schedule(() -> result
+            .completeExceptionally(
+                new UnknownHostException(host + ": lookup timed out")),
+        timeout, TimeUnit.MILLISECONDS);
+    lookup.whenComplete((addresses, e) -> {
+      t.cancel();
+      if (e == null) {
+        result.complete(addresses);
+      } else {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+
+  private void lookup(String host, CompletableFuture<InetAddress[]> lookup) {
+    try {
+      executor.execute(() -> {
+        try {
+          InetAddress[] addresses = InetAddress.getAllByName(host);
+          store(host, new Entry(addresses, null, ttlNanos));
+          lookups.remove(host, lookup);
+          lookup.complete(addresses);
+        } catch (UnknownHostException e) {
+          store(host, new Entry(null, e, negativeTtlNanos));
+          lookups.remove(host, lookup);
+          lookup.completeExceptionally(e);
+        } catch (Throwable t) {
+          lookups.remove(host, lookup);
+          lookup.completeExceptionally(t);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // nothing is stored, so the next request tries again
+      lookups.remove(host, lookup);
+      lookup.completeExceptionally(
+          new RejectedExecutionException("Too many pending lookups", e));
+    }
+  }
+
+  private void store(String host, Entry entry) {
+    if (cache.size() >= MAX_ENTRIES) {
+      long now = System.nanoTime();
+      cache.values().removeIf(e -> e.expires - now <= 0L);
+      if (cache.size() >= MAX_ENTRIES) {
+        return;
+      }
+    }
+    cache.put(host, entry);
+  }
+
+  /**
+   * Gets the form of an address literal which {@link InetAddress} parses
+   * without performing a lookup. Anything else is a name, and must be looked
+   * up through the cache.
+   *
+   * @param host host name or address literal
+   * @return address literal, or <code>null</code> if the host is a name
+   */
+  private static String literal(String host) {
+    if (isDottedQuad(host)) {
+      return host;
+    }
+    String address = host;
+    if (host.length() > 2 && host.charAt(0) == '['
+        && host.charAt(host.length() - 1) == ']') {
+      address = host.substring(1, host.length() - 1);
+    }
+    if (address.indexOf(':') < 0) {
+      return null;
+    }
+    // InetAddress rejects a malformed address in brackets, where it would
+    // otherwise look it up as a name
+    return "[" + address + "]";
+  }
+
+  private static boolean isDottedQuad(String host) {
+    int parts = 0;
+    int value = -1;
+    for (int i = 0; i <= host.length(); i++) {
+      char c = i < host.length() ? host.charAt(i) : '.';
+      if (c == '.') {
+        if (value < 0 || ++parts > 4) {
+          return false;
+        }
+        value = -1;
+      } else if (c >= '0' && c <= '9') {
+        if (value == 0) {
+          // leading zeros are ambiguous, and rejected by InetAddress
+          return false;
+        }
+        value = (value < 0 ? 0 : value * 10) + (c - '0');
+        if (value > 255) {
+          return false;
+        }
+      } else {
+        return false;
+      }
+    }
+    return parts == 4;
+  }
+
+  /**
+   * Gets the number of lookups answered from the cache.
+   *
+   * @return hit count
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Gets the number of lookups which required resolving the name.
+   *
+   * @return miss count
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  private static final class Entry {
+    private final InetAddress[] addresses;
+    private final UnknownHostException failure;
+    private final long expires;
+
+    private Entry(InetAddress[] addresses, UnknownHostException failure,
+        long ttlNanos) {
+      this.addresses = addresses;
+      this.failure = failure;
+      this.expires = System.nanoTime() + ttlNanos;
+    }
+  }
+}
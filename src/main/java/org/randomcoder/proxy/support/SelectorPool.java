@@ -0,0 +1,170 @@
+package org.randomcoder.proxy.support;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small, fixed pool of selector threads shared by all {@link ChannelEndpoint}
+ * instances. Each endpoint is bound to a single selector for its lifetime, and
+ * all changes to its registration are made on that selector's thread.
+ */
+public class SelectorPool {
+  /**
+   * Logger instance.
+   */
+  protected static final Logger logger = Logger.getLogger(SelectorPool.class);
+
+  private final SelectorThread[] threads;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Creates and starts a new selector pool.
+   *
+   * @param size number of selector threads
+   * @throws IOException if a selector cannot be opened
+   */
+  public SelectorPool(int size) throws IOException {
+    threads = new SelectorThread[size];
+    for (int i = 0; i < size; i++) {
+      threads[i] = new SelectorThread("Endpoint selector " + (i + 1));
+    }
+    for (SelectorThread thread : threads) {
+      thread.start();
+    }
+    logger.info("Selector pool initialized with " + size + " threads");
+  }
+
+  /**
+   * Destroys the pool.
+   */
+  public void destroy() {
+    for (SelectorThread thread : threads) {
+      thread.shutdown();
+    }
+    for (SelectorThread thread : threads) {
+      try {
+        thread.join(30000L);
+      } catch (InterruptedException ignored) {
+      }
+    }
+    logger.info("Selector pool shutdown");
+  }
+
+  /**
+   * Chooses a selector for a new channel.
+   *
+   * @return selector
+   */
+  SelectorThread choose() {
+    return threads[Math.floorMod(next.getAndIncrement(), threads.length)];
+  }
+
+  /**
+   * Receives readiness notifications for a registered channel.
+   */
+  interface Selectable {
+    /**
+     * Called on the selector thread when the channel is ready.
+     *
+     * @param key selection key
+     */
+    void ready(SelectionKey key);
+  }
+
+  /**
+   * Thread which owns a single selector.
+   */
+  static final class SelectorThread extends Thread {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+        new ConcurrentLinkedQueue<>();
+    private volatile boolean shutdown = false;
+
+    private SelectorThread(String name) throws IOException {
+      super(name);
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    /**
+     * Gets the selector owned by this thread.
+     *
+     * @return selector
+     */
+    Selector selector() {
+      return selector;
+    }
+
+    /**
+     * Runs a task on this selector's thread. Tasks submitted from the
+     * selector thread itself run immediately.
+     *
+     * @param task task to run
+     */
+    void execute(Runnable task) {
+      if (Thread.currentThread() == this) {
+        task.run();
+        return;
+      }
+      tasks.offer(task);
+      selector.wakeup();
+    }
+
+    @Override public void run() {
+      while (!shutdown) {
+        try {
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            runSafely(task);
+          }
+
+          selector.select();
+
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Selectable selectable = (Selectable) key.attachment();
+            try {
+              selectable.ready(key);
+            } catch (Throwable t) {
+              logger.error("Caught exception", t);
+            }
+          }
+        } catch (ClosedSelectorException e) {
+          break;
+        } catch (Throwable t) {
+          // defensive catch to avoid thread death
+          logger.error("Caught exception", t);
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+      }
+    }
+
+    private void runSafely(Runnable task) {
+      try {
+        task.run();
+      } catch (Throwable t) {
+        logger.error("Caught exception", t);
+      }
+    }
+
+    /**
+     * Requests that this thread be shutdown.
+     */
+    void shutdown() {
+      shutdown = true;
+      selector.wakeup();
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package org.randomcoder.proxy.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Reorder buffer for sequence-numbered sends to a single endpoint. Clients
+ * number their sends from zero and may have several in flight at once; each
+ * send is held until every send before it has been written, so that data
+ * reaches the endpoint in sequence order regardless of the order in which
+ * requests complete.
+ * <p>
+ * Only sends numbered within a fixed window of the next expected send are
+ * accepted, and the total number of bytes held is bounded. A send whose
+ * number has already been accepted is a duplicate and is discarded. A gap is
+ * never skipped: sends after a missing one are held until it arrives, or
+ * until the session ends and the held data is discarded with it.
+ * <p>
+ * Compressed sends are decompressed as they are written, so that the
+ * tunnel's deflate stream is consumed in sequence order too.
+ */
+public class SendSequencer {
+  /**
+   * Outcome of submitting a send.
+   */
+  public enum Result {
+    /**
+     * The send was accepted, and has been written or will be once all earlier
+     * sends have been.
+     */
+    ACCEPTED,
+
+    /**
+     * A send with the same number was already accepted; the data was
+     * discarded.
+     */
+    DUPLICATE,
+
+    /**
+     * The send number is too far ahead of the next expected send.
+     */
+    OUT_OF_WINDOW,
+
+    /**
+     * Accepting the send would exceed the maximum number of bytes held.
+     */
+    FULL
+  }
+
+  private final OutputStream out;
+  private final Compression compression;
+  private final int window;
+  private final int maxBytes;
+  private final byte[][] slots;
+  private final boolean[] compressed;
+
+  // all remaining state is guarded by this
+  private long next = 0L;
+  private int held = 0;
+  private boolean writing = false;
+  private IOException failure = null;
+
+  /**
+   * Creates a new send sequencer.
+   *
+   * @param out         stream to write ordered data to
+   * @param compression compression context used to decompress compressed
+   *                    sends, or <code>null</code> if not negotiated
+   * @param window      number of sends which may be held ahead of the next
+   *                    expected send
+   * @param maxBytes    maximum number of bytes which may be held
+   */
+  public SendSequencer(OutputStream out, Compression compression, int window,
+      int maxBytes) {
+    this.out = out;
+    this.compression = compression;
+    this.window = window;
+    this.maxBytes = maxBytes;
+    this.slots = new byte[window][];
+    this.compressed = new boolean[window];
+  }
+
+  /**
+   * Gets the maximum number of bytes a single send may contain.
+   *
+   * @return maximum send size in bytes
+   */
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Submits a send. If it is the next expected send, it is written on the
+   * calling thread along with any held sends which follow it; otherwise it is
+   * held. The caller must not modify the data afterward.
+   *
+   * @param sequence send number
+   * @param data     data to send
+   * @param deflated whether the data is compressed; may only be set if a
+   *                 compression context was supplied
+   * @return result
+   * @throws IOException if writing to the endpoint failed, now or earlier
+   */
+  public Result submit(long sequence, byte[] data, boolean deflated)
+      throws IOException {
+    synchronized (this) {
+      if (failure != null) {
+        throw failure;
+      }
+      // the window must be checked first: a send a whole window ahead maps
+      // to the same slot as one which is already held
+      if (sequence >= next + window) {
+        return Result.OUT_OF_WINDOW;
+      }
+      if (sequence < next || slots[(int) (sequence % window)] != null) {
+        return Result.DUPLICATE;
+      }
+      if (held + data.length > maxBytes) {
+        return Result.FULL;
+      }
+      slots[(int) (sequence % window)] = data;
+      compressed[(int) (sequence % window)] = deflated;
+      held += data.length;
+      if (writing) {
+        return Result.ACCEPTED;
+      }
+      writing = true;
+    }
+
+    // write sends in order for as long as the next one is present
+    while (true) {
+      byte[] chunk;
+      boolean inflate;
+      synchronized (this) {
+        int slot = (int) (next % window);
+        chunk = slots[slot];
+        if (chunk == null) {
+          writing = false;
+          return Result.ACCEPTED;
+        }
+        inflate = compressed[slot];
+        slots[slot] = null;
+        held -= chunk.length;
+        next++;
+      }
+      try {
+        if (inflate) {
+          compression.inflate(chunk, 0, chunk.length, out);
+        } else {
+          out.write(chunk);
+        }
+        out.flush();
+      } catch (IOException e) {
+        synchronized (this) {
+          failure = e;
+          writing = false;
+          for (int i = 0; i < window; i++) {
+            slots[i] = null;
+          }
+          held = 0;
+        }
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Gets the number of the next send to be written.
+   *
+   * @return next expected send number
+   */
+  public synchronized long getNext() {
+    return next;
+  }
+
+  /**
+   * Gets the number of bytes currently held waiting for earlier sends.
+   *
+   * @return held byte count
+   */
+  public synchronized int getHeld() {
+    return held;
+  }
+}
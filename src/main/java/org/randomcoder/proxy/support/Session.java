@@ -0,0 +1,291 @@
+package org.randomcoder.proxy.support;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State for a single tunneled connection: the endpoint, its owner and
+ * destination, its expiration deadline and traffic counters. Instances are
+ * created and retired by {@link EndpointTracker}.
+ */
+public class Session {
+  private final String id;
+  private final Endpoint endpoint;
+  private final String owner;
+  private final String destination;
+  private final long created;
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final long maxIdleNanos;
+  private final TunnelStats stats;
+
+  private volatile long deadline;
+  private volatile boolean closed = false;
+  private volatile Compression compression;
+  private volatile RateLimiter.Tunnel limiter;
+  private volatile AdmissionController.Permit permit;
+  private volatile String description;
+  private SendSequencer sequencer;
+
+  /**
+   * Handle for the pending expiration check. Only used by the tracker.
+   */
+  volatile HashedTimerWheel.Timeout timeout;
+
+  /**
+   * Creates a new session.
+   *
+   * @param id           unique identifier
+   * @param endpoint     endpoint
+   * @param owner        user which created the session
+   * @param destination  destination the endpoint is connected to
+   * @param maxIdleNanos maximum idle time in nanoseconds
+   * @param stats        counters shared by all sessions
+   */
+  Session(String id, Endpoint endpoint, String owner, String destination,
+      long maxIdleNanos, TunnelStats stats) {
+    this.id = id;
+    this.endpoint = endpoint;
+    this.owner = owner;
+    this.destination = destination;
+    this.maxIdleNanos = maxIdleNanos;
+    this.stats = stats;
+    this.created = System.currentTimeMillis();
+    this.deadline = System.nanoTime() + maxIdleNanos;
+  }
+
+  /**
+   * Gets the unique identifier of this session.
+   *
+   * @return session id
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Gets the endpoint.
+   *
+   * @return endpoint
+   */
+  public Endpoint getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * Gets the user which created this session.
+   *
+   * @return owner, or <code>null</code> if unknown
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * Gets the destination this session is connected to.
+   *
+   * @return destination as <code>host:port</code>, or <code>null</code> if
+   * unknown
+   */
+  public String getDestination() {
+    return destination;
+  }
+
+  /**
+   * Gets a description of this session's endpoint. The description is built
+   * the first time it is requested and then kept, so it stays the same once
+   * the endpoint has been closed.
+   *
+   * @return description
+   */
+  public String getDescription() {
+    String result = description;
+    if (result == null) {
+      result = String.valueOf(endpoint);
+      description = result;
+    }
+    return result;
+  }
+
+  /**
+   * Gets the time this session was created.
+   *
+   * @return creation time in milliseconds since the epoch
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * Gets the expiration deadline.
+   *
+   * @return deadline in terms of {@link System#nanoTime()}
+   */
+  public long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * Gets the expiration time as wall-clock time (for display).
+   *
+   * @return expiration time in milliseconds since the epoch
+   */
+  public long getExpiration() {
+    return System.currentTimeMillis() + (deadline - System.nanoTime())
+        / 1000000L;
+  }
+
+  /**
+   * Determines whether this session has been closed.
+   *
+   * @return <code>true</code> if closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Refreshes this session's deadline, typically in response to activity or a
+   * keep-alive request. Performs a single store and never allocates.
+   *
+   * @return <code>true</code> if the session is still active
+   */
+  public boolean refresh() {
+    deadline = System.nanoTime() + maxIdleNanos;
+    return !closed;
+  }
+
+  /**
+   * Records bytes sent from the client to the endpoint.
+   *
+   * @param count number of bytes
+   */
+  public void addBytesSent(long count) {
+    bytesSent.addAndGet(count);
+    stats.bytesSent(count);
+  }
+
+  /**
+   * Records bytes received from the endpoint by the client.
+   *
+   * @param count number of bytes
+   */
+  public void addBytesReceived(long count) {
+    bytesReceived.addAndGet(count);
+    stats.bytesReceived(count);
+  }
+
+  /**
+   * Gets the number of bytes sent from the client to the endpoint.
+   *
+   * @return byte count
+   */
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /**
+   * Gets the number of bytes received from the endpoint by the client.
+   *
+   * @return byte count
+   */
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Gets the compression context negotiated for this session.
+   *
+   * @return compression context, or <code>null</code> if data is not
+   * compressed
+   */
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Sets the compression context for this session. Must be called before the
+   * session is used to send or receive data; the context is closed along
+   * with the session.
+   *
+   * @param compression compression context
+   */
+  public void setCompression(Compression compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Gets the rate limits applied to this session's traffic.
+   *
+   * @return tunnel limits, or <code>null</code> if traffic is not limited
+   */
+  public RateLimiter.Tunnel getLimiter() {
+    return limiter;
+  }
+
+  /**
+   * Sets the rate limits applied to this session's traffic. Must be called
+   * before the session is used to send or receive data.
+   *
+   * @param limiter tunnel limits
+   */
+  public void setLimiter(RateLimiter.Tunnel limiter) {
+    this.limiter = limiter;
+  }
+
+  /**
+   * Gets the place this session holds in its owner's tunnel quota.
+   *
+   * @return permit, or <code>null</code> if quotas are not enforced
+   */
+  public AdmissionController.Permit getPermit() {
+    return permit;
+  }
+
+  /**
+   * Sets the place this session holds in its owner's tunnel quota. The permit
+   * is released along with the session.
+   *
+   * @param permit permit
+   */
+  public void setPermit(AdmissionController.Permit permit) {
+    this.permit = permit;
+  }
+
+  /**
+   * Gets the reorder buffer for sequence-numbered sends, creating it on first
+   * use. Held data is discarded along with the session.
+   *
+   * @param window   number of sends which may be held ahead of the next
+   *                 expected send
+   * @param maxBytes maximum number of bytes which may be held
+   * @return send sequencer
+   * @throws IOException if the endpoint's output stream is unavailable
+   */
+  public synchronized SendSequencer getSendSequencer(int window, int maxBytes)
+      throws IOException {
+    if (sequencer == null) {
+      sequencer =
+          new SendSequencer(endpoint.getOutputStream(), compression, window,
+              maxBytes);
+    }
+    return sequencer;
+  }
+
+  /**
+   * Marks this session closed.
+   *
+   * @return <code>true</code> if this call closed the session
+   */
+  synchronized boolean markClosed() {
+    if (closed) {
+      return false;
+    }
+    closed = true;
+    return true;
+  }
+
+  @Override public String toString() {
+    return String.valueOf(endpoint);
+  }
+}
@@ -3,15 +3,20 @@ package org.randomcoder.proxy.support;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 /**
  * Endpoint implementation that wraps a socket connection.
  */
 public class SocketEndpoint implements Endpoint {
+  private static final int PROBE_SIZE = 4096;
+
   private final Socket socket;
-  private final InputStream input;
+  private final PushbackInputStream input;
   private final OutputStream output;
+  private final byte[] probe = new byte[PROBE_SIZE];
 
   /**
    * Creates a new socket endpoint.
@@ -21,8 +26,18 @@ public class SocketEndpoint implements Endpoint {
    * @throws IOException if an I/O error occurs
    */
   public SocketEndpoint(String host, int port) throws IOException {
-    socket = new Socket(host, port);
-    input = socket.getInputStream();
+    this(new Socket(host, port));
+  }
+
+  /**
+   * Creates a new socket endpoint from a connected socket.
+   *
+   * @param socket connected socket
+   * @throws IOException if an I/O error occurs
+   */
+  public SocketEndpoint(Socket socket) throws IOException {
+    this.socket = socket;
+    input = new PushbackInputStream(socket.getInputStream(), PROBE_SIZE);
     output = socket.getOutputStream();
   }
 
@@ -34,6 +49,46 @@ public class SocketEndpoint implements Endpoint {
     return output;
   }
 
+  @Override public boolean isConnected() {
+    if (isClosed()) {
+      return false;
+    }
+    // end of stream can only be seen by reading, so read whatever has
+    // arrived with the shortest timeout and push it back
+    byte[] buf = probe;
+    int n = 0;
+    try {
+      int timeout = socket.getSoTimeout();
+      socket.setSoTimeout(1);
+      try {
+        while (n < buf.length) {
+          // bytes already pushed back would be lost if the read timed out
+          // after taking them, so only wait once they have been taken
+          int available = input.available();
+          int c = input.read(buf, n, available > 0 ?
+              Math.min(available, buf.length - n) :
+              buf.length - n);
+          if (c < 0) {
+            return false;
+          }
+          n += c;
+        }
+        return true;
+      } catch (SocketTimeoutException e) {
+        return true;
+      } finally {
+        input.unread(buf, 0, n);
+        socket.setSoTimeout(timeout);
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override public boolean isClosed() {
+    return socket.isClosed() || socket.isInputShutdown();
+  }
+
   @Override public void close() {
     try {
       input.close();
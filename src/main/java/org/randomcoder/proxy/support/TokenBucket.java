@@ -0,0 +1,125 @@
+package org.randomcoder.proxy.support;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket which paces a flow to a fixed rate, allowing bursts of up to
+ * one second's worth of tokens. A bucket with a rate of zero is unlimited.
+ * <p>
+ * Tokens may be reserved ahead of time: a reservation always succeeds, and
+ * leaves the bucket in debt if it holds too few tokens, in which case the
+ * caller is told how long to wait before continuing. Callers sharing a bucket
+ * therefore queue up behind each other's debt, and together never exceed the
+ * rate over any period longer than the burst.
+ * <p>
+ * The bucket also measures the rate at which tokens are actually taken, over
+ * windows of one second.
+ */
+public class TokenBucket {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+  // all state is guarded by this
+  private long rate;
+  private double tokens;
+  private long refilled;
+  private long windowStart;
+  private long windowCount = 0L;
+  private double measured = 0.0d;
+
+  /**
+   * Creates a new token bucket, initially full.
+   *
+   * @param rate tokens per second, or 0 for no limit
+   */
+  public TokenBucket(long rate) {
+    this.rate = rate;
+    this.tokens = rate;
+    this.refilled = System.nanoTime();
+    this.windowStart = refilled;
+  }
+
+  /**
+   * Gets the rate of this bucket.
+   *
+   * @return tokens per second, or 0 if unlimited
+   */
+  public synchronized long getRate() {
+    return rate;
+  }
+
+  /**
+   * Sets the rate of this bucket. Tokens already held are kept, up to the new
+   * burst size.
+   *
+   * @param rate tokens per second, or 0 for no limit
+   */
+  public synchronized void setRate(long rate) {
+    refill(System.nanoTime());
+    this.rate = rate;
+    tokens = Math.min(tokens, rate);
+  }
+
+  /**
+   * Takes tokens from the bucket, going into debt if there are too few.
+   *
+   * @param count number of tokens
+   * @return time in nanoseconds the caller should wait before using the
+   * tokens, or 0 if they may be used immediately
+   */
+  public synchronized long reserve(long count) {
+    long now = System.nanoTime();
+    count(now, count);
+    if (rate <= 0L) {
+      return 0L;
+    }
+    refill(now);
+    tokens -= count;
+    return tokens >= 0.0d ? 0L : (long) Math.ceil(-tokens * SECOND / rate);
+  }
+
+  /**
+   * Takes tokens from the bucket only if it holds enough of them.
+   *
+   * @param count number of tokens
+   * @return 0 if the tokens were taken, otherwise the time in nanoseconds
+   * until enough tokens will be available
+   */
+  public synchronized long tryAcquire(long count) {
+    long now = System.nanoTime();
+    if (rate > 0L) {
+      refill(now);
+      if (tokens < count) {
+        return (long) Math.ceil((count - tokens) * SECOND / rate);
+      }
+      tokens -= count;
+    }
+    count(now, count);
+    return 0L;
+  }
+
+  /**
+   * Gets the rate at which tokens were taken during the last complete
+   * measurement window.
+   *
+   * @return tokens per second
+   */
+  public synchronized double getCurrentRate() {
+    count(System.nanoTime(), 0L);
+    return measured;
+  }
+
+  private void refill(long now) {
+    tokens = Math.min(rate, tokens + (double) (now - refilled) * rate / SECOND);
+    refilled = now;
+  }
+
+  private void count(long now, long count) {
+    long elapsed = now - windowStart;
+    if (elapsed >= SECOND) {
+      measured = (double) windowCount * SECOND / elapsed;
+      windowStart = now;
+      windowCount = 0L;
+    }
+    windowCount += count;
+  }
+}
@@ -0,0 +1,129 @@
+package org.randomcoder.proxy.support;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Issues and verifies short-lived, HMAC-signed bearer tokens. A token has the
+ * form <code>user.expiry.signature</code>, where the user name and signature
+ * are URL-safe base64 and the expiry is in milliseconds since the epoch.
+ * Verifying a token costs a single HMAC and a constant-time comparison.
+ * <p>
+ * The signature also covers the user's password hash at the time the token
+ * was issued, although the hash is not part of the token. A token therefore
+ * stops verifying as soon as the user's password is changed or the user is
+ * removed.
+ * <p>
+ * The signing key is generated randomly at startup, so tokens do not survive
+ * a restart; clients are expected to fall back to BASIC authentication and
+ * request a new token.
+ */
+public class TokenService {
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private final SecretKeySpec key;
+  private final long ttl;
+  private final PasswordStore store;
+  private final ThreadLocal<Mac> mac;
+
+  /**
+   * Creates a new token service with a random key.
+   *
+   * @param ttl   lifetime of issued tokens in milliseconds
+   * @param store store from which users' password hashes are read
+   */
+  public TokenService(long ttl, PasswordStore store) {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    this.key = new SecretKeySpec(secret, ALGORITHM);
+    this.ttl = ttl;
+    this.store = store;
+    this.mac = ThreadLocal.withInitial(this::newMac);
+  }
+
+  /**
+   * Issues a token for a user.
+   *
+   * @param user user name
+   * @return token, or <code>null</code> if the user does not exist
+   */
+  public String issue(String user) {
+    String hash = store.getHash(user);
+    if (hash == null) {
+      return null;
+    }
+    String payload = Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(user.getBytes(StandardCharsets.UTF_8)) + "." + (
+        System.currentTimeMillis() + ttl);
+    return payload + "." + Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(sign(payload, hash));
+  }
+
+  /**
+   * Verifies a token.
+   *
+   * @param token token to verify
+   * @return user name, or <code>null</code> if the token is invalid or
+   * expired, or the user's password has changed since it was issued
+   */
+  public String verify(String token) {
+    int sig = token.lastIndexOf('.');
+    if (sig < 0) {
+      return null;
+    }
+    int exp = token.lastIndexOf('.', sig - 1);
+    if (exp < 0) {
+      return null;
+    }
+
+    String payload = token.substring(0, sig);
+    String user;
+    byte[] signature;
+    try {
+      user = new String(Base64.getUrlDecoder().decode(token.substring(0, exp)),
+          StandardCharsets.UTF_8);
+      signature = Base64.getUrlDecoder().decode(token.substring(sig + 1));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    String hash = store.getHash(user);
+    if (hash == null || !MessageDigest
+        .isEqual(sign(payload, hash), signature)) {
+      return null;
+    }
+
+    try {
+      if (Long.parseLong(token.substring(exp + 1, sig)) < System
+          .currentTimeMillis()) {
+        return null;
+      }
+      return user;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private byte[] sign(String payload, String hash) {
+    Mac m = mac.get();
+    m.update(payload.getBytes(StandardCharsets.UTF_8));
+    // the separator cannot appear in the payload, so the two cannot run
+    // together ambiguously
+    m.update((byte) 0);
+    return m.doFinal(hash.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Mac newMac() {
+    try {
+      Mac m = Mac.getInstance(ALGORITHM);
+      m.init(key);
+      return m;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
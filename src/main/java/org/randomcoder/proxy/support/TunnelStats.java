@@ -0,0 +1,66 @@
+package org.randomcoder.proxy.support;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters covering every tunnel handled by an {@link EndpointTracker},
+ * including tunnels which have since been closed.
+ */
+public class TunnelStats {
+  private final LongAdder opened = new LongAdder();
+  private final LongAdder expired = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder bytesReceived = new LongAdder();
+
+  void opened() {
+    opened.increment();
+  }
+
+  void expired() {
+    expired.increment();
+  }
+
+  void bytesSent(long count) {
+    bytesSent.add(count);
+  }
+
+  void bytesReceived(long count) {
+    bytesReceived.add(count);
+  }
+
+  /**
+   * Gets the number of tunnels opened.
+   *
+   * @return tunnel count
+   */
+  public long getOpened() {
+    return opened.sum();
+  }
+
+  /**
+   * Gets the number of tunnels closed because they were idle.
+   *
+   * @return tunnel count
+   */
+  public long getExpired() {
+    return expired.sum();
+  }
+
+  /**
+   * Gets the number of bytes sent from clients to endpoints.
+   *
+   * @return byte count
+   */
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  /**
+   * Gets the number of bytes received from endpoints by clients.
+   *
+   * @return byte count
+   */
+  public long getBytesReceived() {
+    return bytesReceived.sum();
+  }
+}
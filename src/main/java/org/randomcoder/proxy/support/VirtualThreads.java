@@ -0,0 +1,99 @@
+package org.randomcoder.proxy.support;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads, which are only available on Java 21 and later.
+ * The proxy is built for older releases, so virtual threads are created
+ * reflectively, and callers fall back to platform threads when they are not
+ * supported.
+ * <p>
+ * A virtual thread blocked in I/O releases its carrier thread, so blocking
+ * code can be run on a thread per task without the cost of a platform thread
+ * each. A virtual thread which blocks while holding a monitor cannot release
+ * its carrier, so code run on virtual threads should guard blocking I/O with
+ * {@link java.util.concurrent.locks.ReentrantLock} rather than
+ * <code>synchronized</code>.
+ */
+public final class VirtualThreads {
+  private static final Method OF_VIRTUAL;
+  private static final Method NAME;
+  private static final Method FACTORY;
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    Method newThreadPerTaskExecutor = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class, long.class);
+      factory = builder.getMethod("factory");
+      newThreadPerTaskExecutor = Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+    } catch (ReflectiveOperationException e) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+    NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+  }
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Determines whether virtual threads are supported by the running JVM.
+   *
+   * @return <code>true</code> if virtual threads are supported
+   */
+  public static boolean isSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Creates a factory for named virtual threads. Threads are named with the
+   * given prefix followed by a counter.
+   *
+   * @param name thread name prefix
+   * @return thread factory
+   * @throws UnsupportedOperationException if virtual threads are not supported
+   */
+  public static ThreadFactory newThreadFactory(String name) {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException(
+          "Virtual threads require Java 21 or later");
+    }
+    try {
+      Object builder = OF_VIRTUAL.invoke(null);
+      builder = NAME.invoke(builder, name + " ", 1L);
+      return (ThreadFactory) FACTORY.invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException(
+          "Unable to create virtual threads", e);
+    }
+  }
+
+  /**
+   * Creates an executor which runs each task on a new virtual thread.
+   *
+   * @param name thread name prefix
+   * @return executor
+   * @throws UnsupportedOperationException if virtual threads are not supported
+   */
+  public static ExecutorService newExecutor(String name) {
+    try {
+      return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR
+          .invoke(null, newThreadFactory(name));
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException(
+          "Unable to create virtual threads", e);
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package org.randomcoder.proxy.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connections to a single destination which have been opened ahead of time,
+ * so that a tunnel to the destination can be opened without waiting for a
+ * handshake. Connections are replaced as they are taken, and are closed once
+ * they have been idle for the maximum idle time or are found to have been
+ * closed by the destination.
+ */
+final class WarmPool {
+  private static final long MIN_SWEEP_INTERVAL = 1000L;
+
+  private final EndpointConnector connector;
+  private final String host;
+  private final int port;
+  private final int size;
+  private final long maxIdleNanos;
+  private final long sweepInterval;
+  private final HashedTimerWheel timer;
+  private final Executor executor;
+  private final ConcurrentLinkedDeque<Idle> idle =
+      new ConcurrentLinkedDeque<>();
+  private final AtomicInteger filling = new AtomicInteger();
+  private volatile boolean closed = false;
+  private volatile HashedTimerWheel.Timeout sweep;
+
+  /**
+   * Creates a new warm pool and starts filling it.
+   *
+   * @param connector connector used to open connections
+   * @param host      destination host
+   * @param port      destination port
+   * @param size      number of idle connections to keep open
+   * @param maxIdle   time in milliseconds after which an idle connection is
+   *                  closed
+   * @param timer     timer used to schedule sweeps
+   * @param executor  executor used to check idle connections
+   */
+  WarmPool(EndpointConnector connector, String host, int port, int size,
+      long maxIdle, HashedTimerWheel timer, Executor executor) {
+    this.connector = connector;
+    this.host = host;
+    this.port = port;
+    this.size = size;
+    this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdle);
+    this.sweepInterval = Math.max(MIN_SWEEP_INTERVAL, maxIdle / 2L);
+    this.timer = timer;
+    this.executor = executor;
+    refill();
+    scheduleSweep();
+  }
+
+  /**
+   * Takes an idle connection from the pool, and starts opening a replacement.
+   *
+   * @return connected endpoint, or <code>null</code> if none is available
+   */
+  Endpoint take() {
+    // only cheap checks are made here, on the caller's thread; connections
+    // closed by the destination are weeded out by the sweep
+    Idle entry;
+    try {
+      while ((entry = idle.pollLast()) != null) {
+        if (entry.isFresh(System.nanoTime())
+            && !entry.endpoint.isClosed()) {
+          return entry.endpoint;
+        }
+        entry.close();
+      }
+      return null;
+    } finally {
+      refill();
+    }
+  }
+
+  /**
+   * Closes the pool and all idle connections.
+   */
+  void close() {
+    closed = true;
+    HashedTimerWheel.Timeout t = sweep;
+    if (t != null) {
+      t.cancel();
+    }
+    drain();
+  }
+
+  private void drain() {
+    Idle entry;
+    while ((entry = idle.poll()) != null) {
+      entry.close();
+    }
+  }
+
+  private void refill() {
+    while (!closed) {
+      int f = filling.get();
+      if (idle.size() + f >= size) {
+        return;
+      }
+      if (filling.compareAndSet(f, f + 1)) {
+        fill();
+      }
+    }
+  }
+
+  private void fill() {
+    connector.open(host, port).whenComplete((endpoint, e) -> {
+      if (endpoint != null) {
+        idle.offerLast(new Idle(endpoint));
+        if (closed) {
+          drain();
+        }
+      }
+      // failures are retried by the next sweep rather than immediately, so
+      // an unreachable destination is not hammered
+      filling.decrementAndGet();
+    });
+  }
+
+  private void scheduleSweep() {
+    if (closed) {
+      return;
+    }
+    // checking connections may block briefly, so keep it off the timer thread
+    sweep = timer.schedule(() -> {
+      try {
+        executor.execute(this::sweep);
+      } catch (RejectedExecutionException e) {
+        scheduleSweep();
+      }
+    }, sweepInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private void sweep() {
+    // connections being checked are taken out of the pool so that they
+    // cannot be handed out meanwhile; those still usable are then put back
+    // at the old end, in their original order
+    long now = System.nanoTime();
+    List<Idle> usable = new ArrayList<>();
+    Idle entry;
+    while ((entry = idle.pollFirst()) != null) {
+      if (entry.isUsable(now)) {
+        usable.add(entry);
+      } else {
+        entry.close();
+      }
+    }
+    // replacements opened while the pool looked empty may have overfilled
+    // it, so the oldest surplus connections are closed
+    int surplus = Math.max(0, usable.size() + idle.size() - size);
+    for (int i = 0; i < surplus; i++) {
+      usable.get(i).close();
+    }
+    for (int i = usable.size() - 1; i >= surplus; i--) {
+      idle.offerFirst(usable.get(i));
+    }
+    if (closed) {
+      drain();
+    }
+    refill();
+    scheduleSweep();
+  }
+
+  /**
+   * Gets the number of idle connections.
+   *
+   * @return idle connection count
+   */
+  int getIdle() {
+    return idle.size();
+  }
+
+  /**
+   * An idle connection.
+   */
+  private final class Idle {
+    private final Endpoint endpoint;
+    private final long created = System.nanoTime();
+
+    private Idle(Endpoint endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    private boolean isFresh(long now) {
+      return now - created < maxIdleNanos;
+    }
+
+    private boolean isUsable(long now) {
+      return isFresh(now) && endpoint.isConnected();
+    }
+
+    private void close() {
+      try {
+        endpoint.close();
+      } catch (Throwable ignored) {
+      }
+    }
+  }
+}
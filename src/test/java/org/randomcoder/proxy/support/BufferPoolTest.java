@@ -0,0 +1,101 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BufferPool}.
+ */
+public class BufferPoolTest {
+  @Test public void testSizeClasses() throws Exception {
+    BufferPool pool = new BufferPool();
+    assertEquals(BufferPool.MIN_SIZE, pool.acquire(1, false).capacity());
+    assertEquals(BufferPool.MIN_SIZE,
+        pool.acquire(BufferPool.MIN_SIZE, false).capacity());
+    assertEquals(2048,
+        pool.acquire(BufferPool.MIN_SIZE + 1, false).capacity());
+    assertEquals(4096, pool.acquire(4096, false).capacity());
+    assertEquals(8192, pool.acquire(4097, false).capacity());
+    assertEquals(BufferPool.MAX_SIZE,
+        pool.acquire(BufferPool.MAX_SIZE, false).capacity());
+  }
+
+  @Test public void testLargeNotPooled() throws Exception {
+    BufferPool pool = new BufferPool();
+    ByteBuffer buffer = pool.acquire(BufferPool.MAX_SIZE + 1, false);
+    assertEquals(BufferPool.MAX_SIZE + 1, buffer.capacity());
+    pool.release(buffer);
+    assertEquals(0L, pool.getHeapFootprint());
+    assertNotSame(buffer, pool.acquire(BufferPool.MAX_SIZE + 1, false));
+  }
+
+  @Test public void testReuse() throws Exception {
+    BufferPool pool = new BufferPool();
+    ByteBuffer buffer = pool.acquire(3000, false);
+    // buffers are handed out empty, in flush mode
+    assertEquals(0, buffer.remaining());
+    buffer.clear();
+    buffer.put((byte) 1);
+    pool.release(buffer);
+    assertEquals(4096L, pool.getHeapFootprint());
+
+    ByteBuffer again = pool.acquire(2049, false);
+    assertSame(buffer, again);
+    // released buffers are cleared
+    assertEquals(0, again.remaining());
+    assertEquals(0L, pool.getHeapFootprint());
+    assertEquals(1L, pool.getHits());
+    assertEquals(1L, pool.getMisses());
+  }
+
+  @Test public void testHeapAndDirectSeparate() throws Exception {
+    BufferPool pool = new BufferPool();
+    ByteBuffer heap = pool.acquire(1024, false);
+    ByteBuffer direct = pool.acquire(1024, true);
+    assertFalse(heap.isDirect());
+    assertTrue(direct.isDirect());
+    pool.release(heap);
+    pool.release(direct);
+    assertEquals(1024L, pool.getHeapFootprint());
+    assertEquals(1024L, pool.getDirectFootprint());
+
+    assertSame(direct, pool.acquire(1024, true));
+    assertSame(heap, pool.acquire(1024, false));
+  }
+
+  @Test public void testFreeListBounded() throws Exception {
+    BufferPool pool = new BufferPool(2);
+    ByteBuffer[] buffers = new ByteBuffer[3];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = pool.acquire(1024, false);
+    }
+    for (ByteBuffer buffer : buffers) {
+      pool.release(buffer);
+    }
+    assertEquals(2048L, pool.getHeapFootprint());
+    assertEquals(1L, pool.getDiscards());
+  }
+
+  @Test public void testForeignBufferDiscarded() throws Exception {
+    BufferPool pool = new BufferPool();
+    pool.release(ByteBuffer.allocate(1500));
+    assertEquals(0L, pool.getHeapFootprint());
+    assertEquals(1L, pool.getDiscards());
+  }
+
+  @Test public void testPoolingDisabled() throws Exception {
+    BufferPool pool = new BufferPool(0);
+    ByteBuffer buffer = pool.acquire(1024, false);
+    pool.release(buffer);
+    assertEquals(0L, pool.getHeapFootprint());
+    assertNotSame(buffer, pool.acquire(1024, false));
+    assertEquals(0L, pool.getHits());
+  }
+}
@@ -0,0 +1,120 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ChannelEndpoint}.
+ */
+public class ChannelEndpointTest {
+  private SelectorPool pool;
+  private ServerSocket server;
+  private Socket peer;
+  private ChannelEndpoint endpoint;
+
+  @Before public void setUp() throws Exception {
+    pool = new SelectorPool(1);
+    server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    SocketChannel channel = SocketChannel.open(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(),
+            server.getLocalPort()));
+    peer = server.accept();
+    endpoint = new ChannelEndpoint(channel, pool);
+  }
+
+  @After public void tearDown() throws Exception {
+    endpoint.close();
+    peer.close();
+    server.close();
+    pool.destroy();
+  }
+
+  @Test public void testAvailable() throws Exception {
+    InputStream in = endpoint.getInputStream();
+    assertEquals(0, in.available());
+
+    write(new byte[100]);
+    assertEquals(100, in.available());
+
+    byte[] buf = new byte[60];
+    assertEquals(60, in.read(buf, 0, buf.length));
+    assertEquals(40, in.available());
+    assertEquals(40, in.read(buf, 0, buf.length));
+    assertEquals(0, in.available());
+  }
+
+  @Test public void testInteractivePolicyCoalesces() throws Exception {
+    InputStream in = endpoint.getInputStream();
+    write(new byte[300]);
+
+    // read the way the receive loop does, frame by frame
+    byte[] buf = new byte[100];
+    int unflushed = 0;
+    int flushes = 0;
+    int total = 0;
+    while (total < 300) {
+      int c = in.read(buf, 0, buf.length);
+      total += c;
+      unflushed += c;
+      if (FlushPolicy.INTERACTIVE
+          .isFlushRequired(unflushed, in.available() > 0)) {
+        flushes++;
+        unflushed = 0;
+      }
+    }
+    assertEquals(1, flushes);
+    assertEquals(0, unflushed);
+  }
+
+  @Test public void testEndOfStreamAfterData() throws Exception {
+    InputStream in = endpoint.getInputStream();
+    write(new byte[10]);
+    peer.shutdownOutput();
+    waitForAvailable(in, 10);
+
+    assertFalse(endpoint.isConnected());
+    byte[] buf = new byte[20];
+    assertEquals(10, in.read(buf, 0, buf.length));
+    assertEquals(-1, in.read(buf, 0, buf.length));
+  }
+
+  @Test public void testIsConnectedKeepsData() throws Exception {
+    InputStream in = endpoint.getInputStream();
+    write(new byte[] { 1, 2, 3 });
+    waitForAvailable(in, 3);
+
+    assertTrue(endpoint.isConnected());
+    assertTrue(endpoint.isConnected());
+    byte[] buf = new byte[10];
+    assertEquals(3, in.read(buf, 0, buf.length));
+    assertEquals(3, buf[2]);
+  }
+
+  private void write(byte[] data) throws Exception {
+    OutputStream out = peer.getOutputStream();
+    out.write(data);
+    out.flush();
+    waitForAvailable(endpoint.getInputStream(), data.length);
+  }
+
+  private static void waitForAvailable(InputStream in, int count)
+      throws Exception {
+    long end = System.currentTimeMillis() + 5000L;
+    while (in.available() < count && System.currentTimeMillis() < end) {
+      Thread.sleep(10L);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.Test;
+import org.randomcoder.proxy.support.EndpointEvent.EventType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link EventLog}.
+ */
+public class EventLogTest {
+  @Test public void testCapacityRounded() throws Exception {
+    assertEquals(2, new EventLog(2).getCapacity());
+    assertEquals(8, new EventLog(8).getCapacity());
+    assertEquals(16, new EventLog(9).getCapacity());
+  }
+
+  @Test public void testNewestFirst() throws Exception {
+    EventLog log = new EventLog(8);
+    Session session = session("a", "alice");
+    log.record(EventType.CONNECT, "a", session);
+    log.record(EventType.DISCONNECT, "a", session);
+
+    List<EndpointEvent> events = log.getEvents(null, null, null, 10);
+    assertEquals(2, events.size());
+    assertEquals(EventType.DISCONNECT, events.get(0).getStatus());
+    assertEquals(EventType.CONNECT, events.get(1).getStatus());
+    assertEquals("a", events.get(0).getConnectionId());
+    assertEquals("alice", events.get(0).getOwner());
+    assertEquals("endpoint a", events.get(0).getDetails());
+  }
+
+  @Test public void testUnknownSession() throws Exception {
+    EventLog log = new EventLog(8);
+    log.record(EventType.RECEIVE_ERROR, "x", null);
+
+    EndpointEvent event = log.getEvents(null, null, null, 10).get(0);
+    assertEquals("x", event.getConnectionId());
+    assertNull(event.getOwner());
+    assertEquals("null", event.getDetails());
+  }
+
+  @Test public void testFilters() throws Exception {
+    EventLog log = new EventLog(16);
+    log.record(EventType.CONNECT, "a", session("a", "alice"));
+    log.record(EventType.CONNECT, "b", session("b", "bob"));
+    log.record(EventType.EXPIRE, "a", session("a", "alice"));
+
+    assertEquals(2,
+        log.getEvents(EventType.CONNECT, null, null, 10).size());
+    assertEquals(2, log.getEvents(null, "alice", null, 10).size());
+    assertEquals(1, log.getEvents(null, null, "b", 10).size());
+    assertEquals(1,
+        log.getEvents(EventType.EXPIRE, "alice", "a", 10).size());
+    assertEquals(0, log.getEvents(EventType.EXPIRE, "bob", null, 10).size());
+    assertEquals(1, log.getEvents(null, null, null, 1).size());
+  }
+
+  @Test public void testOverwritesOldest() throws Exception {
+    EventLog log = new EventLog(4);
+    for (int i = 0; i < 10; i++) {
+      log.record(EventType.CONNECT, Integer.toString(i), null);
+    }
+
+    List<EndpointEvent> events = log.getEvents(null, null, null, 10);
+    assertEquals(4, events.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(Integer.toString(9 - i), events.get(i).getConnectionId());
+    }
+    assertEquals(0L, log.getDropped());
+  }
+
+  @Test public void testDescriptionOutlivesEndpoint() throws Exception {
+    EventLog log = new EventLog(8);
+    TestEndpoint endpoint = new TestEndpoint("a");
+    Session session = new Session("a", endpoint, "alice", "host:1",
+        60000000000L, new TunnelStats());
+    log.record(EventType.CONNECT, "a", session);
+    endpoint.close();
+    log.record(EventType.DISCONNECT, "a", session);
+
+    for (EndpointEvent event : log.getEvents(null, null, null, 10)) {
+      assertEquals("endpoint a", event.getDetails());
+    }
+  }
+
+  @Test public void testConcurrentWriters() throws Exception {
+    EventLog log = new EventLog(64);
+    int writers = 4;
+    int count = 20000;
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicBoolean done = new AtomicBoolean(false);
+    AtomicReference<String> torn = new AtomicReference<>();
+
+    Thread[] threads = new Thread[writers];
+    for (int w = 0; w < writers; w++) {
+      Session session = session(Integer.toString(w), "user" + w);
+      String id = Integer.toString(w);
+      threads[w] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < count; i++) {
+          log.record(EventType.CONNECT, id, session);
+        }
+      });
+      threads[w].start();
+    }
+    Thread reader = new Thread(() -> {
+      while (!done.get()) {
+        for (EndpointEvent event : log.getEvents(null, null, null, 64)) {
+          // every field of an event must come from the same write
+          String id = event.getConnectionId();
+          if (!("user" + id).equals(event.getOwner()) || !("endpoint " + id)
+              .equals(event.getDetails())) {
+            torn.compareAndSet(null, id + "/" + event.getOwner() + "/" + event
+                .getDetails());
+          }
+        }
+      }
+    });
+    reader.start();
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    done.set(true);
+    reader.join();
+
+    assertNull(torn.get());
+    // a slot is only left empty by a dropped write
+    List<EndpointEvent> events = log.getEvents(null, null, null, 64);
+    assertTrue(events.size() + log.getDropped() >= 64L);
+  }
+
+  private static Session session(String id, String owner) {
+    return new Session(id, new TestEndpoint(id), owner, "host:1",
+        60000000000L, new TunnelStats());
+  }
+
+  /**
+   * Endpoint whose description changes once closed.
+   */
+  private static final class TestEndpoint implements Endpoint {
+    private final String name;
+    private volatile boolean closed = false;
+
+    TestEndpoint(String name) {
+      this.name = name;
+    }
+
+    @Override public InputStream getInputStream() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override public OutputStream getOutputStream() {
+      return new ByteArrayOutputStream();
+    }
+
+    @Override public void close() {
+      closed = true;
+    }
+
+    @Override public String toString() {
+      return closed ? "closed" : "endpoint " + name;
+    }
+  }
+}
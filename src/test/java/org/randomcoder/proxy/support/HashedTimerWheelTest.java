@@ -0,0 +1,115 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link HashedTimerWheel}.
+ */
+public class HashedTimerWheelTest {
+  private HashedTimerWheel timer;
+
+  @Before public void setUp() {
+    timer = new HashedTimerWheel("Test timer", 10L, TimeUnit.MILLISECONDS, 8);
+  }
+
+  @After public void tearDown() {
+    timer.destroy();
+  }
+
+  @Test public void testFiresNoEarlierThanRequested() throws Exception {
+    CountDownLatch fired = new CountDownLatch(1);
+    AtomicLong at = new AtomicLong();
+    long start = System.nanoTime();
+    HashedTimerWheel.Timeout timeout = timer.schedule(() -> {
+      at.set(System.nanoTime());
+      fired.countDown();
+    }, 50L, TimeUnit.MILLISECONDS);
+
+    assertTrue(fired.await(5L, TimeUnit.SECONDS));
+    assertTrue(at.get() - start >= TimeUnit.MILLISECONDS.toNanos(50L));
+    assertTrue(timeout.isExpired());
+    assertFalse(timeout.cancel());
+  }
+
+  @Test public void testLongerThanOneRotation() throws Exception {
+    // 8 ticks of 10ms per rotation, so this needs several rounds
+    CountDownLatch fired = new CountDownLatch(1);
+    AtomicLong at = new AtomicLong();
+    long start = System.nanoTime();
+    timer.schedule(() -> {
+      at.set(System.nanoTime());
+      fired.countDown();
+    }, 250L, TimeUnit.MILLISECONDS);
+
+    assertTrue(fired.await(5L, TimeUnit.SECONDS));
+    assertTrue(at.get() - start >= TimeUnit.MILLISECONDS.toNanos(250L));
+  }
+
+  @Test public void testZeroDelay() throws Exception {
+    CountDownLatch fired = new CountDownLatch(1);
+    timer.schedule(fired::countDown, 0L, TimeUnit.MILLISECONDS);
+    assertTrue(fired.await(5L, TimeUnit.SECONDS));
+  }
+
+  @Test public void testCancel() throws Exception {
+    AtomicInteger runs = new AtomicInteger();
+    HashedTimerWheel.Timeout timeout =
+        timer.schedule(runs::incrementAndGet, 50L, TimeUnit.MILLISECONDS);
+    assertTrue(timeout.cancel());
+    assertFalse(timeout.cancel());
+
+    CountDownLatch later = new CountDownLatch(1);
+    timer.schedule(later::countDown, 150L, TimeUnit.MILLISECONDS);
+    assertTrue(later.await(5L, TimeUnit.SECONDS));
+    assertEquals(0, runs.get());
+    assertFalse(timeout.isExpired());
+  }
+
+  @Test public void testManyTimeoutsInOneBucket() throws Exception {
+    int count = 1000;
+    CountDownLatch fired = new CountDownLatch(count);
+    HashedTimerWheel.Timeout[] timeouts = new HashedTimerWheel.Timeout[count];
+    for (int i = 0; i < count; i++) {
+      timeouts[i] =
+          timer.schedule(fired::countDown, 30L, TimeUnit.MILLISECONDS);
+    }
+    // cancel every other one
+    for (int i = 0; i < count; i += 2) {
+      assertTrue(timeouts[i].cancel());
+      fired.countDown();
+    }
+
+    assertTrue(fired.await(5L, TimeUnit.SECONDS));
+    for (int i = 1; i < count; i += 2) {
+      assertTrue(timeouts[i].isExpired());
+    }
+  }
+
+  @Test public void testFailingTaskDoesNotStopTimer() throws Exception {
+    timer.schedule(() -> {
+      throw new IllegalStateException("expected");
+    }, 10L, TimeUnit.MILLISECONDS);
+    CountDownLatch fired = new CountDownLatch(1);
+    timer.schedule(fired::countDown, 50L, TimeUnit.MILLISECONDS);
+    assertTrue(fired.await(5L, TimeUnit.SECONDS));
+  }
+
+  @Test public void testDestroyDiscardsPending() throws Exception {
+    AtomicInteger runs = new AtomicInteger();
+    timer.schedule(runs::incrementAndGet, 100L, TimeUnit.MILLISECONDS);
+    timer.destroy();
+    Thread.sleep(200L);
+    assertEquals(0, runs.get());
+  }
+}
@@ -0,0 +1,98 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ResolverCache}.
+ */
+public class ResolverCacheTest {
+  private HashedTimerWheel timer;
+  private List<Runnable> lookups;
+  private ResolverCache resolver;
+
+  @Before public void setUp() {
+    timer = new HashedTimerWheel("Test timer", 10L, TimeUnit.MILLISECONDS, 8);
+    lookups = new ArrayList<>();
+    resolver = new ResolverCache(lookups::add, timer, 60000L, 60000L, 60000L);
+  }
+
+  @After public void tearDown() {
+    timer.destroy();
+  }
+
+  @Test public void testIPv4Literal() throws Exception {
+    assertResolved("127.0.0.1", new byte[] { 127, 0, 0, 1 });
+    assertResolved("0.0.0.0", new byte[] { 0, 0, 0, 0 });
+    assertResolved("255.255.255.255",
+        new byte[] { (byte) 255, (byte) 255, (byte) 255, (byte) 255 });
+  }
+
+  @Test public void testIPv6Literal() throws Exception {
+    byte[] loopback = new byte[16];
+    loopback[15] = 1;
+    assertResolved("::1", loopback);
+    assertResolved("[::1]", loopback);
+    assertResolved("0:0:0:0:0:0:0:1", loopback);
+  }
+
+  @Test public void testMalformedIPv6Literal() throws Exception {
+    CompletableFuture<InetAddress[]> result = resolver.resolve("a:b");
+    assertTrue(result.isDone());
+    assertTrue(lookups.isEmpty());
+    try {
+      result.get();
+      fail("Expected failure");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof UnknownHostException);
+    }
+  }
+
+  @Test public void testNumericNamesAreLookedUp() throws Exception {
+    String[] names = { "1.2.3.4.5", "12345", "1.2.3", "256.1.1.1", "1..2.3",
+        "1.2.3.4.", ".1.2.3", "01.2.3.4", "[1.2.3.4]" };
+    for (String name : names) {
+      lookups.clear();
+      assertFalse(name, resolver.resolve(name).isDone());
+      assertEquals(name, 1, lookups.size());
+    }
+  }
+
+  @Test public void testNamesAreCached() throws Exception {
+    CompletableFuture<InetAddress[]> first = resolver.resolve("localhost");
+    CompletableFuture<InetAddress[]> second = resolver.resolve("localhost");
+    // concurrent requests share a single lookup
+    assertEquals(1, lookups.size());
+    lookups.get(0).run();
+    assertTrue(first.get().length > 0);
+    assertArrayEquals(first.get(), second.get());
+
+    lookups.clear();
+    CompletableFuture<InetAddress[]> third = resolver.resolve("localhost");
+    assertTrue(third.isDone());
+    assertTrue(lookups.isEmpty());
+    assertEquals(1L, resolver.getHits());
+  }
+
+  private void assertResolved(String host, byte[] address) throws Exception {
+    CompletableFuture<InetAddress[]> result = resolver.resolve(host);
+    assertTrue(host, result.isDone());
+    assertTrue(host, lookups.isEmpty());
+    assertArrayEquals(host, address, result.get()[0].getAddress());
+  }
+}
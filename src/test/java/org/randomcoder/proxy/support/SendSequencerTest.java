@@ -0,0 +1,151 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.randomcoder.proxy.support.SendSequencer.Result;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link SendSequencer}.
+ */
+public class SendSequencerTest {
+  private ByteArrayOutputStream out;
+  private SendSequencer sequencer;
+
+  @Before public void setUp() {
+    out = new ByteArrayOutputStream();
+    sequencer = new SendSequencer(out, null, 4, 16);
+  }
+
+  @Test public void testInOrder() throws Exception {
+    assertEquals(Result.ACCEPTED, sequencer.submit(0L, bytes("ab"), false));
+    assertEquals(Result.ACCEPTED, sequencer.submit(1L, bytes("cd"), false));
+    assertEquals("abcd", written());
+    assertEquals(2L, sequencer.getNext());
+    assertEquals(0, sequencer.getHeld());
+  }
+
+  @Test public void testOutOfOrder() throws Exception {
+    assertEquals(Result.ACCEPTED, sequencer.submit(2L, bytes("ef"), false));
+    assertEquals(Result.ACCEPTED, sequencer.submit(1L, bytes("cd"), false));
+    assertEquals("", written());
+    assertEquals(4, sequencer.getHeld());
+
+    assertEquals(Result.ACCEPTED, sequencer.submit(0L, bytes("ab"), false));
+    assertEquals("abcdef", written());
+    assertEquals(3L, sequencer.getNext());
+    assertEquals(0, sequencer.getHeld());
+  }
+
+  @Test public void testDuplicate() throws Exception {
+    sequencer.submit(0L, bytes("ab"), false);
+    sequencer.submit(2L, bytes("ef"), false);
+    assertEquals(Result.DUPLICATE, sequencer.submit(0L, bytes("xx"), false));
+    assertEquals(Result.DUPLICATE, sequencer.submit(2L, bytes("xx"), false));
+    assertEquals("ab", written());
+  }
+
+  @Test public void testOutOfWindow() throws Exception {
+    assertEquals(Result.OUT_OF_WINDOW,
+        sequencer.submit(4L, bytes("ab"), false));
+    assertEquals(Result.ACCEPTED, sequencer.submit(3L, bytes("ab"), false));
+  }
+
+  @Test public void testOutOfWindowSharingHeldSlot() throws Exception {
+    // 5 and 9 map to the same slot as the held send 1, but are not duplicates
+    assertEquals(Result.ACCEPTED, sequencer.submit(1L, bytes("cd"), false));
+    assertEquals(Result.OUT_OF_WINDOW,
+        sequencer.submit(5L, bytes("xx"), false));
+    assertEquals(Result.OUT_OF_WINDOW,
+        sequencer.submit(9L, bytes("xx"), false));
+
+    sequencer.submit(0L, bytes("ab"), false);
+    assertEquals("abcd", written());
+
+    // once the window has moved on, the same numbers are accepted
+    assertEquals(Result.ACCEPTED, sequencer.submit(5L, bytes("gh"), false));
+  }
+
+  @Test public void testFull() throws Exception {
+    assertEquals(Result.ACCEPTED,
+        sequencer.submit(1L, new byte[10], false));
+    assertEquals(Result.FULL, sequencer.submit(2L, new byte[7], false));
+    assertEquals(Result.ACCEPTED, sequencer.submit(2L, new byte[6], false));
+  }
+
+  @Test public void testFailure() throws Exception {
+    SendSequencer failing =
+        new SendSequencer(new FailingOutputStream(), null, 4, 16);
+    failing.submit(1L, bytes("cd"), false);
+    try {
+      failing.submit(0L, bytes("ab"), false);
+      fail("IOException expected");
+    } catch (IOException expected) {
+    }
+    assertEquals(0, failing.getHeld());
+    try {
+      failing.submit(2L, bytes("ef"), false);
+      fail("IOException expected");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void testCompressed() throws Exception {
+    Compression deflate = new Compression(6, new CompressionStats());
+    Compression inflate = new Compression(6, new CompressionStats());
+    SendSequencer compressed = new SendSequencer(out, inflate, 4, 4096);
+
+    byte[] first = new byte[200];
+    byte[] second = new byte[200];
+    for (int i = 0; i < first.length; i++) {
+      first[i] = (byte) 'a';
+      second[i] = (byte) 'b';
+    }
+    byte[] a = deflate(deflate, first);
+    byte[] b = deflate(deflate, second);
+
+    compressed.submit(1L, b, true);
+    compressed.submit(0L, a, true);
+
+    byte[] expected = new byte[400];
+    System.arraycopy(first, 0, expected, 0, 200);
+    System.arraycopy(second, 0, expected, 200, 200);
+    assertArrayEquals(expected, out.toByteArray());
+  }
+
+  private static byte[] deflate(Compression compression, byte[] data)
+      throws IOException {
+    byte[] buf = new byte[Compression.maxDeflatedSize(data.length)];
+    int len = compression.deflate(data, 0, data.length, buf, 0);
+    byte[] result = new byte[len];
+    System.arraycopy(buf, 0, result, 0, len);
+    return result;
+  }
+
+  private String written() {
+    return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static class FailingOutputStream extends OutputStream {
+    @Override public void write(int b) throws IOException {
+      throw new IOException("Write failed");
+    }
+
+    @Override public void write(byte[] b, int off, int len)
+        throws IOException {
+      throw new IOException("Write failed");
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link TokenBucket}.
+ */
+public class TokenBucketTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+  @Test public void testUnlimited() throws Exception {
+    TokenBucket bucket = new TokenBucket(0L);
+    assertEquals(0L, bucket.reserve(Long.MAX_VALUE / 2));
+    assertEquals(0L, bucket.tryAcquire(Long.MAX_VALUE / 2));
+  }
+
+  @Test public void testBurst() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000L);
+    // starts full, with one second's worth of tokens
+    assertEquals(0L, bucket.reserve(1000L));
+  }
+
+  @Test public void testDebt() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000L);
+    assertEquals(0L, bucket.reserve(1000L));
+
+    // half a second in debt, less whatever refilled meanwhile
+    long wait = bucket.reserve(500L);
+    assertTrue(wait > 0L && wait <= SECOND / 2);
+
+    // the next caller queues behind the existing debt
+    long next = bucket.reserve(500L);
+    assertTrue(next > wait && next <= SECOND);
+  }
+
+  @Test public void testTryAcquireDoesNotBorrow() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000L);
+    assertEquals(0L, bucket.tryAcquire(800L));
+
+    long wait = bucket.tryAcquire(800L);
+    assertTrue(wait > 0L && wait <= SECOND * 6 / 10);
+
+    // refused requests leave the bucket unchanged
+    assertEquals(0L, bucket.tryAcquire(150L));
+  }
+
+  @Test public void testTryAcquireRefusedInDebt() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000L);
+    bucket.reserve(1500L);
+    long wait = bucket.tryAcquire(1L);
+    assertTrue(wait > SECOND / 2 - SECOND / 10);
+  }
+
+  @Test public void testRefill() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000L);
+    assertEquals(0L, bucket.reserve(1000L));
+    Thread.sleep(200L);
+    assertEquals(0L, bucket.tryAcquire(150L));
+  }
+
+  @Test public void testRefillCappedAtBurst() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000L);
+    Thread.sleep(200L);
+    assertTrue(bucket.tryAcquire(1001L) > 0L);
+  }
+
+  @Test public void testSetRateKeepsDebt() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000L);
+    bucket.reserve(2000L);
+    bucket.setRate(2000L);
+    assertEquals(2000L, bucket.getRate());
+    // roughly one second of debt at the old rate is half a second at the new
+    long wait = bucket.reserve(0L);
+    assertTrue(wait > SECOND / 2 - SECOND / 10 && wait <= SECOND / 2);
+  }
+
+  @Test public void testSetRateTrimsBurst() throws Exception {
+    TokenBucket bucket = new TokenBucket(1000L);
+    bucket.setRate(100L);
+    assertTrue(bucket.tryAcquire(101L) > 0L);
+    assertEquals(0L, bucket.tryAcquire(100L));
+  }
+
+  @Test public void testCurrentRate() throws Exception {
+    TokenBucket bucket = new TokenBucket(0L);
+    assertEquals(0.0d, bucket.getCurrentRate(), 0.0d);
+    bucket.reserve(1000L);
+    Thread.sleep(1100L);
+    double rate = bucket.getCurrentRate();
+    assertTrue(rate > 800.0d && rate <= 1000.0d);
+  }
+}
@@ -0,0 +1,97 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link TokenService}.
+ */
+public class TokenServiceTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Map<String, String> hashes;
+  private PasswordStore store;
+
+  @Before public void setUp() throws IOException {
+    hashes = new HashMap<>();
+    hashes.put("test", "abNANd1rDfiNc");
+    store = new PasswordStore(folder.newFile("passwd")) {
+      @Override public String getHash(String username) {
+        return hashes.get(username);
+      }
+    };
+  }
+
+  @Test public void testRoundTrip() throws Exception {
+    TokenService tokens = new TokenService(60000L, store);
+    String token = tokens.issue("test");
+    assertNotNull(token);
+    assertEquals("test", tokens.verify(token));
+  }
+
+  @Test public void testUnknownUser() throws Exception {
+    assertNull(new TokenService(60000L, store).issue("nobody"));
+  }
+
+  @Test public void testExpired() throws Exception {
+    TokenService tokens = new TokenService(-1L, store);
+    assertNull(tokens.verify(tokens.issue("test")));
+  }
+
+  @Test public void testTamperedSignature() throws Exception {
+    TokenService tokens = new TokenService(60000L, store);
+    String token = tokens.issue("test");
+    // the last character of the signature carries bits which are ignored
+    // when decoding, so alter the first
+    int sig = token.lastIndexOf('.') + 1;
+    char first = token.charAt(sig);
+    assertNull(tokens.verify(
+        token.substring(0, sig) + (first == 'A' ? 'B' : 'A') + token
+            .substring(sig + 1)));
+  }
+
+  @Test public void testTamperedExpiry() throws Exception {
+    TokenService tokens = new TokenService(60000L, store);
+    String[] parts = tokens.issue("test").split("\\.");
+    long expiry = Long.parseLong(parts[1]) + 3600000L;
+    assertNull(tokens.verify(parts[0] + "." + expiry + "." + parts[2]));
+  }
+
+  @Test public void testOtherKey() throws Exception {
+    String token = new TokenService(60000L, store).issue("test");
+    assertNull(new TokenService(60000L, store).verify(token));
+  }
+
+  @Test public void testMalformed() throws Exception {
+    TokenService tokens = new TokenService(60000L, store);
+    assertNull(tokens.verify(""));
+    assertNull(tokens.verify("abc"));
+    assertNull(tokens.verify("abc.def"));
+    assertNull(tokens.verify("!!!.123.!!!"));
+  }
+
+  @Test public void testPasswordChangeRevokes() throws Exception {
+    TokenService tokens = new TokenService(60000L, store);
+    String token = tokens.issue("test");
+    hashes.put("test", "xyNANd1rDfiNc");
+    assertNull(tokens.verify(token));
+    assertEquals("test", tokens.verify(tokens.issue("test")));
+  }
+
+  @Test public void testUserRemovalRevokes() throws Exception {
+    TokenService tokens = new TokenService(60000L, store);
+    String token = tokens.issue("test");
+    hashes.remove("test");
+    assertNull(tokens.verify(token));
+  }
+}
@@ -0,0 +1,95 @@
+package org.randomcoder.proxy.support;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for {@link VirtualThreads}. Tests which need virtual threads are
+ * skipped on releases before Java 21.
+ */
+public class VirtualThreadsTest {
+  @Test public void testSupportMatchesRuntime() {
+    assertEquals(Runtime.version().feature() >= 21,
+        VirtualThreads.isSupported());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testUnsupported() {
+    assumeFalse(VirtualThreads.isSupported());
+    VirtualThreads.newExecutor("Test");
+  }
+
+  @Test public void testExecutorRunsOnVirtualThreads() throws Exception {
+    assumeTrue(VirtualThreads.isSupported());
+    ExecutorService executor = VirtualThreads.newExecutor("Test");
+    try {
+      Thread thread = executor.submit(Thread::currentThread)
+          .get(10L, TimeUnit.SECONDS);
+      assertTrue(isVirtual(thread));
+      assertTrue(thread.getName(), thread.getName().startsWith("Test "));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testBlockingInflateDoesNotPin() throws Exception {
+    assumeTrue(VirtualThreads.isSupported());
+    // more tasks than carrier threads, each inflating into a stream which
+    // blocks; if blocking inside the inflater's lock pinned the carriers,
+    // the tasks would run a batch at a time
+    int tasks = Runtime.getRuntime().availableProcessors() * 4;
+    byte[] data = new byte[1000];
+    Compression deflater = new Compression(6, new CompressionStats());
+    byte[] buf = new byte[Compression.maxDeflatedSize(data.length)];
+    int len = deflater.deflate(data, 0, data.length, buf, 0);
+
+    ExecutorService executor = VirtualThreads.newExecutor("Test");
+    try {
+      long start = System.nanoTime();
+      Future<?>[] futures = new Future<?>[tasks];
+      for (int i = 0; i < tasks; i++) {
+        futures[i] = executor.submit(() -> {
+          Compression inflater = new Compression(6, new CompressionStats());
+          return inflater.inflate(buf, 0, len, new SlowOutputStream());
+        });
+      }
+      for (Future<?> future : futures) {
+        assertEquals(data.length, future.get(10L, TimeUnit.SECONDS));
+      }
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("took " + elapsed + " ms", elapsed < 1500L);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) throws Exception {
+    return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+  }
+
+  private static class SlowOutputStream extends OutputStream {
+    @Override public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len)
+        throws IOException {
+      try {
+        Thread.sleep(500L);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+}